@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.control;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.footprint.datatypes.decimal.MDecimal;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.ConfigurationError;
+import org.marssa.footprint.exceptions.NoConnection;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.footprint.interfaces.control.IController;
+import org.marssa.services.control.Ramping.RampingType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of a full ramp, from one end of the range to the other, with no
+ * delay between the steps. Every invocation crosses zero, so the polarity
+ * switch is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RampingBenchmark {
+
+	/**
+	 * Controller which only waits for the ramp to reach its target
+	 */
+	private static class TargetController implements IController {
+		private volatile double target;
+		private volatile CountDownLatch reached;
+
+		void expect(double target) {
+			this.target = target;
+			this.reached = new CountDownLatch(1);
+		}
+
+		@Override
+		public void outputValue(MDecimal value) throws ConfigurationError,
+				OutOfRange, NoConnection {
+			if (value.doubleValue() == target && reached != null)
+				reached.countDown();
+		}
+
+		@Override
+		public void setPolaritySignal(Polarity polarity) throws NoConnection {
+		}
+	}
+
+	@Param({ "DEFAULT", "ACCELERATED" })
+	public RampingType rampType;
+
+	private final TargetController controller = new TargetController();
+	private Ramping ramping;
+	private double target = 100;
+
+	@Setup
+	public void setUp() throws Exception {
+		ramping = new Ramping(new MInteger(0), new MDecimal(1), controller,
+				new MDecimal(-100), rampType);
+	}
+
+	@Benchmark
+	public Ramping rampAcrossRange() throws InterruptedException {
+		controller.expect(target);
+		ramping.rampTo(new MDecimal(target));
+		controller.reached.await();
+		target = -target;
+		return ramping;
+	}
+}
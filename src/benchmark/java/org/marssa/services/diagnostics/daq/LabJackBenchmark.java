@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of AIN voltages and splitting of 32 bit values over two registers,
+ * without any Modbus traffic
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabJackBenchmark {
+
+	private ReadMultipleRegistersResponse response;
+	private int channels;
+	private int msw;
+	private int lsw;
+	private final MInteger register = LabJack.TIMER_BASE_CLOCK_ADDR;
+	private final MInteger value = new MInteger(0x12345678);
+
+	@Setup
+	public void setUp() {
+		channels = LabJackUE9.AIN_COUNT.intValue();
+		Register[] registers = new Register[channels * 2];
+		for (int i = 0; i < channels; i++) {
+			int bits = Float.floatToIntBits(i * 0.25f);
+			registers[i * 2] = new SimpleRegister((bits >>> 16) & 0xFFFF);
+			registers[i * 2 + 1] = new SimpleRegister(bits & 0xFFFF);
+		}
+		response = new ReadMultipleRegistersResponse(registers);
+		msw = registers[2].getValue();
+		lsw = registers[3].getValue();
+	}
+
+	@Benchmark
+	public double decodeFloat() {
+		return LabJack.decodeFloat(msw, lsw);
+	}
+
+	@Benchmark
+	public void decodeScan(Blackhole blackhole) {
+		for (int i = 0; i < channels; i++) {
+			blackhole.consume(LabJack.getVoltage(response, i));
+		}
+	}
+
+	@Benchmark
+	public WriteMultipleRegistersRequest splitRegisters() {
+		return LabJack.createWriteMultipleRequest(register, value);
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.navigation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.footprint.datatypes.composite.Coordinate;
+import org.marssa.footprint.datatypes.decimal.DegreesDecimal;
+import org.marssa.footprint.datatypes.decimal.distance.Metres;
+import org.marssa.services.tests.navigation.GpsdSimulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GpsReceiver getters against a {@link GpsdSimulator} on localhost, so every
+ * call includes the gpsd round trip over the loopback interface
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GpsReceiverBenchmark {
+
+	private GpsdSimulator gpsd;
+	private GpsReceiver receiver;
+
+	@Setup
+	public void setUp() throws Exception {
+		gpsd = new GpsdSimulator();
+		gpsd.start();
+		receiver = new GpsReceiver(gpsd.getHost(), gpsd.getPort());
+	}
+
+	@TearDown
+	public void tearDown() {
+		gpsd.stop();
+	}
+
+	@Benchmark
+	public Coordinate getCoordinate() throws Exception {
+		return receiver.getCoordinate();
+	}
+
+	@Benchmark
+	public DegreesDecimal getCOG() throws Exception {
+		return receiver.getCOG();
+	}
+
+	@Benchmark
+	public Metres getAltitude() throws Exception {
+		return receiver.getAltitude();
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.navigation;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.services.nmea.NMEATokenizer;
+import org.marssa.services.nmea.SentenceDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch of NMEA sentences to the depth and speed sensors, the way the
+ * sentences of a port are read: tokenized by a {@link NMEATokenizer},
+ * routed as raw sentences by the {@link SentenceDispatcher} and decoded by
+ * the sensors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+
+	private static final String[] SENTENCES = { "$SDMTW,17.9,C*0B",
+			"$SDDBT,41.5,f,12.6,M,6.9,F*0C", "$SDDPT,12.6,0.5*67",
+			"$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50" };
+
+	private NMEATokenizer depthTokenizer;
+	private NMEATokenizer speedTokenizer;
+	private DepthSensor depthSensor;
+	private SpeedSensor speedSensor;
+	private byte[][] lines;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		SentenceDispatcher depthDispatcher = new SentenceDispatcher();
+		SentenceDispatcher speedDispatcher = new SentenceDispatcher();
+		depthSensor = new DepthSensor(depthDispatcher);
+		speedSensor = new SpeedSensor(speedDispatcher);
+		depthTokenizer = new NMEATokenizer();
+		depthTokenizer.addHandler(depthDispatcher);
+		speedTokenizer = new NMEATokenizer();
+		speedTokenizer.addHandler(speedDispatcher);
+		Charset ascii = Charset.forName("US-ASCII");
+		lines = new byte[SENTENCES.length][];
+		for (int i = 0; i < SENTENCES.length; i++) {
+			lines[i] = (SENTENCES[i] + "\r\n").getBytes(ascii);
+		}
+	}
+
+	@Benchmark
+	public DepthSensor depthSensorRead() {
+		byte[] line = nextLine();
+		depthTokenizer.feed(line, 0, line.length);
+		return depthSensor;
+	}
+
+	@Benchmark
+	public SpeedSensor speedSensorRead() {
+		byte[] line = nextLine();
+		speedTokenizer.feed(line, 0, line.length);
+		return speedSensor;
+	}
+
+	private byte[] nextLine() {
+		byte[] line = lines[next];
+		next = (next + 1) % lines.length;
+		return line;
+	}
+}
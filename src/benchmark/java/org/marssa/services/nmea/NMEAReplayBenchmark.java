@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.services.navigation.DepthSensor;
+import org.marssa.services.navigation.SpeedSensor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fast play back of a recorded voyage through the {@link SentenceDispatcher}
+ * into the depth and speed sensors. A sentence is recorded every 100 ms, so
+ * the log stands for about half an hour of sensor data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NMEAReplayBenchmark {
+
+	private static final String[] VOYAGE = { "$SDDPT,12.6,0.5*67",
+			"$SDMTW,17.9,C*0B", "$SDDBT,41.5,f,12.6,M,6.9,F*0C",
+			"$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50" };
+	private static final int SENTENCES = 20000;
+
+	private File log;
+	private NMEAReplay replay;
+	private SentenceDispatcher dispatcher;
+	private DepthSensor depthSensor;
+	private SpeedSensor speedSensor;
+
+	@Setup
+	public void setUp() throws Exception {
+		log = File.createTempFile("nmea", "");
+		log.delete();
+		NMEARecorder recorder = new NMEARecorder(log);
+		long now = System.nanoTime();
+		for (int i = 0; i < SENTENCES; i++) {
+			recorder.record(now + TimeUnit.MILLISECONDS.toNanos(100 * i),
+					VOYAGE[i % VOYAGE.length]);
+		}
+		recorder.close();
+		replay = new NMEAReplay(log);
+		dispatcher = new SentenceDispatcher();
+		depthSensor = new DepthSensor(dispatcher);
+		speedSensor = new SpeedSensor(dispatcher);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File segment : log.listFiles()) {
+			segment.delete();
+		}
+		log.delete();
+	}
+
+	@Benchmark
+	public double replay() throws Exception {
+		replay.replay(dispatcher, false);
+		return depthSensor.getDepthMeters().doubleValue()
+				+ speedSensor.getSpeedKnots().doubleValue();
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.GGASentence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a GGA sentence by the {@link NMEATokenizer} against marineapi,
+ * which builds a String and a Sentence per line. The gc profiler shows the
+ * allocation of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NMEATokenizerBenchmark {
+
+	private static final String GGA = "$GPGGA,123519.50,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*6C\r\n";
+
+	private byte[] bytes;
+	private NMEATokenizer tokenizer;
+	private double latitude;
+
+	@Setup
+	public void setUp() throws Exception {
+		bytes = GGA.getBytes("US-ASCII");
+		tokenizer = new NMEATokenizer();
+		tokenizer.addHandler("GGA", new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				latitude = sentence.getPosition(1);
+			}
+		});
+	}
+
+	@Benchmark
+	public double tokenizer() {
+		tokenizer.feed(bytes, 0, bytes.length);
+		return latitude;
+	}
+
+	@Benchmark
+	public double marineapi() throws Exception {
+		String line = new String(bytes, 0, bytes.length - 2, "US-ASCII");
+		GGASentence gga = (GGASentence) SentenceFactory.getInstance()
+				.createParser(line);
+		return gga.getPosition().getLatitude();
+	}
+}
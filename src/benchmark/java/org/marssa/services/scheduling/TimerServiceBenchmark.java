@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scheduling, cancelling and firing 100k tasks on the
+ * {@link HashedWheelTimer} against the binary heap of the
+ * {@link MTimerService}. Every invocation uses a new timer and new tasks,
+ * as a task may only be scheduled once.
+ * <p>
+ * Cancelling a task only marks it, the timers unlink it when it falls due.
+ * The cancel benchmark therefore cancels the tasks just before they fall
+ * due, and waits for a task due right after them, which runs once the
+ * timer has unlinked every cancelled task. Each invocation includes the
+ * {@link #CANCEL_LEAD} left before the tasks fall due.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerServiceBenchmark {
+
+	private static final int TASKS = 100000;
+	// Far enough for no task to fire while measured
+	private static final long DELAY = 60000;
+	// Long enough to schedule every task before any falls due
+	private static final long SETTLE = 1000;
+	// Time left to cancel the tasks before they fall due
+	static final long CANCEL_LEAD = 20;
+
+	@State(Scope.Thread)
+	public static class Tasks {
+		@Param({ "wheel", "pool" })
+		String service;
+
+		ITimerService timer;
+		MTimerTask[] tasks;
+		CountDownLatch fired;
+
+		@Setup(Level.Invocation)
+		public void setUp() throws Exception {
+			timer = service.equals("wheel") ? new HashedWheelTimer()
+					: new MTimerService(new MInteger(2));
+			fired = new CountDownLatch(TASKS);
+			tasks = new MTimerTask[TASKS];
+			for (int i = 0; i < TASKS; i++) {
+				tasks[i] = new MTimerTask() {
+					@Override
+					public void run() {
+						fired.countDown();
+					}
+				};
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() {
+			if (timer instanceof HashedWheelTimer)
+				((HashedWheelTimer) timer).cancel();
+			else
+				((MTimerService) timer).cancel();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class DueTasks extends Tasks {
+		Date due;
+		CountDownLatch unlinked;
+
+		@Override
+		@Setup(Level.Invocation)
+		public void setUp() throws Exception {
+			super.setUp();
+			due = new Date(System.currentTimeMillis() + SETTLE);
+			unlinked = new CountDownLatch(1);
+			for (MTimerTask task : tasks) {
+				timer.addSchedule(task, due);
+			}
+			Thread.sleep(Math.max(0, due.getTime() - CANCEL_LEAD
+					- System.currentTimeMillis()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void schedule(Tasks state) {
+		for (MTimerTask task : state.tasks) {
+			state.timer.addSchedule(task, DELAY);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void cancel(final DueTasks state) throws InterruptedException {
+		for (MTimerTask task : state.tasks) {
+			task.cancel();
+		}
+		// Due with the cancelled tasks, but only run after every one of them
+		// has been unlinked
+		state.timer.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				state.unlinked.countDown();
+			}
+		}, state.due);
+		state.unlinked.await();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void fire(Tasks state) throws InterruptedException {
+		for (MTimerTask task : state.tasks) {
+			state.timer.addSchedule(task, 0);
+		}
+		state.fired.await();
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the messages queued by any number of threads to a stream from a
+ * single writer thread. Every message waiting when the writer wakes up is
+ * encoded into one reusable buffer and written with a single write and
+ * flush, so that many messages sent at a high rate cost a single system
+ * call.
+ * <p>
+ * Messages are encoded one byte per character, as the serial devices only
+ * take ASCII. When the queue is full new messages are refused rather than
+ * blocking the sender.
+ */
+public class BatchingWriter {
+
+	private static Logger logger = LoggerFactory.getLogger(BatchingWriter.class
+			.getName());
+
+	private final OutputStream out;
+	private final BlockingQueue<String> queue;
+	private final List<String> batch = new ArrayList<String>();
+	private byte[] bytes = new byte[1024];
+
+	private volatile Thread thread;
+	private volatile boolean running = false;
+	private volatile long written = 0;
+	private volatile long batches = 0;
+
+	/**
+	 * @param capacity
+	 *            the number of messages which may wait to be written
+	 */
+	public BatchingWriter(OutputStream out, MInteger capacity) {
+		this.out = out;
+		this.queue = new LinkedBlockingQueue<String>(capacity.intValue());
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Serial writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer thread and returns once the messages queued so far
+	 * are written, or after
+	 * {@link ServicesConstants.SERIAL#WRITER_STOP_TIMEOUT} milliseconds
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join(ServicesConstants.SERIAL.WRITER_STOP_TIMEOUT
+					.longValue());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive())
+			logger.warn("Serial writer still writing after {} . ms",
+					ServicesConstants.SERIAL.WRITER_STOP_TIMEOUT);
+	}
+
+	/**
+	 * Queues the message to be written. Never blocks.
+	 *
+	 * @return false if the queue is full and the message was refused
+	 */
+	public boolean send(String message) {
+		if (queue.offer(message))
+			return true;
+		logger.debug("Write queue full, {} . refused", message);
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages written
+	 */
+	public long getWrittenCount() {
+		return written;
+	}
+
+	/**
+	 * Returns the number of writes made to the stream
+	 */
+	public long getBatchCount() {
+		return batches;
+	}
+
+	private void write() {
+		try {
+			while (running) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					// Stopped, the waiting messages are still written
+				}
+				queue.drainTo(batch);
+				flush();
+			}
+			// The messages queued before the writer was stopped
+			queue.drainTo(batch);
+			flush();
+		} catch (IOException e) {
+			logger.error("Cannot write to the serial port", e);
+		}
+	}
+
+	private void flush() throws IOException {
+		if (batch.isEmpty())
+			return;
+		int length = 0;
+		for (String message : batch) {
+			length += message.length();
+		}
+		if (length > bytes.length)
+			bytes = new byte[Math.max(length, bytes.length * 2)];
+		int i = 0;
+		for (String message : batch) {
+			for (int c = 0; c < message.length(); c++) {
+				bytes[i++] = (byte) message.charAt(c);
+			}
+		}
+		out.write(bytes, 0, length);
+		out.flush();
+		written += batch.size();
+		batches++;
+		logger.trace("{} . messages written to serial", batch.size());
+		batch.clear();
+	}
+}
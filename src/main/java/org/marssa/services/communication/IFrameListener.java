@@ -0,0 +1,29 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.communication;
+
+/**
+ * Receives the lines read by a {@link LineFramer}
+ */
+public interface IFrameListener {
+
+	/**
+	 * Called with a line, without its CR/LF terminator, in place in the
+	 * buffer of the framer. The bytes are only valid within the call and
+	 * must be copied to be kept.
+	 */
+	void frameReceived(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the bytes read from a stream into CR/LF terminated lines, in a
+ * single reusable buffer. Each line is handed to the listener in place, and
+ * only the unterminated tail of the buffer is moved back to its start before
+ * the next read, so every line is contiguous and no line is copied.
+ * <p>
+ * A line longer than the buffer is dropped and counted. A framer is used by
+ * a single thread.
+ */
+public class LineFramer {
+
+	private static Logger logger = LoggerFactory.getLogger(LineFramer.class
+			.getName());
+
+	private final byte[] buffer;
+	private final IFrameListener listener;
+	// Start of the unterminated line and end of the bytes read
+	private int start = 0;
+	private int end = 0;
+	// Set while the rest of a line too long for the buffer is skipped
+	private boolean overflowing = false;
+
+	private long frames = 0;
+	private long dropped = 0;
+
+	/**
+	 * @param capacity
+	 *            the size in bytes of the buffer, which bounds the length of
+	 *            a line
+	 */
+	public LineFramer(MInteger capacity, IFrameListener listener) {
+		this.buffer = new byte[capacity.intValue()];
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads once from the stream into the free space of the buffer and
+	 * passes every line completed to the listener
+	 *
+	 * @return the number of bytes read, which is 0 if a receive timeout
+	 *         expired, or -1 at the end of the stream
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		if (end == buffer.length)
+			compact();
+		int count = in.read(buffer, end, buffer.length - end);
+		if (count > 0)
+			frame(count);
+		return count;
+	}
+
+	/**
+	 * Frames count bytes of the array, copying them into the buffer first
+	 */
+	public void feed(byte[] bytes, int offset, int count) {
+		while (count > 0) {
+			if (end == buffer.length)
+				compact();
+			int copied = Math.min(count, buffer.length - end);
+			System.arraycopy(bytes, offset, buffer, end, copied);
+			frame(copied);
+			offset += copied;
+			count -= copied;
+		}
+	}
+
+	/**
+	 * Returns the number of lines passed to the listener
+	 */
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of lines dropped because they did not fit the
+	 * buffer
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	private void frame(int count) {
+		int i = end;
+		end += count;
+		for (; i < end; i++) {
+			byte b = buffer[i];
+			if (b != '\r' && b != '\n')
+				continue;
+			if (overflowing)
+				overflowing = false;
+			else if (i > start) {
+				frames++;
+				listener.frameReceived(buffer, start, i - start);
+			}
+			start = i + 1;
+		}
+	}
+
+	/**
+	 * Moves the unterminated line to the start of the buffer, or drops it if
+	 * it fills the whole buffer
+	 */
+	private void compact() {
+		if (start == 0) {
+			if (!overflowing) {
+				dropped++;
+				logger.debug("Line longer than {} bytes dropped", buffer.length);
+			}
+			overflowing = true;
+			end = 0;
+			return;
+		}
+		System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		start = 0;
+	}
+}
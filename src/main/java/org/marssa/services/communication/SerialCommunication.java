@@ -18,17 +18,25 @@ package org.marssa.services.communication;
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.marssa.footprint.exceptions.ConfigurationError;
+import org.marssa.footprint.exceptions.NoConnection;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Serial port connection. Besides the blocking {@link #read(InputStream)}
+ * and {@link #write(String)}, lines may be received by a reader thread
+ * through a {@link LineFramer} with {@link #startReading(IFrameListener)},
+ * and sent through the batching writer thread with {@link #send(String)}.
+ *
  * @author Warren Zahra
  * 
  */
@@ -40,6 +48,9 @@ public class SerialCommunication {
 			.getLogger(SerialCommunication.class.getName());
 	InputStream in;
 	OutputStream out;
+	SerialPort serialPort;
+	private BatchingWriter writer;
+	private volatile Thread reader;
 
 	public SerialCommunication() {
 		super();
@@ -64,7 +75,7 @@ public class SerialCommunication {
 					2000);
 
 			if (commPort instanceof SerialPort) {
-				SerialPort serialPort = (SerialPort) commPort;
+				serialPort = (SerialPort) commPort;
 				// serialPort.setSerialPortParams(baudrate,SerialPort.DATABITS_8,SerialPort.STOPBITS_1,SerialPort.PARITY_NONE);
 				serialPort.setSerialPortParams(baudrate, dataBits, stopBits,
 						parity);
@@ -86,16 +97,16 @@ public class SerialCommunication {
 	}
 
 	public void read(InputStream in) throws IOException {
-		// TODO read should we show the string in the logger ????
 		byte[] buffer = new byte[1024];
 		int len = -1;
 		try {
 			while ((len = this.in.read(buffer)) > -1) {
-				logger.trace("Input stream is" + new String(buffer, 0, len));
-				System.out.print(new String(buffer, 0, len));
+				if (logger.isTraceEnabled())
+					logger.trace("Input stream is {} .", new String(buffer, 0,
+							len));
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			logger.error("Cannot read from the serial port", e);
 		}
 	}
 
@@ -109,4 +120,105 @@ public class SerialCommunication {
 			logger.debug("IOException handling ", e);
 		}
 	}
+
+	/**
+	 * Starts a reader thread passing every line received to the listener,
+	 * without its CR/LF terminator
+	 *
+	 * @throws NoConnection
+	 *             if the port is not connected
+	 */
+	public synchronized void startReading(final IFrameListener listener)
+			throws NoConnection {
+		if (in == null) {
+			NoConnection e = new NoConnection(
+					"The serial port is not connected", null);
+			logger.error("NoConnection", e);
+			throw e;
+		}
+		if (reader != null)
+			return;
+		if (serialPort != null) {
+			try {
+				// Lets the reader thread notice it was stopped
+				serialPort
+						.enableReceiveTimeout(ServicesConstants.SERIAL.RECEIVE_TIMEOUT
+								.intValue());
+			} catch (UnsupportedCommOperationException e) {
+				logger.warn("Receive timeout not supported by {} .",
+						serialPort.getName());
+			}
+		}
+		final LineFramer framer = new LineFramer(
+				ServicesConstants.SERIAL.FRAME_BUFFER_SIZE, listener);
+		final InputStream input = in;
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (reader == Thread.currentThread()
+							&& framer.readFrom(input) > -1) {
+					}
+				} catch (IOException e) {
+					logger.error("Cannot read from the serial port", e);
+				}
+				logger.debug("{} . lines read, {} . dropped",
+						framer.getFrameCount(), framer.getDropped());
+			}
+		}, "Serial reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Stops the reader thread once its current read returns
+	 */
+	public synchronized void stopReading() {
+		reader = null;
+	}
+
+	/**
+	 * Queues the sentence to be written by the writer thread, together with
+	 * the other sentences waiting. Never blocks.
+	 *
+	 * @return false if too many sentences are waiting and this one was
+	 *         refused
+	 * @throws NoConnection
+	 *             if the port is not connected
+	 */
+	public synchronized boolean send(String outputSerialSentence)
+			throws NoConnection {
+		if (writer == null) {
+			if (out == null) {
+				NoConnection e = new NoConnection(
+						"The serial port is not connected", null);
+				logger.error("NoConnection", e);
+				throw e;
+			}
+			writer = new BatchingWriter(out,
+					ServicesConstants.SERIAL.WRITE_QUEUE_CAPACITY);
+			writer.start();
+		}
+		return writer.send(outputSerialSentence);
+	}
+
+	/**
+	 * Stops the reader and writer threads and closes the port, once the
+	 * sentences queued are written
+	 */
+	public synchronized void close() {
+		stopReading();
+		if (writer != null) {
+			writer.stop();
+			writer = null;
+		}
+		if (serialPort != null) {
+			serialPort.close();
+			logger.info(MMarker.CONNECTION, "Closed port {} .",
+					serialPort.getName());
+			serialPort = null;
+		}
+		in = null;
+		out = null;
+	}
 }
@@ -29,4 +29,126 @@ public class ServicesConstants {
 	public final static class GENERAL {
 		public final static MInteger RETRY_AMOUNT = new MInteger(5);
 	}
+
+	/**
+	 * LabJack Constants
+	 */
+	public final static class LABJACK {
+		/**
+		 * The maximum number of Modbus transactions which may be in flight on
+		 * a single LabJack connection at any time
+		 */
+		public final static MInteger PIPELINE_DEPTH = new MInteger(8);
+
+		/**
+		 * The interval in milliseconds at which coalesced LabJack writes are
+		 * flushed. A value of 0 writes through on every call.
+		 */
+		public final static MInteger WRITE_FLUSH_INTERVAL = new MInteger(0);
+	}
+
+	/**
+	 * GPS Constants
+	 */
+	public final static class GPS {
+		/**
+		 * The age in milliseconds up to which the last GPS fix is reused
+		 * instead of polling gpsd again. A value of 0 polls on every call.
+		 */
+		public final static MInteger FIX_FRESHNESS = new MInteger(200);
+
+		/**
+		 * The age in milliseconds after which a fix streamed by gpsd in watch
+		 * mode is considered stale, and gpsd is polled instead
+		 */
+		public final static MInteger FIX_TIMEOUT = new MInteger(5000);
+	}
+
+	/**
+	 * Scheduling Constants
+	 */
+	public final static class SCHEDULING {
+		/**
+		 * The number of tasks the shared MTimerService may run at the same
+		 * time
+		 */
+		public final static MInteger WORKER_THREADS = new MInteger(Math.max(
+				2, Runtime.getRuntime().availableProcessors()));
+
+		/**
+		 * The number of workers of an MTimerService kept free of low
+		 * priority tasks, for the higher priority ones
+		 */
+		public final static MInteger RESERVED_WORKERS = new MInteger(1);
+
+		/**
+		 * The resolution in milliseconds of the HashedWheelTimer
+		 */
+		public final static MInteger WHEEL_TICK = new MInteger(10);
+
+		/**
+		 * The number of buckets of the HashedWheelTimer, so that with the
+		 * default tick a revolution takes about 5 seconds
+		 */
+		public final static MInteger WHEEL_SIZE = new MInteger(512);
+	}
+
+	/**
+	 * Serial Communication Constants
+	 */
+	public final static class SERIAL {
+		/**
+		 * The size in bytes of the buffer lines are framed in, which bounds
+		 * the length of a line
+		 */
+		public final static MInteger FRAME_BUFFER_SIZE = new MInteger(4096);
+
+		/**
+		 * The number of sentences which may wait to be written to a serial
+		 * port
+		 */
+		public final static MInteger WRITE_QUEUE_CAPACITY = new MInteger(1024);
+
+		/**
+		 * The time in milliseconds after which a read from a serial port
+		 * returns without data
+		 */
+		public final static MInteger RECEIVE_TIMEOUT = new MInteger(100);
+
+		/**
+		 * The time in milliseconds a serial writer is given to write the
+		 * sentences queued when it is stopped
+		 */
+		public final static MInteger WRITER_STOP_TIMEOUT = new MInteger(2000);
+	}
+
+	/**
+	 * NMEA Constants
+	 */
+	public final static class NMEA {
+		/**
+		 * The time in milliseconds for which a serial port is listened to at
+		 * each baud rate while looking for NMEA data
+		 */
+		public final static MInteger PROBE_TIMEOUT = new MInteger(2500);
+		/**
+		 * The number of sentences which may wait to be merged into the stream
+		 * of all the NMEA ports before the newer ones are dropped
+		 */
+		public final static MInteger MERGE_CAPACITY = new MInteger(1024);
+		/**
+		 * The UDP port on which NMEA gateways broadcast sentences
+		 */
+		public final static MInteger UDP_PORT = new MInteger(10110);
+		/**
+		 * The time in milliseconds after which a lost TCP NMEA source is
+		 * connected to again
+		 */
+		public final static MInteger RECONNECT_DELAY = new MInteger(5000);
+		/**
+		 * The size in bytes of every segment file of an NMEA recording
+		 */
+		public final static MInteger RECORD_SEGMENT_SIZE = new MInteger(
+				16 * 1024 * 1024);
+	}
 }
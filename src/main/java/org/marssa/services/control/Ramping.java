@@ -22,6 +22,8 @@ import org.marssa.footprint.exceptions.NoConnection;
 import org.marssa.footprint.exceptions.OutOfRange;
 import org.marssa.footprint.interfaces.control.IController;
 import org.marssa.footprint.interfaces.control.IRamping;
+import org.marssa.services.scheduling.IClock;
+import org.marssa.services.scheduling.SystemClock;
 
 /**
  * @author Clayton Tabone
@@ -39,6 +41,10 @@ public class Ramping implements IRamping {
 	private IController.Polarity polarity;
 	private Thread rampingThread;
 	private RampingTask rampingTask = null;
+	/**
+	 * The clock timing the steps
+	 */
+	private final IClock clock;
 
 	private class RampingTask implements Runnable {
 		private MDecimal desiredValue;
@@ -101,7 +107,7 @@ public class Ramping implements IRamping {
 					if ((currentValue == desiredValue.doubleValue())) {
 						break;
 					}
-					Thread.sleep(stepDelay);
+					clock.sleep(stepDelay);
 				}
 			} catch (InterruptedException e) {
 				// TODO Auto-generated catch block
@@ -115,6 +121,8 @@ public class Ramping implements IRamping {
 			} catch (NoConnection e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
+			} finally {
+				clock.idle();
 			}
 		}
 	}
@@ -133,17 +141,26 @@ public class Ramping implements IRamping {
 	public Ramping(MInteger stepDelay, MDecimal stepSize,
 			IController controller, RampingType rampType)
 			throws ConfigurationError, OutOfRange, NoConnection {
-		this.stepDelay = stepDelay.longValue();
-		this.stepSize = stepSize.doubleValue();
-		this.controller = controller;
-		this.currentValue = 0;
-		this.rampType = rampType;
-		controller.outputValue(new MDecimal(this.currentValue));
+		this(stepDelay, stepSize, controller, new MDecimal(0), rampType,
+				SystemClock.getInstance());
 	}
 
 	public Ramping(MInteger stepDelay, MDecimal stepSize,
 			IController controller, MDecimal initialValue, RampingType rampType)
 			throws ConfigurationError, OutOfRange, NoConnection {
+		this(stepDelay, stepSize, controller, initialValue, rampType,
+				SystemClock.getInstance());
+	}
+
+	/**
+	 * Creates a ramp whose steps are timed by the given clock, such as a
+	 * VirtualClock in a simulation
+	 */
+	public Ramping(MInteger stepDelay, MDecimal stepSize,
+			IController controller, MDecimal initialValue,
+			RampingType rampType, IClock clock) throws ConfigurationError,
+			OutOfRange, NoConnection {
+		this.clock = clock;
 		this.stepDelay = stepDelay.longValue();
 		this.stepSize = stepSize.doubleValue();
 		this.controller = controller;
@@ -166,6 +183,8 @@ public class Ramping implements IRamping {
 		synchronized (this) {
 			this.rampingTask = new RampingTask(desiredValue);
 			this.rampingThread = new Thread(rampingTask);
+			// Busy for the clock until its first step is done
+			clock.busy(rampingThread);
 			rampingThread.start();
 		}
 	}
@@ -18,21 +18,35 @@ package org.marssa.services.control;
 import org.marssa.footprint.datatypes.time.ATime;
 import org.marssa.footprint.datatypes.time.Seconds;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.scheduling.IClock;
+import org.marssa.services.scheduling.SystemClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class StopWatch {
 	private static Logger stopWatchLogger = LoggerFactory
 			.getLogger(StopWatch.class);
+	private final IClock clock;
 	private long start;
 
+	public StopWatch() {
+		this(SystemClock.getInstance());
+	}
+
+	/**
+	 * Creates a stop watch reading the given clock
+	 */
+	public StopWatch(IClock clock) {
+		this.clock = clock;
+	}
+
 	public void start() {
 		stopWatchLogger.trace("Started StopWatch");
-		start = System.currentTimeMillis();
+		start = clock.currentTimeMillis();
 	}
 
 	public ATime stop() {
-		long now = System.currentTimeMillis();
+		long now = clock.currentTimeMillis();
 		long time = ((now - start) / 1000);
 		stopWatchLogger.trace(MMarker.GETTER, "Returning time in seconds");
 		return new Seconds(time);
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Callback for asynchronous LabJack transactions. Both methods are invoked
+ * from the thread reading the responses off the connection, hence
+ * implementations must return quickly and must not block.
+ *
+ * @see LabJack#readRegistersAsync(int, int, ITransactionListener)
+ */
+public interface ITransactionListener {
+
+	public void transactionCompleted(ModbusResponse response);
+
+	public void transactionFailed(ModbusException e);
+}
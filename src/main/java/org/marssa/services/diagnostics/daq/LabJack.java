@@ -15,16 +15,26 @@
  */
 package org.marssa.services.diagnostics.daq;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.ModbusIOException;
 import net.wimpi.modbus.ModbusSlaveException;
-import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
 import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
 import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
 import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
@@ -42,6 +52,7 @@ import org.marssa.footprint.exceptions.ConfigurationError;
 import org.marssa.footprint.exceptions.NoConnection;
 import org.marssa.footprint.exceptions.OutOfRange;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
 import org.marssa.services.diagnostics.daq.LabJackUE9.TimerUE9;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -195,41 +206,163 @@ public abstract class LabJack {
 	}
 
 	/**
-	 * Contains a host/port connection and the instance of the LabJack class
+	 * Contains a host/port connection and the instance of the LabJack class.
+	 * The instance is created at most once per connection, by whichever caller
+	 * registers the connection first, and is closed when the last reference
+	 * to it is released.
 	 * 
 	 * @author Clayton Tabone
 	 * 
 	 */
-	static final class LabJackConnection<LabJackModel> {
-		static Logger labjackConnectionLogger = LoggerFactory
-				.getLogger(LabJackConnection.class);
-		MString host;
-		MInteger port;
-		LabJackModel lj;
+	static final class LabJackConnection {
+		final String key;
+		final MString host;
+		final MInteger port;
+		final FutureTask<LabJack> lj;
+		final AtomicInteger references = new AtomicInteger(1);
 
-		public LabJackConnection(MString host, MInteger port, LabJackModel lj) {
+		LabJackConnection(String key, MString host, MInteger port,
+				FutureTask<LabJack> lj) {
+			this.key = key;
 			this.host = host;
 			this.port = port;
 			this.lj = lj;
-			Object[] labjackConnection = { host, port,
-					lj.getClass().getSimpleName() };
-			labjackConnectionLogger
-					.info("Connecting to a Labjack having host {} . port {} . and enabling {} . Labjack",
-							labjackConnection);
 		}
 
-		public boolean inUse(MString host, MInteger port) {
-			labjackConnectionLogger.debug(MMarker.GETTER,
-					"Returning if labjack is already in use");
-			return (this.host.getContents().equals(host) && this.port
-					.equals(port));
+		/**
+		 * Takes a reference to this connection unless it is being closed
+		 * 
+		 * @return false if the last reference has already been released
+		 */
+		boolean retain() {
+			while (true) {
+				int count = references.get();
+				if (count == 0)
+					return false;
+				if (references.compareAndSet(count, count + 1))
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Creates the LabJack instance of a new connection
+	 */
+	interface LabJackFactory<LabJackModel extends LabJack> {
+		LabJackModel create(MString host, MInteger port)
+				throws UnknownHostException, NoConnection;
+	}
+
+	// The active connections keyed by host and port
+	static private final ConcurrentHashMap<String, LabJackConnection> activeConnections = new ConcurrentHashMap<String, LabJackConnection>();
+
+	/**
+	 * Returns the LabJack connected to the given host and port, creating it
+	 * through the factory if no such connection exists. Lookups of existing
+	 * connections do not lock, and concurrent callers asking for the same new
+	 * connection wait for a single instance to be created.<br />
+	 * Every instance returned by this method holds a reference to the
+	 * connection which has to be given back through {@link #release()}.
+	 * 
+	 * @param host
+	 *            The host IP to which LabJack is connected
+	 * @param port
+	 *            The host port to which LabJack is connected
+	 * @param model
+	 *            The LabJack class expected on this connection
+	 * @param factory
+	 *            Creates the instance if the connection does not exist
+	 * @return the LabJack instance for the connection
+	 * @throws UnknownHostException
+	 * @throws NoConnection
+	 */
+	static <LabJackModel extends LabJack> LabJackModel getConnection(
+			final MString host, final MInteger port,
+			Class<LabJackModel> model,
+			final LabJackFactory<LabJackModel> factory)
+			throws UnknownHostException, NoConnection {
+		String key = host.getContents() + ":" + port.intValue();
+		LabJackConnection connection;
+		while (true) {
+			connection = activeConnections.get(key);
+			if (connection != null) {
+				if (connection.retain())
+					break;
+				// The connection is being closed
+				activeConnections.remove(key, connection);
+				continue;
+			}
+			FutureTask<LabJack> task = new FutureTask<LabJack>(
+					new Callable<LabJack>() {
+						@Override
+						public LabJack call() throws Exception {
+							return factory.create(host, port);
+						}
+					});
+			LabJackConnection newConnection = new LabJackConnection(key, host,
+					port, task);
+			if (activeConnections.putIfAbsent(key, newConnection) == null) {
+				Object[] labjackConnection = { host, port,
+						model.getSimpleName() };
+				logger.info(
+						"Connecting to a Labjack having host {} . port {} . and enabling {} . Labjack",
+						labjackConnection);
+				task.run();
+				connection = newConnection;
+				break;
+			}
+		}
+
+		LabJack lj;
+		try {
+			lj = connection.lj.get();
+		} catch (InterruptedException e) {
+			releaseReference(connection);
+			Thread.currentThread().interrupt();
+			NoConnection nc = new NoConnection(
+					"Interrupted while connecting to LabJack", e);
+			logger.error("Cannot connect to Labjack on host {}", host, nc);
+			throw nc;
+		} catch (ExecutionException e) {
+			activeConnections.remove(key, connection);
+			if (e.getCause() instanceof UnknownHostException)
+				throw (UnknownHostException) e.getCause();
+			if (e.getCause() instanceof NoConnection)
+				throw (NoConnection) e.getCause();
+			NoConnection nc = new NoConnection("Exception\n"
+					+ e.getCause().getMessage(), e.getCause());
+			logger.error("Cannot connect to Labjack on host {}", host, nc);
+			throw nc;
+		}
+		if (!model.isInstance(lj)) {
+			// The creating caller may not have set lj.connection yet
+			releaseReference(connection);
+			NoConnection nc = new NoConnection("The LabJack on " + key
+					+ " is a " + lj.getClass().getSimpleName() + " and not a "
+					+ model.getSimpleName());
+			logger.error("Cannot connect to Labjack on host {}", host, nc);
+			throw nc;
 		}
+		lj.connection = connection;
+		return model.cast(lj);
 	}
 
 	// The actual TCP connection to the LabJack used in this instance
 	private TCPMasterConnection readConnection;
 	private TCPMasterConnection writeConnection;
 
+	// The pipelines through which all transactions on the connections are sent
+	private ModbusPipeline readPipeline;
+	private ModbusPipeline writePipeline;
+
+	// Shadow copy of the registers written to the LabJack
+	private final ShadowRegisters shadowRegisters = new ShadowRegisters();
+
+	// Flushes the coalesced writes while write coalescing is enabled
+	private ScheduledExecutorService flushService;
+	private volatile long writeFlushInterval;
+	private final Object flushLock = new Object();
+
 	// The number of timers
 	private ITimersEnabled numTimers;
 
@@ -246,6 +379,9 @@ public abstract class LabJack {
 	private MString host;
 	private MInteger port;
 
+	// The registered connection to which this instance belongs
+	private volatile LabJackConnection connection;
+
 	public LabJack(MString host, MInteger port, ITimersEnabled numTimers)
 			throws UnknownHostException, NoConnection {
 		Object[] labjackInformation = { host, port, numTimers };
@@ -264,6 +400,11 @@ public abstract class LabJack {
 			writeConnection = new TCPMasterConnection(address);
 			writeConnection.setPort(port.intValue());
 			writeConnection.connect();
+			int depth = ServicesConstants.LABJACK.PIPELINE_DEPTH.intValue();
+			readPipeline = new ModbusPipeline(readConnection, depth,
+					"LabJack reader " + host + ":" + port);
+			writePipeline = new ModbusPipeline(writeConnection, depth,
+					"LabJack writer " + host + ":" + port);
 			this.host = host;
 			this.port = port;
 			this.numTimers = numTimers;
@@ -289,6 +430,7 @@ public abstract class LabJack {
 			}
 			this.write(NUM_TIMERS_ENABLED_ADDR, new MInteger(numTimers
 					.getTimersEnabled().intValue()));
+			setWriteFlushInterval(ServicesConstants.LABJACK.WRITE_FLUSH_INTERVAL);
 		} catch (UnknownHostException e) {
 			NoConnection nc = new NoConnection("UnknownHostException\n"
 					+ e.getMessage(), e.getCause());
@@ -307,18 +449,63 @@ public abstract class LabJack {
 		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
+	/**
+	 * Releases a reference to this LabJack obtained through getInstance. When
+	 * the last reference is released, the pending writes are flushed and the
+	 * connections to the LabJack are closed. The instance must not be used
+	 * after the reference has been released.
+	 */
+	public void release() {
+		LabJackConnection connection = this.connection;
+		if (connection == null) {
+			close();
+			return;
+		}
+		releaseReference(connection);
+	}
+
+	/**
+	 * Gives back a reference to the connection, closing its instance once
+	 * the last reference is given back
+	 */
+	private static void releaseReference(LabJackConnection connection) {
+		if (connection.references.decrementAndGet() != 0)
+			return;
+		activeConnections.remove(connection.key, connection);
+		// The creating caller holds a reference until the instance is created
+		if (!connection.lj.isDone())
+			return;
+		boolean interrupted = Thread.interrupted();
+		try {
+			connection.lj.get().close();
+		} catch (InterruptedException e) {
+			// Not thrown once done
+		} catch (ExecutionException e) {
+			// Never connected, nothing to close
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void close() {
+		logger.info("Closing the connection to Labjack having host {} . port {} .",
+				host, port);
+		synchronized (this) {
+			if (flushService != null) {
+				flushService.shutdown();
+				flushService = null;
+			}
+		}
+		try {
+			flush();
+		} catch (NoConnection e) {
+			// Already logged, the connection is being closed regardless
+		}
 		logger.debug("Closing the readConnection");
-		readConnection.close();
+		readPipeline.close();
 		logger.debug("Closing the writeConnection");
-		writeConnection.close();
-		// TODO Implement Mutex lock on the connection pair. The connectionPair
-		// should only be removed if no other instance is using this connection
-		// TODO Make sure that there are no leaked references to the singleton
-		// instance for the connection pair which is being removed
-		// connectionPairs.remove();
-		super.finalize(); // not necessary if extending Object.
+		writePipeline.close();
 	}
 
 	/**
@@ -493,41 +680,63 @@ public abstract class LabJack {
 	 */
 	public void write(MInteger registerNumber, MInteger registerValue)
 			throws NoConnection {
-		logger.info("Writing to register {} . with a registerValue {} .",
+		logger.debug("Writing to register {} . with a registerValue {} .",
 				registerNumber, registerValue);
-		SimpleRegister register = new SimpleRegister(registerValue.intValue());
+		int address = registerNumber.intValue();
+		int value = registerValue.intValue();
+		if (shadowRegisters.isCurrent(address, value)) {
+			logger.trace("Register {} . already holds {} .", registerNumber,
+					registerValue);
+			return;
+		}
+		if (writeFlushInterval > 0) {
+			if (shadowRegisters.isShadowed(address)) {
+				shadowRegisters.stage(address, value);
+				return;
+			}
+			// The configuration staged so far has to be written first
+			flush();
+		}
+		SimpleRegister register = new SimpleRegister(value);
 		WriteSingleRegisterRequest writeRequest = new WriteSingleRegisterRequest(
-				registerNumber.intValue(), register);
+				address, register);
 
-		// Prepare the transaction
-		logger.info("Preparing the Transaction");
-		ModbusTCPTransaction transaction = new ModbusTCPTransaction(
-				writeConnection);
 		logger.debug("Labjack setting request to write to a register");
-		transaction.setRequest(writeRequest);
-
 		try {
-			logger.info("Executing the Transaction");
-			transaction.execute();
-		} catch (ModbusIOException e) {
-			NoConnection nc = new NoConnection("ModbusIOException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to LabJack FIO port" + registerNumber,
-					nc);
-			throw nc;
-		} catch (ModbusSlaveException e) {
-			NoConnection nc = new NoConnection("ModBusSlaveException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to LabJack register number "
-					+ registerNumber, nc);
-			throw nc;
-		} catch (ModbusException e) {
-			NoConnection nc = new NoConnection("ModBusException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to labjack register number "
-					+ registerNumber, nc);
-			throw nc;
+			execute(writePipeline, writeRequest,
+					"Cannot write to LabJack register number ", registerNumber);
+		} catch (NoConnection e) {
+			shadowRegisters.invalidate(address);
+			throw e;
 		}
+		shadowRegisters.update(address, value);
+	}
+
+	/**
+	 * Asynchronous variant of {@link #write(MInteger, MInteger)}. The request
+	 * is pipelined on the write connection and the method returns without
+	 * waiting for the LabJack to respond. Asynchronous writes are never
+	 * coalesced and replace any write staged for the same register.
+	 * 
+	 * @param registerNumber
+	 *            the register to write to
+	 * @param registerValue
+	 *            the value to write in the register
+	 * @return the future response of the LabJack
+	 * @throws NoConnection
+	 *             if the request cannot be sent
+	 */
+	public Future<ModbusResponse> writeAsync(MInteger registerNumber,
+			MInteger registerValue) throws NoConnection {
+		int address = registerNumber.intValue();
+		SimpleRegister register = new SimpleRegister(registerValue.intValue());
+		WriteSingleRegisterRequest writeRequest = new WriteSingleRegisterRequest(
+				address, register);
+		shadowRegisters.unstage(address);
+		shadowRegisters.update(address, registerValue.intValue());
+		return submit(writePipeline, writeRequest, new ShadowInvalidator(
+				address, 1), "Cannot write to LabJack register number ",
+				registerNumber);
 	}
 
 	/**
@@ -550,8 +759,208 @@ public abstract class LabJack {
 	public void writeMultiple(MInteger registerNumber, MInteger registerValue)
 			throws NoConnection {
 
-		logger.info("Writing to register {} . with a registerValue {} .",
+		logger.debug("Writing to register {} . with a registerValue {} .",
+				registerNumber, registerValue);
+		WriteMultipleRegistersRequest writeRequest = createWriteMultipleRequest(
 				registerNumber, registerValue);
+		int address = registerNumber.intValue();
+		int lsb = writeRequest.getRegisterValue(0);
+		int msb = writeRequest.getRegisterValue(1);
+		if (shadowRegisters.isCurrent(address, lsb)
+				&& shadowRegisters.isCurrent(address + 1, msb)) {
+			logger.trace("Registers {} . already hold {} .", registerNumber,
+					registerValue);
+			return;
+		}
+		if (writeFlushInterval > 0) {
+			if (shadowRegisters.isShadowed(address)
+					&& shadowRegisters.isShadowed(address + 1)) {
+				shadowRegisters.stage(address, lsb);
+				shadowRegisters.stage(address + 1, msb);
+				return;
+			}
+			// The configuration staged so far has to be written first
+			flush();
+		}
+
+		logger.debug("Labjack setting request to write multiple registers");
+		try {
+			execute(writePipeline, writeRequest,
+					"Cannot write to LabJack register number ", registerNumber);
+		} catch (NoConnection e) {
+			shadowRegisters.invalidate(address);
+			shadowRegisters.invalidate(address + 1);
+			throw e;
+		}
+		shadowRegisters.update(address, lsb);
+		shadowRegisters.update(address + 1, msb);
+	}
+
+	/**
+	 * Asynchronous variant of {@link #writeMultiple(MInteger, MInteger)}. The
+	 * request is pipelined on the write connection and the method returns
+	 * without waiting for the LabJack to respond. Asynchronous writes are never
+	 * coalesced and replace any writes staged for the same registers.
+	 * 
+	 * @param registerNumber
+	 *            the first of the two registers to write to
+	 * @param registerValue
+	 *            the 32 bit value to write in the registers
+	 * @return the future response of the LabJack
+	 * @throws NoConnection
+	 *             if the request cannot be sent
+	 */
+	public Future<ModbusResponse> writeMultipleAsync(MInteger registerNumber,
+			MInteger registerValue) throws NoConnection {
+		WriteMultipleRegistersRequest writeRequest = createWriteMultipleRequest(
+				registerNumber, registerValue);
+		int address = registerNumber.intValue();
+		shadowRegisters.unstage(address);
+		shadowRegisters.unstage(address + 1);
+		shadowRegisters.update(address, writeRequest.getRegisterValue(0));
+		shadowRegisters.update(address + 1, writeRequest.getRegisterValue(1));
+		return submit(writePipeline, writeRequest, new ShadowInvalidator(
+				address, 2), "Cannot write to LabJack register number ",
+				registerNumber);
+	}
+
+	/**
+	 * Enables or disables write coalescing. While enabled, {@link #write} and
+	 * {@link #writeMultiple} only stage the new values of the FIO states and
+	 * directions, number of timers enabled, timer clock, divisor and modes,
+	 * and of the values of output timers, and return immediately. The staged
+	 * values are flushed every flushInterval milliseconds, with adjacent
+	 * registers coalesced into a single write multiple registers request.
+	 * Flushes write the registers in ascending order of address, which
+	 * matches the order in which the timer clock, divisor, mode and value
+	 * registers have to be configured. A
+	 * write to any other register, such as the value of an input timer which
+	 * resets the timer, flushes the staged values before it is sent.<br />
+	 * Whether coalescing is enabled or not, writes of a value which one of
+	 * these registers is already known to hold are skipped.
+	 * 
+	 * @param flushInterval
+	 *            the flush interval in milliseconds, or 0 to write through on
+	 *            every call
+	 * @throws NoConnection
+	 *             if disabling coalescing fails to flush the staged writes
+	 * @see #flush()
+	 * @see org.marssa.services.constants.ServicesConstants.LABJACK#WRITE_FLUSH_INTERVAL
+	 */
+	public synchronized void setWriteFlushInterval(MInteger flushInterval)
+			throws NoConnection {
+		logger.info(MMarker.SETTER, "Setting writeFlushInterval to {} .",
+				flushInterval);
+		if (flushService != null) {
+			flushService.shutdown();
+			flushService = null;
+		}
+		this.writeFlushInterval = flushInterval.longValue();
+		if (writeFlushInterval > 0) {
+			flushService = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "LabJack flush " + host
+									+ ":" + port);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			flushService.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (NoConnection e) {
+						// Already logged, the registers will be written again
+						// on the next change
+					}
+				}
+			}, writeFlushInterval, writeFlushInterval, TimeUnit.MILLISECONDS);
+		} else {
+			flush();
+		}
+	}
+
+	public MInteger getWriteFlushInterval() {
+		logger.info(MMarker.GETTER, "Getting writeFlushInterval");
+		return new MInteger(writeFlushInterval);
+	}
+
+	/**
+	 * Writes all the staged register values to the LabJack. Adjacent
+	 * registers are written with a single request.
+	 * 
+	 * @throws NoConnection
+	 *             if any of the writes fails. The registers which could not be
+	 *             written will be written again on their next change.
+	 */
+	public void flush() throws NoConnection {
+		synchronized (flushLock) {
+			List<WriteMultipleRegistersRequest> requests = shadowRegisters
+					.drain();
+			NoConnection failure = null;
+			for (WriteMultipleRegistersRequest writeRequest : requests) {
+				try {
+					execute(writePipeline, writeRequest,
+							"Cannot write to LabJack register number ",
+							writeRequest.getReference());
+				} catch (NoConnection e) {
+					for (int i = 0; i < writeRequest.getWordCount(); i++) {
+						shadowRegisters.invalidate(writeRequest.getReference()
+								+ i);
+					}
+					failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Forgets the values written to the LabJack registers, so that the next
+	 * write to each register is sent even if it repeats the previous value.
+	 * This should be called whenever the LabJack may have been reset or
+	 * reconfigured by other means.
+	 */
+	public void invalidateShadowRegisters() {
+		logger.debug("Invalidating the shadow registers");
+		shadowRegisters.invalidateAll();
+	}
+
+	/**
+	 * Forgets the shadow values of the registers of a failed asynchronous
+	 * write
+	 */
+	private final class ShadowInvalidator implements ITransactionListener {
+		private final int address;
+		private final int count;
+
+		private ShadowInvalidator(int address, int count) {
+			this.address = address;
+			this.count = count;
+		}
+
+		@Override
+		public void transactionCompleted(ModbusResponse response) {
+		}
+
+		@Override
+		public void transactionFailed(ModbusException e) {
+			for (int i = 0; i < count; i++) {
+				shadowRegisters.invalidate(address + i);
+			}
+		}
+	}
+
+	/**
+	 * Splits a 32 bit value over the two registers starting from
+	 * registerNumber. Package-private so that it can be benchmarked.
+	 */
+	static WriteMultipleRegistersRequest createWriteMultipleRequest(
+			MInteger registerNumber, MInteger registerValue) {
 		logger.debug("Dividing the 16bit registeer to two 8bit registers");
 		SimpleRegister registerLSB = new SimpleRegister(registerValue.and(
 				new MInteger(0xFFFF)).intValue());
@@ -560,109 +969,272 @@ public abstract class LabJack {
 						.intValue());
 		SimpleRegister[] registerArray = { registerLSB, registerMSB };
 
-		WriteMultipleRegistersRequest writeRequest = new WriteMultipleRegistersRequest(
-				registerNumber.intValue(), registerArray);
-
-		// Prepare the transaction
-		logger.info("Preparing the Transaction");
-		ModbusTCPTransaction transaction = new ModbusTCPTransaction(
-				writeConnection);
-
-		logger.debug("Labjack setting request to write multiple registers");
-		transaction.setRequest(writeRequest);
-
-		// Execute the transaction repeat times
-		try {
-			logger.info("Executing the Transaction");
-			transaction.execute();
-		} catch (ModbusIOException e) {
-			NoConnection nc = new NoConnection("ModbusIOException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to labjack register number "
-					+ registerNumber, nc);
-			throw nc;
-		} catch (ModbusSlaveException e) {
-			NoConnection nc = new NoConnection("ModBusSlaveException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to LabJack register number "
-					+ registerNumber, nc);
-			throw nc;
-		} catch (ModbusException e) {
-			NoConnection nc = new NoConnection("ModbusException\n"
-					+ e.getMessage(), e.getCause());
-			logger.error("Cannot write to LabJack register number "
-					+ registerNumber, nc);
-			throw new NoConnection("ModBus exception cannot write to register"
-					+ (registerNumber.subtract(new MInteger(6000))) + "\n"
-					+ e.getMessage(), e.getCause());
-		}
+		return new WriteMultipleRegistersRequest(registerNumber.intValue(),
+				registerArray);
 	}
 
 	/**
 	 * this method is used to read from a register/port. The ref and count
 	 * MIntegers are to select the registers that are going to be read. The AIN
 	 * is the value which is going to be read
+	 * 
+	 * @see #readVoltage(int, int, int)
 	 */
 	public MDecimal read(MInteger ref, MInteger count, MInteger AIN)
 			throws NoConnection, IOException {
+		double voltage = readVoltage(ref.intValue(), count.intValue(),
+				AIN.intValue());
+		logger.info("Returning {} .Volts read from AIN {} .", voltage, AIN);
+		return new MDecimal(voltage);
+	}
+
+	/**
+	 * Hot path variant of {@link #read(MInteger, MInteger, MInteger)}. The
+	 * voltage is decoded straight from the register words into a primitive,
+	 * so apart from the Modbus transaction itself nothing is allocated per
+	 * call.
+	 * 
+	 * @param ref
+	 *            the first register to read
+	 * @param count
+	 *            the number of registers to read
+	 * @param AIN
+	 *            the analog input, relative to ref, which is going to be read
+	 * @return the voltage read from the given AIN
+	 * @throws NoConnection
+	 */
+	public double readVoltage(int ref, int count, int AIN)
+			throws NoConnection {
+		ReadMultipleRegistersResponse res = readRegisters(ref, count, "AIN");
+		return decodeFloat(res, AIN * 2);
+	}
+
+	/**
+	 * Reads a contiguous block of analog inputs in a single Modbus transaction.
+	 * Each AIN occupies two registers, hence a scan of <i>channels</i> inputs
+	 * starting at <i>firstAIN</i> is served by one request for
+	 * <i>2 * channels</i> registers instead of one request per input.
+	 * 
+	 * @param firstAIN
+	 *            the first analog input of the scan list
+	 * @param channels
+	 *            the number of consecutive analog inputs to read
+	 * @return the voltages read, where element i holds AIN firstAIN + i
+	 * @throws NoConnection
+	 * @throws OutOfRange
+	 *             if the scan list exceeds the inputs available on this model
+	 * @see #getAINCount()
+	 */
+	public double[] readScan(MInteger firstAIN, MInteger channels)
+			throws NoConnection, OutOfRange {
+		double[] voltages = new double[channels.intValue()];
+		readScan(firstAIN.intValue(), channels.intValue(), voltages);
+		return voltages;
+	}
 
-		logger.info("Preparing the Transaction");
-		ModbusTCPTransaction transaction = new ModbusTCPTransaction(
-				readConnection);
+	/**
+	 * Reads a contiguous block of analog inputs in a single Modbus transaction
+	 * into a caller-supplied array. Polling loops should hold on to the array
+	 * and pass it in on every scan so that no sample buffer is allocated per
+	 * poll.
+	 * 
+	 * @param firstAIN
+	 *            the first analog input of the scan list
+	 * @param channels
+	 *            the number of consecutive analog inputs to read
+	 * @param voltages
+	 *            the array receiving the voltages, where element i holds AIN
+	 *            firstAIN + i. It must hold at least <i>channels</i> elements.
+	 * @throws NoConnection
+	 * @throws OutOfRange
+	 *             if the scan list exceeds the inputs available on this model
+	 *             or the size of the supplied array
+	 * @see #getAINCount()
+	 */
+	public void readScan(int firstAIN, int channels, double[] voltages)
+			throws NoConnection, OutOfRange {
+		if (firstAIN < 0 || channels < 1
+				|| firstAIN + channels > getAINCount()) {
+			OutOfRange e = new OutOfRange("Scan of " + channels
+					+ " AINs starting from AIN " + firstAIN
+					+ " exceeds the " + getAINCount() + " analog inputs");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		if (voltages.length < channels) {
+			OutOfRange e = new OutOfRange("Sample buffer of length "
+					+ voltages.length + " cannot hold " + channels + " AINs");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		ReadMultipleRegistersResponse res = readRegisters(firstAIN * 2,
+				channels * 2, "AIN scan");
+		for (int i = 0; i < channels; i++) {
+			voltages[i] = decodeFloat(res, i * 2);
+		}
+		logger.debug("Read {} . AINs starting from AIN {} .", channels,
+				firstAIN);
+	}
+
+	/**
+	 * Returns the number of analog inputs which can be addressed on this
+	 * LabJack model.
+	 * 
+	 * @return the number of analog inputs
+	 */
+	public abstract int getAINCount();
+
+	/**
+	 * Executes a single read multiple registers transaction on the read
+	 * connection
+	 * 
+	 * @param ref
+	 *            the first register to read
+	 * @param count
+	 *            the number of registers to read
+	 * @param source
+	 *            a description of what is being read, used for logging
+	 * @return the response holding the registers read
+	 * @throws NoConnection
+	 */
+	private ReadMultipleRegistersResponse readRegisters(int ref, int count,
+			String source) throws NoConnection {
 		ReadMultipleRegistersRequest req = new ReadMultipleRegistersRequest(
-				ref.intValue(), count.intValue());
-		ReadMultipleRegistersResponse res = null;
+				ref, count);
 
 		logger.debug("Labjack setting request to read multiple registers");
-		transaction.setRequest(req);
+		return (ReadMultipleRegistersResponse) execute(readPipeline, req,
+				"Cannot read from LabJack ", source);
+	}
+
+	/**
+	 * Asynchronous read of multiple registers. The request is pipelined on the
+	 * read connection, so several reads may be in flight at once. The response
+	 * is a {@link ReadMultipleRegistersResponse} from which voltages can be
+	 * decoded with {@link #getVoltage(ModbusResponse, int)}.
+	 * 
+	 * @param ref
+	 *            the first register to read
+	 * @param count
+	 *            the number of registers to read
+	 * @param listener
+	 *            notified on the reader thread when the response arrives, may
+	 *            be null
+	 * @return the future response of the LabJack
+	 * @throws NoConnection
+	 *             if the request cannot be sent
+	 */
+	public Future<ModbusResponse> readRegistersAsync(int ref, int count,
+			ITransactionListener listener) throws NoConnection {
+		ReadMultipleRegistersRequest req = new ReadMultipleRegistersRequest(
+				ref, count);
+		return submit(readPipeline, req, listener,
+				"Cannot read from LabJack register ", ref);
+	}
+
+	/**
+	 * Decodes the voltage of an AIN from the response to an asynchronous read
+	 * 
+	 * @param response
+	 *            the response to a read multiple registers request
+	 * @param AIN
+	 *            the analog input, relative to the first register read
+	 * @return the voltage of the given AIN
+	 * @see #readRegistersAsync(int, int, ITransactionListener)
+	 */
+	public static double getVoltage(ModbusResponse response, int AIN) {
+		return decodeFloat((ReadMultipleRegistersResponse) response, AIN * 2);
+	}
 
+	/**
+	 * Executes a transaction through the given pipeline and waits for its
+	 * response, translating Modbus failures into a NoConnection
+	 * 
+	 * @param pipeline
+	 *            the pipeline of the connection to use
+	 * @param request
+	 *            the request to execute
+	 * @param error
+	 *            the error message logged on failure
+	 * @param target
+	 *            the register or input appended to the error message
+	 * @return the response of the LabJack
+	 * @throws NoConnection
+	 */
+	private static ModbusResponse execute(ModbusPipeline pipeline,
+			ModbusRequest request, String error, Object target)
+			throws NoConnection {
 		try {
-			logger.info("Executing the Transaction");
-			transaction.execute();
+			logger.debug("Executing the Transaction");
+			return pipeline.execute(request);
 		} catch (ModbusIOException e) {
 			NoConnection nc = new NoConnection("ModbusIOException\n"
 					+ e.getMessage(), e.getCause());
-			logger.error("Cannot read from LabJack AIN " + AIN, nc);
+			logger.error(error + target, nc);
 			throw nc;
 		} catch (ModbusSlaveException e) {
 			NoConnection nc = new NoConnection("ModBusSlaveException\n"
 					+ e.getMessage(), e.getCause());
-			logger.error("Cannot read from LabJack AIN " + AIN, nc);
+			logger.error(error + target, nc);
 			throw nc;
 		} catch (ModbusException e) {
 			NoConnection nc = new NoConnection("ModbusException\n"
 					+ e.getMessage(), e.getCause());
-			logger.error("Cannot read from LabJack AIN " + AIN, nc);
+			logger.error(error + target, nc);
 			throw nc;
 		}
+	}
 
-		res = (ReadMultipleRegistersResponse) transaction.getResponse();
-		logger.debug("Setting registers value for the AIN");
-		int reg1 = AIN.multiply(new MInteger(2)).intValue();
-		int reg2 = (AIN.multiply(new MInteger(2))).add(new MInteger(1))
-				.intValue();
-		logger.debug("First 8bit register is set to LSB, Second 8bit register set to MSB");
-		byte[] lsb = res.getRegister(reg1).toBytes();
-		byte[] msb = res.getRegister(reg2).toBytes();
-		logger.debug("Combinging the reg1 and reg2 as a 16bit register");
-		byte[] both = { lsb[0], lsb[1], msb[0], msb[1] };
-
-		ByteArrayInputStream bais = new ByteArrayInputStream(both);
-		DataInputStream din = new DataInputStream(bais);
-		double voltage = din.readFloat();
-		logger.info("Returning {} .Volts read from AIN {} .", voltage, AIN);
-		return new MDecimal(voltage);
+	private static Future<ModbusResponse> submit(ModbusPipeline pipeline,
+			ModbusRequest request, ITransactionListener listener, String error,
+			Object target) throws NoConnection {
+		try {
+			return pipeline.submit(request, listener);
+		} catch (ModbusIOException e) {
+			NoConnection nc = new NoConnection("ModbusIOException\n"
+					+ e.getMessage(), e.getCause());
+			logger.error(error + target, nc);
+			throw nc;
+		}
+	}
+
+	/**
+	 * Decodes the IEEE-754 float held in two consecutive registers of a
+	 * response, the first register holding the most significant word
+	 * 
+	 * @param res
+	 *            the response holding the registers
+	 * @param reg
+	 *            the index of the first of the two registers
+	 * @return the decoded value
+	 */
+	private static double decodeFloat(ReadMultipleRegistersResponse res,
+			int reg) {
+		return decodeFloat(res.getRegisterValue(reg),
+				res.getRegisterValue(reg + 1));
+	}
+
+	/**
+	 * Decodes an IEEE-754 float from its two 16 bit register words
+	 * 
+	 * @param msw
+	 *            the unsigned value of the register holding the most
+	 *            significant word
+	 * @param lsw
+	 *            the unsigned value of the register holding the least
+	 *            significant word
+	 * @return the decoded value
+	 */
+	static double decodeFloat(int msw, int lsw) {
+		return Float.intBitsToFloat((msw << 16) | (lsw & 0xFFFF));
 	}
 
 	public void readOne() {
-		ModbusTCPTransaction transaction = new ModbusTCPTransaction(
-				readConnection);
 		ReadInputDiscretesRequest req = null; // the request
 		ReadInputDiscretesResponse res = null; // the response
 		req = new ReadInputDiscretesRequest(1, 3);
-		transaction.setRequest(req);
 		try {
-			transaction.execute();
+			res = (ReadInputDiscretesResponse) readPipeline.execute(req);
 		} catch (ModbusIOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -673,7 +1245,6 @@ public abstract class LabJack {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		res = (ReadInputDiscretesResponse) transaction.getResponse();
 		System.out.println("Digital Inputs Status="
 				+ res.getDiscretes().toString());
 	}
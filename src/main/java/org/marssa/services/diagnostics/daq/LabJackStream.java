@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.NoConnection;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.footprint.logger.MMarker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Continuous acquisition of a scan list of analog inputs. A dedicated thread
+ * reads the scan list at a fixed rate with {@link LabJack#readScan} and pushes
+ * every scan, together with its timestamp, into a preallocated lock-free ring
+ * buffer. Consumers drain the buffer in batches instead of issuing their own
+ * blocking reads.
+ * <p>
+ * Every scan is a single Modbus transaction, hence the highest achievable
+ * scan rate is bounded by the round trip time to the LabJack. Scans which
+ * cannot be taken on time are counted as missed rather than queued up, and
+ * scans which find the buffer full are dropped and counted.
+ * <p>
+ * Only one thread may drain a stream at a time.
+ */
+public class LabJackStream {
+
+	private static Logger logger = LoggerFactory.getLogger(LabJackStream.class
+			.getName());
+
+	private final LabJack labJack;
+	private final int firstAIN;
+	private final int channels;
+	private final long scanPeriod;
+	private final ScanRingBuffer buffer;
+
+	private final AtomicLong droppedScans = new AtomicLong();
+	private final AtomicLong missedScans = new AtomicLong();
+	private final AtomicLong failedScans = new AtomicLong();
+
+	private volatile boolean running = false;
+	private Thread acquisitionThread;
+
+	/**
+	 * @param labJack
+	 *            the LabJack to acquire from
+	 * @param firstAIN
+	 *            the first analog input of the scan list
+	 * @param channels
+	 *            the number of consecutive analog inputs in the scan list
+	 * @param scanRate
+	 *            the number of scans per second
+	 * @param capacity
+	 *            the number of scans the buffer can hold before scans are
+	 *            dropped
+	 * @throws OutOfRange
+	 *             if the scan list exceeds the inputs of the LabJack or the
+	 *             rate or capacity are not positive
+	 */
+	public LabJackStream(LabJack labJack, MInteger firstAIN,
+			MInteger channels, MInteger scanRate, MInteger capacity)
+			throws OutOfRange {
+		if (firstAIN.intValue() < 0 || channels.intValue() < 1
+				|| firstAIN.intValue() + channels.intValue() > labJack
+						.getAINCount()) {
+			OutOfRange e = new OutOfRange("Scan of " + channels
+					+ " AINs starting from AIN " + firstAIN + " exceeds the "
+					+ labJack.getAINCount() + " analog inputs");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		if (scanRate.intValue() < 1 || capacity.intValue() < 1) {
+			OutOfRange e = new OutOfRange(
+					"Scan rate and capacity must be greater than 0");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		this.labJack = labJack;
+		this.firstAIN = firstAIN.intValue();
+		this.channels = channels.intValue();
+		this.scanPeriod = 1000000000L / scanRate.intValue();
+		this.buffer = new ScanRingBuffer(this.channels, capacity.intValue());
+		Object[] streamInformation = { channels, firstAIN, scanRate };
+		logger.info(
+				"Streaming {} . AINs starting from AIN {} . at {} . scans per second",
+				streamInformation);
+	}
+
+	/**
+	 * Starts the acquisition thread
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		acquisitionThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acquire();
+			}
+		}, "LabJack stream " + labJack.getHost() + ":" + labJack.getPort());
+		acquisitionThread.setDaemon(true);
+		acquisitionThread.setPriority(Thread.MAX_PRIORITY);
+		acquisitionThread.start();
+	}
+
+	/**
+	 * Stops the acquisition thread and waits for it to terminate. Scans which
+	 * have already been buffered can still be drained.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = acquisitionThread;
+			acquisitionThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Moves the oldest buffered scans to the given arrays.
+	 *
+	 * @param voltages
+	 *            receives the voltages of the scans, where element
+	 *            <i>scan * channels + i</i> holds AIN <i>firstAIN + i</i>. It
+	 *            must hold at least <i>maxScans * channels</i> elements.
+	 * @param timestamps
+	 *            receives the {@link System#nanoTime()} at which every scan
+	 *            was requested. It must hold at least <i>maxScans</i>
+	 *            elements.
+	 * @param maxScans
+	 *            the maximum number of scans to drain
+	 * @return the number of scans drained, 0 if none are available
+	 */
+	public int drain(double[] voltages, long[] timestamps, int maxScans) {
+		return buffer.drain(voltages, timestamps, maxScans);
+	}
+
+	/**
+	 * Returns the number of scans waiting to be drained
+	 */
+	public int available() {
+		return buffer.size();
+	}
+
+	public int getChannels() {
+		logger.trace(MMarker.GETTER, "Returning channels {} .", channels);
+		return channels;
+	}
+
+	/**
+	 * Returns the number of scans dropped because the buffer was full
+	 */
+	public long getDroppedScans() {
+		return droppedScans.get();
+	}
+
+	/**
+	 * Returns the number of scan periods skipped because a scan overran its
+	 * period
+	 */
+	public long getMissedScans() {
+		return missedScans.get();
+	}
+
+	/**
+	 * Returns the number of scans which failed to be read from the LabJack
+	 */
+	public long getFailedScans() {
+		return failedScans.get();
+	}
+
+	private void acquire() {
+		double[] scan = new double[channels];
+		long next = System.nanoTime();
+		while (running) {
+			long now = System.nanoTime();
+			if (now < next) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+			try {
+				labJack.readScan(firstAIN, channels, scan);
+				if (!buffer.offer(next, scan))
+					droppedScans.incrementAndGet();
+			} catch (NoConnection e) {
+				failedScans.incrementAndGet();
+			} catch (OutOfRange e) {
+				// The scan list was validated in the constructor
+				logger.error("OutOfRange Exception", e);
+				running = false;
+			}
+			next += scanPeriod;
+			now = System.nanoTime();
+			if (now - next >= scanPeriod) {
+				long behind = (now - next) / scanPeriod;
+				missedScans.addAndGet(behind);
+				next += behind * scanPeriod;
+			}
+		}
+		logger.info("Stopped streaming from AIN {} .", firstAIN);
+	}
+}
@@ -19,13 +19,10 @@
 package org.marssa.services.diagnostics.daq;
 
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.marssa.footprint.datatypes.MString;
 import org.marssa.footprint.datatypes.integer.MInteger;
 import org.marssa.footprint.exceptions.NoConnection;
-import org.marssa.footprint.logger.MMarker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +35,13 @@ public class LabJackU3 extends LabJack {
 	private static Logger logger = LoggerFactory.getLogger(LabJackU3.class
 			.getName());
 
-	static private LabJackConnections connectionPairs = new LabJackConnections();
+	/**
+	 * The number of analog inputs which can be read from the LabJack U3
+	 * 
+	 * @see <a
+	 *      href="http://labjack.com/support/u3/users-guide/2.6">http://labjack.com/support/u3/users-guide/2.6</a>
+	 */
+	static public final MInteger AIN_COUNT = new MInteger(16);
 
 	private LabJackU3(MString host, MInteger port, TimersEnabledU3 numTimers)
 			throws UnknownHostException, NoConnection {
@@ -46,6 +49,11 @@ public class LabJackU3 extends LabJack {
 		this.write(NUM_TIMERS_ENABLED_ADDR, new MInteger(numTimers.ordinal()));
 	}
 
+	@Override
+	public int getAINCount() {
+		return AIN_COUNT.intValue();
+	}
+
 	/**
 	 * The number of timers which have been enable for this instance of the
 	 * LabJack class
@@ -239,8 +247,9 @@ public class LabJackU3 extends LabJack {
 	 * @throws UnknownHostException
 	 * @throws NoConnection
 	 * @see TimersEnabledU3
+	 * @see LabJack#release()
 	 */
-	public static synchronized LabJackU3 getInstance(MString host, MInteger port)
+	public static LabJackU3 getInstance(MString host, MInteger port)
 			throws UnknownHostException, NoConnection {
 
 		return getInstance(host, port, TimersEnabledU3.NONE);
@@ -248,7 +257,8 @@ public class LabJackU3 extends LabJack {
 
 	/**
 	 * This method return an instance to the singleton class LabJack<br />
-	 * Note: This method is thread-safe
+	 * Note: This method is thread-safe and does not lock once the connection
+	 * exists
 	 * 
 	 * @param host
 	 *            The host IP to which LabJack is connected
@@ -259,52 +269,20 @@ public class LabJackU3 extends LabJack {
 	 * @throws UnknownHostException
 	 * @throws NoConnection
 	 * @see TimersEnabledU3
+	 * @see LabJack#release()
 	 */
-	public static synchronized LabJackU3 getInstance(MString host,
-			MInteger port, TimersEnabledU3 numTimers)
+	public static LabJackU3 getInstance(MString host,
+			MInteger port, final TimersEnabledU3 numTimers)
 			throws UnknownHostException, NoConnection {
 
 		logger.info("Getting a Labjack Instance");
-		LabJackConnection<LabJackU3> connection = connectionPairs
-				.getConnection(host, port, numTimers);
-		logger.debug(MMarker.GETTER, "Returning connection.lj");
-		return connection.lj;
-	}
-
-	private static final class LabJackConnections implements
-			Iterator<LabJackConnection<LabJackU3>> {
-		// static private Set<LabJackConnection> activeConnections;
-		static private ArrayList<LabJackConnection<LabJackU3>> activeConnections = new ArrayList<LabJack.LabJackConnection<LabJackU3>>();
-
-		@Override
-		public boolean hasNext() {
-			return activeConnections.iterator().hasNext();
-		}
-
-		@Override
-		public LabJackConnection<LabJackU3> next() {
-			return activeConnections.iterator().next();
-		}
-
-		@Override
-		public void remove() {
-			activeConnections.iterator().remove();
-		}
-
-		public LabJackConnection<LabJackU3> getConnection(MString host,
-				MInteger port, TimersEnabledU3 numTimers)
-				throws UnknownHostException, NoConnection {
-			if (activeConnections != null) {
-				for (LabJackConnection<LabJackU3> conn : activeConnections) {
-					if (conn.inUse(host, port))
-						return conn;
-				}
-			}
-			LabJackU3 lj = new LabJackU3(host, port, numTimers);
-			LabJackConnection<LabJackU3> newConnectionPair = new LabJackConnection<LabJackU3>(
-					host, port, lj);
-			activeConnections.add(newConnectionPair);
-			return newConnectionPair;
-		}
+		return getConnection(host, port, LabJackU3.class,
+				new LabJackFactory<LabJackU3>() {
+					@Override
+					public LabJackU3 create(MString host, MInteger port)
+							throws UnknownHostException, NoConnection {
+						return new LabJackU3(host, port, numTimers);
+					}
+				});
 	}
 }
@@ -19,13 +19,10 @@
 package org.marssa.services.diagnostics.daq;
 
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.marssa.footprint.datatypes.MString;
 import org.marssa.footprint.datatypes.integer.MInteger;
 import org.marssa.footprint.exceptions.NoConnection;
-import org.marssa.footprint.logger.MMarker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +35,13 @@ public class LabJackUE9 extends LabJack {
 	private static Logger logger = LoggerFactory.getLogger(LabJackUE9.class
 			.getName());
 
-	static private LabJackConnections connectionPairs = new LabJackConnections();
+	/**
+	 * The number of analog inputs which can be read from the LabJack UE9
+	 * 
+	 * @see <a
+	 *      href="http://labjack.com/support/ue9/users-guide/2.7">http://labjack.com/support/ue9/users-guide/2.7</a>
+	 */
+	static public final MInteger AIN_COUNT = new MInteger(14);
 
 	private LabJackUE9(MString host, MInteger port, TimersEnabledUE9 numTimers)
 			throws UnknownHostException, NoConnection {
@@ -46,6 +49,11 @@ public class LabJackUE9 extends LabJack {
 		this.write(NUM_TIMERS_ENABLED_ADDR, new MInteger(numTimers.ordinal()));
 	}
 
+	@Override
+	public int getAINCount() {
+		return AIN_COUNT.intValue();
+	}
+
 	/**
 	 * The number of timers which have been enabled for this instance of the
 	 * LabJack class
@@ -229,8 +237,9 @@ public class LabJackUE9 extends LabJack {
 	 * @throws UnknownHostException
 	 * @throws NoConnection
 	 * @see TimersEnabledUE9
+	 * @see LabJack#release()
 	 */
-	public static synchronized LabJackUE9 getInstance(MString host,
+	public static LabJackUE9 getInstance(MString host,
 			MInteger port) throws UnknownHostException, NoConnection {
 		return getInstance(host, port, TimersEnabledUE9.NONE);
 	}
@@ -249,52 +258,20 @@ public class LabJackUE9 extends LabJack {
 	 * @throws UnknownHostException
 	 * @throws NoConnection
 	 * @see TimersEnabledUE9
+	 * @see LabJack#release()
 	 */
-	public static synchronized LabJackUE9 getInstance(MString host,
-			MInteger port, TimersEnabledUE9 numTimers)
+	public static LabJackUE9 getInstance(MString host,
+			MInteger port, final TimersEnabledUE9 numTimers)
 			throws UnknownHostException, NoConnection {
 
 		logger.info("Getting a Labjack Instance");
-		LabJackConnection<LabJackUE9> connection = connectionPairs
-				.getConnection(host, port, numTimers);
-		logger.debug(MMarker.GETTER, "Returning connection.lj");
-		return connection.lj;
-	}
-
-	private static final class LabJackConnections implements
-			Iterator<LabJackConnection<LabJackUE9>> {
-		static private ArrayList<LabJackConnection<LabJackUE9>> activeConnections = new ArrayList<LabJack.LabJackConnection<LabJackUE9>>();
-
-		@Override
-		public boolean hasNext() {
-			return activeConnections.iterator().hasNext();
-		}
-
-		@Override
-		public LabJackConnection<LabJackUE9> next() {
-			return activeConnections.iterator().next();
-		}
-
-		@Override
-		public void remove() {
-			activeConnections.iterator().remove();
-		}
-
-		public LabJackConnection<LabJackUE9> getConnection(MString host,
-				MInteger port, TimersEnabledUE9 numTimers)
-				throws UnknownHostException, NoConnection {
-			if (activeConnections != null) {
-				for (LabJackConnection<LabJackUE9> conn : activeConnections) {
-					if (conn.inUse(host, port))
-						return conn;
-				}
-			}
-			LabJackUE9 lj = new LabJackUE9(host, port, numTimers);
-			LabJackConnection<LabJackUE9> newConnectionPair = new LabJackConnection<LabJackUE9>(
-					host, port, lj);
-			activeConnections.add(newConnectionPair);
-			return newConnectionPair;
-		}
+		return getConnection(host, port, LabJackUE9.class,
+				new LabJackFactory<LabJackUE9>() {
+					@Override
+					public LabJackUE9 create(MString host, MInteger port)
+							throws UnknownHostException, NoConnection {
+						return new LabJackUE9(host, port, numTimers);
+					}
+				});
 	}
-
 }
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTCPTransport;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.net.TCPMasterConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipelines Modbus TCP transactions over a single connection. Requests are
+ * written as soon as they are submitted, up to a bounded number in flight,
+ * and a dedicated reader thread matches every response to its request by the
+ * Modbus transaction ID.
+ * <p>
+ * Once a connection is handed to a pipeline, every request on that
+ * connection has to go through the pipeline since the reader thread owns the
+ * input side of the socket.
+ */
+final class ModbusPipeline {
+
+	private static Logger logger = LoggerFactory.getLogger(ModbusPipeline.class
+			.getName());
+
+	private final TCPMasterConnection connection;
+	private final ModbusTCPTransport transport;
+	private final Object writeLock = new Object();
+	private final ConcurrentHashMap<Integer, PendingTransaction> pending = new ConcurrentHashMap<Integer, PendingTransaction>();
+	private final AtomicInteger transactionID = new AtomicInteger();
+	private final Semaphore window;
+	private final long responseTimeout;
+	private final Thread reader;
+	private volatile boolean running = true;
+
+	/**
+	 * A request which has been written to the connection and is waiting for
+	 * its response
+	 */
+	final class PendingTransaction implements Future<ModbusResponse> {
+		private final int id;
+		private final ITransactionListener listener;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile ModbusResponse response;
+		private volatile ModbusException failure;
+		private volatile boolean cancelled;
+
+		private PendingTransaction(int id, ITransactionListener listener) {
+			this.id = id;
+			this.listener = listener;
+		}
+
+		private void complete(ModbusResponse response) {
+			this.response = response;
+			done.countDown();
+			if (listener != null)
+				listener.transactionCompleted(response);
+		}
+
+		private void fail(ModbusException failure) {
+			this.failure = failure;
+			done.countDown();
+			if (listener != null)
+				listener.transactionFailed(failure);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (pending.remove(id, this)) {
+				window.release();
+				cancelled = true;
+				done.countDown();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public ModbusResponse get() throws InterruptedException,
+				ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public ModbusResponse get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException("No response for transaction " + id);
+			return result();
+		}
+
+		private ModbusResponse result() throws ExecutionException {
+			if (cancelled)
+				throw new ExecutionException(new ModbusException(
+						"Transaction " + id + " was cancelled"));
+			if (failure != null)
+				throw new ExecutionException(failure);
+			return response;
+		}
+	}
+
+	/**
+	 * Takes over the given connection. The socket timeout of the connection
+	 * is used as the timeout of the synchronous {@link #execute} while the
+	 * reader thread itself blocks until a response arrives or the pipeline is
+	 * closed.
+	 *
+	 * @param connection
+	 *            an open connection to the slave
+	 * @param depth
+	 *            the maximum number of transactions in flight
+	 * @param name
+	 *            the name given to the reader thread
+	 */
+	ModbusPipeline(TCPMasterConnection connection, int depth, String name) {
+		this.connection = connection;
+		this.transport = (ModbusTCPTransport) connection.getModbusTransport();
+		this.window = new Semaphore(depth);
+		this.responseTimeout = connection.getTimeout();
+		connection.setTimeout(0);
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Writes the request to the connection without waiting for its response
+	 *
+	 * @param request
+	 *            the request to send
+	 * @param listener
+	 *            notified when the response arrives, may be null
+	 * @return the future response
+	 * @throws ModbusIOException
+	 *             if the request cannot be written or the pipeline is closed
+	 */
+	PendingTransaction submit(ModbusRequest request,
+			ITransactionListener listener) throws ModbusIOException {
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModbusIOException("Interrupted while waiting to submit");
+		}
+		if (!running) {
+			window.release();
+			throw new ModbusIOException("Pipeline is closed");
+		}
+		int id = transactionID.incrementAndGet() & 0xFFFF;
+		request.setTransactionID(id);
+		PendingTransaction transaction = new PendingTransaction(id, listener);
+		pending.put(id, transaction);
+		if (!running && pending.remove(id, transaction)) {
+			window.release();
+			throw new ModbusIOException("Pipeline is closed");
+		}
+		try {
+			synchronized (writeLock) {
+				transport.writeMessage(request);
+			}
+		} catch (ModbusIOException e) {
+			if (pending.remove(id, transaction))
+				window.release();
+			throw e;
+		}
+		logger.trace("Submitted transaction {} .", id);
+		return transaction;
+	}
+
+	/**
+	 * Submits the request and waits for its response
+	 *
+	 * @param request
+	 *            the request to send
+	 * @return the response from the slave
+	 * @throws ModbusException
+	 *             if the request fails, times out or the slave returns an
+	 *             exception response
+	 */
+	ModbusResponse execute(ModbusRequest request) throws ModbusException {
+		PendingTransaction transaction = submit(request, null);
+		try {
+			if (responseTimeout > 0)
+				return transaction.get(responseTimeout, TimeUnit.MILLISECONDS);
+			return transaction.get();
+		} catch (TimeoutException e) {
+			transaction.cancel(false);
+			throw new ModbusIOException(e.getMessage());
+		} catch (InterruptedException e) {
+			transaction.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new ModbusIOException("Interrupted while waiting for response");
+		} catch (ExecutionException e) {
+			throw (ModbusException) e.getCause();
+		}
+	}
+
+	/**
+	 * Stops the reader thread, fails all pending transactions and closes the
+	 * connection
+	 */
+	void close() {
+		running = false;
+		connection.close();
+		failAll(new ModbusIOException("Pipeline is closed"));
+	}
+
+	private void readResponses() {
+		while (running) {
+			ModbusResponse response;
+			try {
+				response = transport.readResponse();
+			} catch (ModbusIOException e) {
+				if (running) {
+					logger.error("Cannot read response from LabJack", e);
+					running = false;
+					connection.close();
+				}
+				failAll(e);
+				return;
+			}
+			PendingTransaction transaction = pending.remove(response
+					.getTransactionID());
+			if (transaction == null) {
+				logger.warn("Discarding response to unknown transaction {} .",
+						response.getTransactionID());
+				continue;
+			}
+			window.release();
+			if (response instanceof ExceptionResponse) {
+				transaction.fail(new ModbusSlaveException(
+						((ExceptionResponse) response).getExceptionCode()));
+			} else {
+				transaction.complete(response);
+			}
+		}
+	}
+
+	private void failAll(ModbusException e) {
+		for (Map.Entry<Integer, PendingTransaction> entry : pending.entrySet()) {
+			if (pending.remove(entry.getKey(), entry.getValue())) {
+				window.release();
+				entry.getValue().fail(e);
+			}
+		}
+	}
+}
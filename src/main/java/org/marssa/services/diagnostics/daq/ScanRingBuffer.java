@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer single-consumer ring buffer of scans. Each
+ * scan holds a timestamp and a fixed number of voltages, stored in primitive
+ * arrays so that neither offering nor draining a scan allocates. The producer
+ * and the consumer only synchronise through the ordered writes of the head and
+ * tail counters, hence no locks are taken.
+ */
+final class ScanRingBuffer {
+
+	private final int channels;
+	private final int capacity;
+	private final double[] voltages;
+	private final long[] timestamps;
+
+	// The number of scans ever written, only advanced by the producer
+	private final AtomicLong head = new AtomicLong();
+
+	// The number of scans ever read, only advanced by the consumer
+	private final AtomicLong tail = new AtomicLong();
+
+	ScanRingBuffer(int channels, int capacity) {
+		this.channels = channels;
+		this.capacity = capacity;
+		this.voltages = new double[channels * capacity];
+		this.timestamps = new long[capacity];
+	}
+
+	/**
+	 * Copies a scan into the buffer. Must only be called by the producer.
+	 *
+	 * @param timestamp
+	 *            the time at which the scan was taken
+	 * @param scan
+	 *            the voltages of the scan
+	 * @return false if the buffer is full and the scan was dropped
+	 */
+	boolean offer(long timestamp, double[] scan) {
+		long h = head.get();
+		if (h - tail.get() == capacity)
+			return false;
+		int slot = (int) (h % capacity);
+		timestamps[slot] = timestamp;
+		System.arraycopy(scan, 0, voltages, slot * channels, channels);
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * Copies up to maxScans of the oldest scans out of the buffer. Must only
+	 * be called by the consumer.
+	 *
+	 * @param scans
+	 *            receives the voltages, channels values per scan
+	 * @param times
+	 *            receives the timestamp of every scan
+	 * @param maxScans
+	 *            the maximum number of scans to drain
+	 * @return the number of scans drained
+	 */
+	int drain(double[] scans, long[] times, int maxScans) {
+		long t = tail.get();
+		int available = (int) Math.min(head.get() - t, maxScans);
+		for (int i = 0; i < available; i++) {
+			int slot = (int) ((t + i) % capacity);
+			times[i] = timestamps[slot];
+			System.arraycopy(voltages, slot * channels, scans, i * channels,
+					channels);
+		}
+		tail.lazySet(t + available);
+		return available;
+	}
+
+	int size() {
+		return (int) (head.get() - tail.get());
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.diagnostics.daq;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Shadow copy of the LabJack output registers. It holds the last value
+ * written to every register so that redundant writes can be skipped, and the
+ * writes staged since the last flush so that adjacent registers can be
+ * written with a single request.
+ * <p>
+ * Only the registers for which writing the same value again has no effect
+ * are shadowed: the FIO states and directions, the number of timers enabled,
+ * the timer base clock and divisor, the timer modes, and the values of the
+ * timers in an output mode, where the value only sets the duty cycle or the
+ * frequency. Writing the value of an input timer resets it, hence such writes
+ * and writes to any other register are always sent to the LabJack in the
+ * order they are made.
+ * <p>
+ * The shadowed registers are held in a compact array indexed through the
+ * ranges they belong to, so looking up a register never allocates or locks.
+ */
+final class ShadowRegisters {
+
+	/**
+	 * The maximum number of registers in a write multiple registers request
+	 */
+	static final int MAX_REGISTERS_PER_WRITE = 123;
+
+	private static final int UNKNOWN = -1;
+
+	// The first and last address of each range of shadowed registers
+	private static final int[][] SHADOWED_RANGES = {
+			// FIO0 to FIO19
+			{ 6000, 6019 },
+			// FIO0_DIR to FIO19_DIR
+			{ 6100, 6119 },
+			// Timer base clock and timer clock divisor
+			{ 7000, 7003 },
+			// TIMER0_CONFIG_MODE to TIMER5_CONFIG_MODE
+			{ 7100, 7111 },
+			// TIMER0_VALUE to TIMER5_VALUE, while the timer is an output
+			{ 7200, 7211 },
+			// Number of timers enabled
+			{ 50501, 50501 } };
+
+	private static final int TIMER_MODE_ADDR = 7100;
+	private static final int TIMER_VALUE_ADDR = 7200;
+	private static final int TIMER_VALUE_END = 7211;
+
+	// PWM output 16 bit, PWM output 8 bit and frequency output
+	private static final int[] OUTPUT_MODES = { 0, 1, 7 };
+
+	// The index of the first register of each range in the values
+	private static final int[] OFFSETS = new int[SHADOWED_RANGES.length];
+	private static final int SHADOWED;
+
+	static {
+		int count = 0;
+		for (int i = 0; i < SHADOWED_RANGES.length; i++) {
+			OFFSETS[i] = count;
+			count += SHADOWED_RANGES[i][1] - SHADOWED_RANGES[i][0] + 1;
+		}
+		SHADOWED = count;
+	}
+
+	private final AtomicIntegerArray values = new AtomicIntegerArray(
+			SHADOWED);
+
+	// Writes staged since the last flush, ordered by register address
+	private final TreeMap<Integer, Integer> staged = new TreeMap<Integer, Integer>();
+
+	ShadowRegisters() {
+		invalidateAll();
+	}
+
+	/**
+	 * Returns the index of the register in the values, or -1 if the register
+	 * is never shadowed
+	 */
+	private static int index(int register) {
+		for (int i = 0; i < SHADOWED_RANGES.length; i++) {
+			if (register >= SHADOWED_RANGES[i][0]
+					&& register <= SHADOWED_RANGES[i][1])
+				return OFFSETS[i] + register - SHADOWED_RANGES[i][0];
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if writes to the register are currently idempotent, so
+	 * that they can be skipped when redundant and staged until the next flush
+	 */
+	boolean isShadowed(int register) {
+		if (index(register) < 0)
+			return false;
+		if (register < TIMER_VALUE_ADDR || register > TIMER_VALUE_END)
+			return true;
+		// Each timer has two value and two mode registers
+		int mode = values.get(index(TIMER_MODE_ADDR
+				+ ((register - TIMER_VALUE_ADDR) & ~1)));
+		for (int outputMode : OUTPUT_MODES) {
+			if (mode == outputMode)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the register is shadowed and known to already hold the
+	 * given value
+	 */
+	boolean isCurrent(int register, int value) {
+		return isShadowed(register)
+				&& values.get(index(register)) == (value & 0xFFFF);
+	}
+
+	/**
+	 * Records the value which has been written to the register
+	 */
+	void update(int register, int value) {
+		int index = index(register);
+		if (index < 0)
+			return;
+		int previous = values.getAndSet(index, value & 0xFFFF);
+		if (register >= TIMER_MODE_ADDR && register < TIMER_VALUE_ADDR
+				&& previous != (value & 0xFFFF)) {
+			// The value of a timer is not known once its mode changes
+			int valueRegister = TIMER_VALUE_ADDR
+					+ ((register - TIMER_MODE_ADDR) & ~1);
+			invalidate(valueRegister);
+			invalidate(valueRegister + 1);
+		}
+	}
+
+	/**
+	 * Forgets the value of the register, so that the next write to it is
+	 * always sent to the LabJack
+	 */
+	void invalidate(int register) {
+		int index = index(register);
+		if (index >= 0)
+			values.set(index, UNKNOWN);
+	}
+
+	void invalidateAll() {
+		for (int i = 0; i < SHADOWED; i++) {
+			values.set(i, UNKNOWN);
+		}
+	}
+
+	/**
+	 * Stages a write to a shadowed register until the next flush. A later
+	 * write to the same register replaces the staged value.
+	 */
+	synchronized void stage(int register, int value) {
+		staged.put(register, value & 0xFFFF);
+		update(register, value);
+	}
+
+	/**
+	 * Drops the write staged for the register, if any
+	 */
+	synchronized void unstage(int register) {
+		staged.remove(register);
+	}
+
+	/**
+	 * Removes all the staged writes and coalesces them into as few requests
+	 * as possible. Each request covers a run of consecutive registers, and the
+	 * requests are returned in ascending order of register address.
+	 *
+	 * @return the requests which have to be sent to flush the staged writes
+	 */
+	synchronized List<WriteMultipleRegistersRequest> drain() {
+		List<WriteMultipleRegistersRequest> requests = new ArrayList<WriteMultipleRegistersRequest>();
+		Iterator<Map.Entry<Integer, Integer>> it = staged.entrySet()
+				.iterator();
+		List<SimpleRegister> run = new ArrayList<SimpleRegister>();
+		int first = 0;
+		int next = 0;
+		while (it.hasNext()) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			int register = entry.getKey().intValue();
+			if (!run.isEmpty()
+					&& (register != next || run.size() == MAX_REGISTERS_PER_WRITE)) {
+				requests.add(createRequest(first, run));
+				run.clear();
+			}
+			if (run.isEmpty())
+				first = register;
+			run.add(new SimpleRegister(entry.getValue().intValue()));
+			next = register + 1;
+		}
+		if (!run.isEmpty())
+			requests.add(createRequest(first, run));
+		staged.clear();
+		return requests;
+	}
+
+	private static WriteMultipleRegistersRequest createRequest(int first,
+			List<SimpleRegister> run) {
+		return new WriteMultipleRegistersRequest(first,
+				run.toArray(new SimpleRegister[run.size()]));
+	}
+}
@@ -15,12 +15,7 @@
  */
 package org.marssa.services.navigation;
 
-import net.sf.marineapi.nmea.event.SentenceEvent;
-import net.sf.marineapi.nmea.event.SentenceListener;
 import net.sf.marineapi.nmea.io.SentenceReader;
-import net.sf.marineapi.nmea.sentence.DBTSentence;
-import net.sf.marineapi.nmea.sentence.DPTSentence;
-import net.sf.marineapi.nmea.sentence.MTWSentence;
 import net.sf.marineapi.nmea.sentence.SentenceId;
 
 import org.marssa.footprint.datatypes.decimal.distance.ADistance;
@@ -30,6 +25,9 @@ import org.marssa.footprint.datatypes.decimal.temperature.DegreesCelcius;
 import org.marssa.footprint.exceptions.OutOfRange;
 import org.marssa.footprint.interfaces.navigation.IDepthSensor;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.nmea.IRawSentenceHandler;
+import org.marssa.services.nmea.RawSentence;
+import org.marssa.services.nmea.SentenceDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,21 +35,47 @@ import org.slf4j.LoggerFactory;
  * @author Warren Zahra
  * 
  */
-public class DepthSensor implements IDepthSensor, SentenceListener {
+public class DepthSensor implements IDepthSensor {
 	private static final Logger logger = LoggerFactory
 			.getLogger(DepthSensor.class.getName());
 
-	// TODO check if reader variable is really required
-	private final SentenceReader reader;
-
-	Metres depthMeters = null;
-	DegreesCelcius temperatureDegrees = null;
+	// The latest values read, NaN until the first sentence. An empty field
+	// keeps the previous value.
+	private volatile double depthMeters = Double.NaN;
+	private volatile double temperatureDegrees = Double.NaN;
 
 	public DepthSensor(SentenceReader reader) {
-		this.reader = reader;
-		reader.addSentenceListener(this, "MTW");
-		reader.addSentenceListener(this, SentenceId.DBT);
-		reader.addSentenceListener(this, SentenceId.DPT);
+		this(new SentenceDispatcher(reader));
+	}
+
+	public DepthSensor(SentenceDispatcher dispatcher) {
+		// $--MTW,temperature,C
+		dispatcher.addHandler(SentenceId.MTW, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double temperature = sentence.getDouble(0);
+				if (!Double.isNaN(temperature))
+					temperatureDegrees = temperature;
+			}
+		});
+		// $--DBT,feet,f,metres,M,fathoms,F
+		dispatcher.addHandler(SentenceId.DBT, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double depth = sentence.getDouble(2);
+				if (!Double.isNaN(depth))
+					depthMeters = depth;
+			}
+		});
+		// $--DPT,metres,offset
+		dispatcher.addHandler(SentenceId.DPT, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double depth = sentence.getDouble(0);
+				if (!Double.isNaN(depth))
+					depthMeters = depth;
+			}
+		});
 		String[] sentenceIDs = { "MTW", "DBT", "DPT" };
 		logger.info(
 				"A depth sensor with the following Sentence id is instantiated",
@@ -60,52 +84,24 @@ public class DepthSensor implements IDepthSensor, SentenceListener {
 
 	@Override
 	public ADistance getDepthMeters() throws OutOfRange {
-		logger.trace(MMarker.GETTER, "Returning Depth in metres {} .",
-				depthMeters);
-		return depthMeters;
+		double depth = depthMeters;
+		Metres metres = Double.isNaN(depth) ? null : new Metres(depth);
+		logger.trace(MMarker.GETTER, "Returning Depth in metres {} .", metres);
+		return metres;
 	}
 
 	@Override
 	public ATemperature getTemperatureDegrees() {
-		logger.trace(MMarker.GETTER,
-				"Returning Temperature in degreesCelsius {} .",
-				temperatureDegrees);
-		return temperatureDegrees;
-	}
-
-	@Override
-	public void readingPaused() {
-	}
-
-	@Override
-	public void readingStarted() {
-	}
-
-	@Override
-	public void readingStopped() {
-	}
-
-	@Override
-	public void sentenceRead(SentenceEvent event) {
-
-		String sid = event.getSentence().getSentenceId().toString();
-		logger.debug("Sentence received is of Id type", sid);
+		double temperature = temperatureDegrees;
+		DegreesCelcius degrees = null;
 		try {
-			if (sid.equals("MTW")) {
-				MTWSentence mtw = (MTWSentence) event.getSentence();
-				temperatureDegrees = new DegreesCelcius(mtw.getTemperature());
-
-			} else if (sid.equals("DBT")) {
-				DBTSentence dbt = (DBTSentence) event.getSentence();
-				depthMeters = new Metres(dbt.getDepth());
-
-			} else if (sid.equals("DPT")) {
-				DPTSentence dpt = (DPTSentence) event.getSentence();
-				depthMeters = new Metres(dpt.getDepth());
-
-			}
+			if (!Double.isNaN(temperature))
+				degrees = new DegreesCelcius(temperature);
 		} catch (OutOfRange e) {
-			logger.debug("Value is out of range", new OutOfRange());
+			logger.debug("Value is out of range", e);
 		}
+		logger.trace(MMarker.GETTER,
+				"Returning Temperature in degreesCelsius {} .", degrees);
+		return degrees;
 	}
 }
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.navigation;
+
+import java.math.MathContext;
+
+import org.marssa.footprint.datatypes.MDate;
+import org.marssa.footprint.datatypes.composite.Coordinate;
+import org.marssa.footprint.datatypes.composite.Latitude;
+import org.marssa.footprint.datatypes.composite.Longitude;
+import org.marssa.footprint.datatypes.decimal.DegreesDecimal;
+import org.marssa.footprint.datatypes.decimal.MDecimal;
+import org.marssa.footprint.datatypes.decimal.distance.Metres;
+import org.marssa.footprint.datatypes.decimal.speed.Knots;
+import org.marssa.footprint.exceptions.NoValue;
+import org.marssa.footprint.exceptions.OutOfRange;
+
+import de.taimos.gpsd4java.types.TPVObject;
+
+/**
+ * Immutable snapshot of a single GPS fix. All the values are taken from the
+ * same TPV report, so they are consistent with each other, and reading them
+ * does not involve gpsd.
+ */
+public final class GpsFix {
+
+	private final double timestamp;
+	private final double timestampError;
+	private final double latitude;
+	private final double longitude;
+	private final double altitude;
+	private final double course;
+	private final double speed;
+	private final double climbRate;
+	private final long receivedAt;
+
+	/**
+	 * @param tpv
+	 *            the TPV report of the fix
+	 * @param receivedAt
+	 *            the {@link System#nanoTime()} at which the report was
+	 *            received
+	 */
+	GpsFix(TPVObject tpv, long receivedAt) {
+		this(tpv.getTimestamp(), tpv.getTimestampError(), tpv.getLatitude(),
+				tpv.getLongitude(), tpv.getAltitude(), tpv.getCourse(), tpv
+						.getSpeed(), tpv.getClimbRate(), receivedAt);
+	}
+
+	GpsFix(double timestamp, double timestampError, double latitude,
+			double longitude, double altitude, double course, double speed,
+			double climbRate, long receivedAt) {
+		this.timestamp = timestamp;
+		this.timestampError = timestampError;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.altitude = altitude;
+		this.course = course;
+		this.speed = speed;
+		this.climbRate = climbRate;
+		this.receivedAt = receivedAt;
+	}
+
+	/**
+	 * Returns true if the fix was received less than maxAge nanoseconds
+	 * before now
+	 */
+	boolean isFresh(long now, long maxAge) {
+		return now - receivedAt < maxAge;
+	}
+
+	/**
+	 * Returns the {@link System#nanoTime()} at which the fix was received
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	public Coordinate getCoordinate() throws NoValue, OutOfRange {
+		return new Coordinate(new Latitude(new DegreesDecimal(
+				value(latitude, "Latitude"))), new Longitude(
+				new DegreesDecimal(value(longitude, "Longitude"))));
+	}
+
+	public DegreesDecimal getCOG() throws NoValue {
+		return new DegreesDecimal(value(course, "COG"), new MathContext(5));
+	}
+
+	public Knots getSOG() throws NoValue, OutOfRange {
+		return new Knots(value(speed, "SOG"), new MathContext(6));
+	}
+
+	public Metres getAltitude() throws NoValue, OutOfRange {
+		return new Metres(value(altitude, "Altitude"), new MathContext(5));
+	}
+
+	public MDecimal getClimbRate() throws NoValue {
+		return new MDecimal(value(climbRate, "Climb rate"));
+	}
+
+	public MDate getDate() throws NoValue {
+		return new MDate((long) value(timestamp, "Date"));
+	}
+
+	/**
+	 * Returns the estimated error of the timestamp, in seconds
+	 */
+	public MDecimal getEPT() throws NoValue {
+		return new MDecimal(value(timestampError, "EPT"));
+	}
+
+	/**
+	 * Returns the latitude in degrees, or NaN if the fix has no latitude
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+
+	/**
+	 * Returns the longitude in degrees, or NaN if the fix has no longitude
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+
+	/**
+	 * Returns the time of the fix in seconds since the epoch, or NaN if the
+	 * fix has no time
+	 */
+	public double getTimestamp() {
+		return timestamp;
+	}
+
+	// Raw values, NaN where the fix has none, for the fix history
+
+	double rawAltitude() {
+		return altitude;
+	}
+
+	double rawCourse() {
+		return course;
+	}
+
+	double rawSpeed() {
+		return speed;
+	}
+
+	double rawClimbRate() {
+		return climbRate;
+	}
+
+	double rawTimestampError() {
+		return timestampError;
+	}
+
+	private static double value(double value, String name) throws NoValue {
+		if (Double.isNaN(value))
+			throw new NoValue(name + " is not available in this fix");
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "GpsFix [timestamp=" + timestamp + ", latitude=" + latitude
+				+ ", longitude=" + longitude + ", altitude=" + altitude
+				+ ", course=" + course + ", speed=" + speed + "]";
+	}
+}
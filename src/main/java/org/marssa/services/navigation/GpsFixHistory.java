@@ -0,0 +1,281 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.navigation;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.NoValue;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded history of the most recent GPS fixes, ordered by the time of the
+ * fix. The fixes are kept in preallocated parallel primitive arrays, so
+ * recording a fix does not allocate, and the oldest fix is overwritten once
+ * the history is full.
+ * <p>
+ * Registering the history as a fix listener of a {@link GpsReceiver} records
+ * every fix received. Fixes without a time, and fixes which are not newer
+ * than the latest one recorded, are ignored.
+ * <p>
+ * Time range queries copy the matching fixes into a reusable {@link Window},
+ * so that windowed analytics such as track smoothing or speed averages do not
+ * allocate per fix. All times are in milliseconds since the epoch.
+ */
+public class GpsFixHistory implements IGpsFixListener {
+
+	private static Logger logger = LoggerFactory.getLogger(GpsFixHistory.class
+			.getName());
+
+	private final int capacity;
+	private final long[] times;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final double[] speeds;
+	private final double[] courses;
+	private final double[] altitudes;
+	private final double[] climbRates;
+	private final double[] timestampErrors;
+	private final long[] receivedAt;
+
+	// The number of fixes recorded since the history was created or cleared
+	private long count = 0;
+
+	/**
+	 * @param capacity
+	 *            the number of fixes kept
+	 * @throws OutOfRange
+	 *             if the capacity is not positive
+	 */
+	public GpsFixHistory(MInteger capacity) throws OutOfRange {
+		if (capacity.intValue() < 1) {
+			OutOfRange e = new OutOfRange(
+					"Capacity of the fix history must be greater than 0");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		this.capacity = capacity.intValue();
+		times = new long[this.capacity];
+		latitudes = new double[this.capacity];
+		longitudes = new double[this.capacity];
+		speeds = new double[this.capacity];
+		courses = new double[this.capacity];
+		altitudes = new double[this.capacity];
+		climbRates = new double[this.capacity];
+		timestampErrors = new double[this.capacity];
+		receivedAt = new long[this.capacity];
+		logger.info("Keeping a history of {} . GPS fixes", capacity);
+	}
+
+	@Override
+	public void fixReceived(GpsFix fix) {
+		add(fix);
+	}
+
+	/**
+	 * Records a fix
+	 *
+	 * @return false if the fix has no time or is not newer than the latest
+	 *         fix recorded
+	 */
+	public synchronized boolean add(GpsFix fix) {
+		if (Double.isNaN(fix.getTimestamp()))
+			return false;
+		long time = Math.round(fix.getTimestamp() * 1000);
+		if (count > 0 && time <= times[slot(count - 1)])
+			return false;
+		int slot = slot(count);
+		times[slot] = time;
+		latitudes[slot] = fix.getLatitude();
+		longitudes[slot] = fix.getLongitude();
+		speeds[slot] = fix.rawSpeed();
+		courses[slot] = fix.rawCourse();
+		altitudes[slot] = fix.rawAltitude();
+		climbRates[slot] = fix.rawClimbRate();
+		timestampErrors[slot] = fix.rawTimestampError();
+		receivedAt[slot] = fix.getReceivedAt();
+		count++;
+		return true;
+	}
+
+	public MInteger getCapacity() {
+		return new MInteger(capacity);
+	}
+
+	/**
+	 * Returns the number of fixes currently held
+	 */
+	public synchronized int size() {
+		return (int) Math.min(count, capacity);
+	}
+
+	public synchronized void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the fix whose time is nearest to the given time
+	 *
+	 * @param time
+	 *            the time in milliseconds since the epoch
+	 * @throws NoValue
+	 *             if the history is empty
+	 */
+	public synchronized GpsFix getNearest(long time) throws NoValue {
+		if (count == 0) {
+			NoValue e = new NoValue("The fix history is empty");
+			logger.debug("NoValue Exception", e);
+			throw e;
+		}
+		long seq = lowerBound(time);
+		// The fix before may be nearer than the first one not older
+		if (seq == count)
+			seq--;
+		else if (seq > first()
+				&& time - times[slot(seq - 1)] <= times[slot(seq)] - time)
+			seq--;
+		int slot = slot(seq);
+		return new GpsFix(times[slot] / 1000.0, timestampErrors[slot],
+				latitudes[slot], longitudes[slot], altitudes[slot],
+				courses[slot], speeds[slot], climbRates[slot], receivedAt[slot]);
+	}
+
+	/**
+	 * Copies the fixes whose time lies between from and to, both inclusive,
+	 * into the window, oldest first
+	 *
+	 * @param from
+	 *            the start of the range in milliseconds since the epoch
+	 * @param to
+	 *            the end of the range in milliseconds since the epoch
+	 * @param window
+	 *            a window created by this history
+	 * @return the number of fixes copied
+	 */
+	public synchronized int select(long from, long to, Window window) {
+		long start = lowerBound(from);
+		long end = to == Long.MAX_VALUE ? count : lowerBound(to + 1);
+		int size = 0;
+		for (long seq = start; seq < end; seq++, size++) {
+			int slot = slot(seq);
+			window.times[size] = times[slot];
+			window.latitudes[size] = latitudes[slot];
+			window.longitudes[size] = longitudes[slot];
+			window.speeds[size] = speeds[slot];
+			window.courses[size] = courses[slot];
+			window.altitudes[size] = altitudes[slot];
+		}
+		window.size = size;
+		return size;
+	}
+
+	/**
+	 * Creates a window large enough to hold the whole history
+	 */
+	public Window createWindow() {
+		return new Window(capacity);
+	}
+
+	private long first() {
+		return Math.max(0, count - capacity);
+	}
+
+	private int slot(long seq) {
+		return (int) (seq % capacity);
+	}
+
+	/**
+	 * Returns the sequence number of the first fix not older than the time,
+	 * or count if every fix is older
+	 */
+	private long lowerBound(long time) {
+		long low = first();
+		long high = count;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (times[slot(mid)] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Reusable copy of a range of the fix history. Values which the fix did
+	 * not report are NaN.
+	 */
+	public static final class Window {
+
+		private final long[] times;
+		private final double[] latitudes;
+		private final double[] longitudes;
+		private final double[] speeds;
+		private final double[] courses;
+		private final double[] altitudes;
+		private int size = 0;
+
+		private Window(int capacity) {
+			times = new long[capacity];
+			latitudes = new double[capacity];
+			longitudes = new double[capacity];
+			speeds = new double[capacity];
+			courses = new double[capacity];
+			altitudes = new double[capacity];
+		}
+
+		/**
+		 * Returns the number of fixes selected
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the time of the fix in milliseconds since the epoch
+		 */
+		public long getTime(int i) {
+			return times[check(i)];
+		}
+
+		public double getLatitude(int i) {
+			return latitudes[check(i)];
+		}
+
+		public double getLongitude(int i) {
+			return longitudes[check(i)];
+		}
+
+		public double getSpeed(int i) {
+			return speeds[check(i)];
+		}
+
+		public double getCourse(int i) {
+			return courses[check(i)];
+		}
+
+		public double getAltitude(int i) {
+			return altitudes[check(i)];
+		}
+
+		private int check(int i) {
+			if (i < 0 || i >= size)
+				throw new IndexOutOfBoundsException("Fix " + i
+						+ " of a window of " + size);
+			return i;
+		}
+	}
+}
@@ -16,15 +16,15 @@
 package org.marssa.services.navigation;
 
 import java.io.IOException;
-import java.math.MathContext;
-import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONException;
 import org.marssa.footprint.datatypes.MDate;
 import org.marssa.footprint.datatypes.MString;
 import org.marssa.footprint.datatypes.composite.Coordinate;
-import org.marssa.footprint.datatypes.composite.Latitude;
-import org.marssa.footprint.datatypes.composite.Longitude;
 import org.marssa.footprint.datatypes.decimal.DegreesDecimal;
 import org.marssa.footprint.datatypes.decimal.MDecimal;
 import org.marssa.footprint.datatypes.decimal.distance.Metres;
@@ -41,9 +41,11 @@ import org.marssa.services.constants.ServicesConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.taimos.gpsd4java.api.ObjectListener;
 import de.taimos.gpsd4java.backend.GPSdEndpoint;
 import de.taimos.gpsd4java.backend.ResultParser;
 import de.taimos.gpsd4java.types.ParseException;
+import de.taimos.gpsd4java.types.PollObject;
 import de.taimos.gpsd4java.types.TPVObject;
 
 /**
@@ -58,6 +60,21 @@ public class GpsReceiver implements IGpsReceiver {
 	private final MString host;
 	private final MInteger port;
 
+	// The latest fix, either streamed by gpsd or polled, and the time for
+	// which a polled fix is reused
+	private final AtomicReference<GpsFix> lastFix = new AtomicReference<GpsFix>();
+	private volatile long fixFreshness;
+	private volatile long fixTimeout;
+	private final Object pollLock = new Object();
+
+	// Set once gpsd streams fixes in watch mode
+	private volatile boolean streaming = false;
+
+	// Notified when a new fix arrives, only while callers are waiting on it
+	private final Object fixMonitor = new Object();
+	private final AtomicInteger fixWaiters = new AtomicInteger();
+	private final CopyOnWriteArrayList<IGpsFixListener> fixListeners = new CopyOnWriteArrayList<IGpsFixListener>();
+
 	public GpsReceiver(MString host, MInteger port) throws NoValue,
 			NoConnection {
 		logger.info(
@@ -65,9 +82,18 @@ public class GpsReceiver implements IGpsReceiver {
 				host, port);
 		this.host = host;
 		this.port = port;
+		setFixFreshness(ServicesConstants.GPS.FIX_FRESHNESS);
+		setFixTimeout(ServicesConstants.GPS.FIX_TIMEOUT);
 		try {
 			ep = new GPSdEndpoint(host.getContents(), port.intValue(),
 					new ResultParser());
+			ep.addListener(new ObjectListener() {
+				@Override
+				public void handleTPV(TPVObject tpv) {
+					streaming = true;
+					publish(new GpsFix(tpv, System.nanoTime()));
+				}
+			});
 			ep.start();
 			logger.info("GPSD version {} . started", ep.version());
 			logger.info("Enable watch mode for GPSD {} .", ep.watch(true, true));
@@ -85,42 +111,169 @@ public class GpsReceiver implements IGpsReceiver {
 				port);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Sets for how long a fix is reused by the getters before gpsd is polled
+	 * again. Getters called within this window return values from the same
+	 * fix.
 	 * 
-	 * @see
-	 * mise.marssa.interfaces.navigation_equipment.IGpsReceiver#getAzimuth()
+	 * @param fixFreshness
+	 *            the window in milliseconds, 0 to poll on every call
 	 */
-	@Override
-	public DegreesInteger getAzimuth() {
-		// TODO Auto-generated method stub
-		return null;
+	public void setFixFreshness(MInteger fixFreshness) {
+		logger.info(MMarker.SETTER, "Setting fixFreshness to {} ms.",
+				fixFreshness);
+		this.fixFreshness = fixFreshness.longValue() * 1000000L;
 	}
 
-	/*
-	 * (non-Javadoc)
+	public MInteger getFixFreshness() {
+		return new MInteger((int) (fixFreshness / 1000000L));
+	}
+
+	/**
+	 * Sets how old the latest streamed fix may get before the getters stop
+	 * trusting the stream and poll gpsd instead, which surfaces a lost
+	 * connection to the caller.
 	 * 
-	 * @see mise.marssa.interfaces.navigation_equipment.IGpsReceiver#getCOG()
+	 * @param fixTimeout
+	 *            the timeout in milliseconds
 	 */
-	@Override
-	public DegreesDecimal getCOG() throws NoConnection, NoValue {
-		logger.trace(
-				"Getting COG from GPSReceiver with Host: {} and Port: {}.",
-				host, port);
+	public void setFixTimeout(MInteger fixTimeout) {
+		logger.info(MMarker.SETTER, "Setting fixTimeout to {} ms.", fixTimeout);
+		this.fixTimeout = fixTimeout.longValue() * 1000000L;
+	}
+
+	public MInteger getFixTimeout() {
+		return new MInteger((int) (fixTimeout / 1000000L));
+	}
+
+	/**
+	 * Returns a snapshot of the current fix. While gpsd streams fixes in watch
+	 * mode, the latest streamed fix is returned without any I/O. Otherwise a
+	 * single poll of gpsd provides every value of the snapshot, and the
+	 * snapshot is reused until it is older than the fix freshness window.
+	 * 
+	 * @return the current fix
+	 * @throws NoConnection
+	 *             if gpsd cannot be reached
+	 * @throws NoValue
+	 *             if gpsd does not report a fix
+	 * @see #setFixFreshness(MInteger)
+	 * @see #setFixTimeout(MInteger)
+	 */
+	public GpsFix getFix() throws NoConnection, NoValue {
+		GpsFix fix = lastFix.get();
+		if (isCurrent(fix))
+			return fix;
+		synchronized (pollLock) {
+			// Another caller may have polled while this one was waiting
+			fix = lastFix.get();
+			if (isCurrent(fix))
+				return fix;
+			fix = pollFix();
+			publish(fix);
+			return fix;
+		}
+	}
+
+	/**
+	 * Waits for a fix received after the given one
+	 * 
+	 * @param previous
+	 *            the fix to wait past, or null to accept any fix
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return the first fix newer than previous
+	 * @throws NoValue
+	 *             if no newer fix arrives within the timeout
+	 * @throws InterruptedException
+	 */
+	public GpsFix awaitFix(GpsFix previous, MInteger timeout) throws NoValue,
+			InterruptedException {
+		GpsFix fix = lastFix.get();
+		if (isNewer(fix, previous))
+			return fix;
+		long deadline = System.nanoTime() + timeout.longValue() * 1000000L;
+		fixWaiters.incrementAndGet();
+		try {
+			synchronized (fixMonitor) {
+				while (!isNewer(fix = lastFix.get(), previous)) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						NoValue nv = new NoValue("No new fix within "
+								+ timeout + " ms");
+						logger.debug(MMarker.EXCEPTION, "NoValue", nv);
+						throw nv;
+					}
+					TimeUnit.NANOSECONDS.timedWait(fixMonitor, remaining);
+				}
+				return fix;
+			}
+		} finally {
+			fixWaiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Registers a listener notified of every new fix
+	 */
+	public void addFixListener(IGpsFixListener listener) {
+		fixListeners.addIfAbsent(listener);
+	}
+
+	public void removeFixListener(IGpsFixListener listener) {
+		fixListeners.remove(listener);
+	}
+
+	private boolean isCurrent(GpsFix fix) {
+		if (fix == null)
+			return false;
+		long now = System.nanoTime();
+		return fix.isFresh(now, fixFreshness)
+				|| (streaming && fix.isFresh(now, fixTimeout));
+	}
+
+	private static boolean isNewer(GpsFix fix, GpsFix previous) {
+		return fix != null
+				&& (previous == null || fix.getReceivedAt()
+						- previous.getReceivedAt() > 0);
+	}
+
+	/**
+	 * Makes the fix the latest one unless a newer fix has been received in
+	 * the meantime, and notifies the waiters and listeners
+	 */
+	private void publish(GpsFix fix) {
+		while (true) {
+			GpsFix current = lastFix.get();
+			if (current != null && !isNewer(fix, current))
+				return;
+			if (lastFix.compareAndSet(current, fix))
+				break;
+		}
+		// Listeners go first, so that waiters woken up by this fix find it
+		// already seen by every listener
+		for (IGpsFixListener listener : fixListeners) {
+			listener.fixReceived(fix);
+		}
+		if (fixWaiters.get() > 0) {
+			synchronized (fixMonitor) {
+				fixMonitor.notifyAll();
+			}
+		}
+	}
+
+	private GpsFix pollFix() throws NoConnection, NoValue {
+		logger.trace("Polling GPSReceiver with Host: {} and Port: {}.", host,
+				port);
 		for (int i = 0; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
 			try {
-				double cog = ep.poll().getFixes().get(0).getCourse();
-				logger.trace(MMarker.GETTER, "Returning COG {} .", cog);
-				if (Double.isNaN(cog)) {
-					throw new NoValue();
-				} else
-					return new DegreesDecimal(cog, new MathContext(5));
+				PollObject poll = ep.poll();
+				// No reply to the poll is retried like a failed poll
+				if (poll != null && !poll.getFixes().isEmpty())
+					return new GpsFix(poll.getFixes().get(0), System.nanoTime());
 			} catch (IOException e) {
 				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
 					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
-					// TODO should we let host and port in every class be global
-					// so that when another gps is instantiated
-					// we can refer to that particular GPS
 					NoConnection nc = new NoConnection(e.getMessage(),
 							e.getCause());
 					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
@@ -133,22 +286,47 @@ public class GpsReceiver implements IGpsReceiver {
 				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
 					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
 					NoValue nv = new NoValue(
-							"The COG is not available from the GPSReceiver. This is the error message from the gpsd4java library:"
+							"The fix is not available from the GPSReceiver. This is the error message from the gpsd4java library:"
 									+ e.getMessage(), e.getCause());
 					logger.debug(MMarker.EXCEPTION, "NoValue", e);
 					logger.error(
-							"The COG is not available from the GPSReceiver with host: {} and port: {}, The error message is {} and the cause is {} ..",
+							"The fix is not available from the GPSReceiver with host: {} and port: {}, The error message is {} and the cause is {} ..",
 							hoPo);
 					throw nv;
 				}
 			}
 		}
-		// This code is unreachable but was added here to satisfy the compiler.
-		// The try/catch will loop for the RETRY_AMOUNT and if not successful
-		// will return a NoConnection Exception
+		NoValue nv = new NoValue("No fix is available from the GPSReceiver");
+		logger.error(
+				"No fix is available from the GPSReceiver with host: {} and port: {}",
+				host, port);
+		throw nv;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * mise.marssa.interfaces.navigation_equipment.IGpsReceiver#getAzimuth()
+	 */
+	@Override
+	public DegreesInteger getAzimuth() {
+		// TODO Auto-generated method stub
 		return null;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see mise.marssa.interfaces.navigation_equipment.IGpsReceiver#getCOG()
+	 */
+	@Override
+	public DegreesDecimal getCOG() throws NoConnection, NoValue {
+		DegreesDecimal cog = getFix().getCOG();
+		logger.trace(MMarker.GETTER, "Returning COG {} .", cog);
+		return cog;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -157,54 +335,9 @@ public class GpsReceiver implements IGpsReceiver {
 	 */
 	@Override
 	public Coordinate getCoordinate() throws NoConnection, NoValue, OutOfRange {
-		logger.trace(
-				"Getting Coordinate from GPSReceiver with Host: {} and Port: {}.",
-				host, port);
-		for (int i = 0; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
-			try {
-				List<TPVObject> tpvList = ep.poll().getFixes();
-				if (tpvList.isEmpty()) {
-					logger.error("No TPV object could be read",
-							new NoConnection());
-					// throw new NoConnection("No TPV object could be read");
-				}
-				TPVObject tpv = tpvList.get(0);
-				Latitude latitude = new Latitude(new DegreesDecimal(
-						tpv.getLatitude()));
-				Longitude longitude = new Longitude(new DegreesDecimal(
-						tpv.getLongitude()));
-				logger.trace(MMarker.GETTER, "Returning Coordinate: {} .",
-						new Coordinate(latitude, longitude).toString());
-				return new Coordinate(latitude, longitude);
-			} catch (IOException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
-					NoConnection nc = new NoConnection(e.getMessage(),
-							e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
-					logger.error(
-							"Could not connect to the GPS with Host: {} and Port: {}. The error message is {} and the cause is {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (ParseException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
-					NoValue nv = new NoValue(e.getMessage(), e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoValue", e);
-					logger.error(
-							"The Coordinate is not availalbe from the GPSReceiver with host: {} and port: {}, The error message is {} and the cause is {} ..",
-							hoPo);
-					throw nv;
-				}
-			}
-
-		}
-		// This code is unreachable but was added here to satisfy the compiler.
-		// The try/catch will loop for the RETRY_AMOUNT and if not successful
-		// will return a NoConnection Exception
-		// return null;
-		return null;
+		Coordinate coordinate = getFix().getCoordinate();
+		logger.trace(MMarker.GETTER, "Returning Coordinate: {} .", coordinate);
+		return coordinate;
 	}
 
 	/*
@@ -214,45 +347,9 @@ public class GpsReceiver implements IGpsReceiver {
 	 */
 	@Override
 	public MDate getDate() throws NoConnection, NoValue {
-		logger.trace(
-				"Getting Date from GPSReceiver with Host: {} and Port: {}.",
-				host, port);
-		for (int i = 0; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
-			try {
-				double timestamp = ep.poll().getFixes().get(0).getTimestamp();
-				System.out.println(timestamp);
-				logger.trace(MMarker.GETTER, "Returning Date: {} .", new MDate(
-						(long) timestamp).toString());
-				return new MDate((long) timestamp);
-			} catch (IOException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
-					NoConnection nc = new NoConnection(e.getMessage(),
-							e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
-					logger.error(
-							"Could not connect to the GPS with Host: {} and Port: {}. The error message is {} and the cause is {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (ParseException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					NoValue nv = new NoValue(
-							"The Date is not available from the GPSReceiver. This is the error message from the gpsd4java library:"
-									+ e.getMessage(), e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoValue", e);
-					Object[] hoPo = { host, port, e.getMessage(), e.getCause() };
-					logger.error(
-							"The Date is not availalbe from the GPSReceiver with host: {} and port: {}, The error message is {} and the cause is {} ..",
-							hoPo);
-					throw nv;
-				}
-			}
-		}
-		// This code is unreachable but was added here to satisfy the compiler.
-		// The try/catch will loop for the RETRY_AMOUNT and if not successful
-		// will return a NoConnection Exception
-		return null;
+		MDate date = getFix().getDate();
+		logger.trace(MMarker.GETTER, "Returning Date: {} .", date);
+		return date;
 	}
 
 	/*
@@ -263,48 +360,9 @@ public class GpsReceiver implements IGpsReceiver {
 	 */
 	@Override
 	public Metres getAltitude() throws NoConnection, NoValue, OutOfRange {
-		logger.trace(
-				"Getting Altitude from GPSReceiver with Host: {} and Port: {}.",
-				host, port);
-		for (int i = 0; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
-			try {
-				Metres altitude = new Metres(ep.poll().getFixes().get(0)
-						.getAltitude(), new MathContext(5));
-				logger.trace(MMarker.GETTER, "Returning Elevation: {} .",
-						altitude);
-				if (Double.isNaN(altitude.doubleValue())) {
-					throw new NoValue();
-				} else
-					return altitude;
-			} catch (IOException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					Object[] hoPo = { host, port };
-					NoConnection nc = new NoConnection(e.getMessage(),
-							e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
-					logger.error(
-							"Could not connect to the GPS with Host: {} and Port: {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (ParseException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					NoValue nc = new NoValue(
-							"The Altitude is not available from the GPSReceiver."
-									+ e.getMessage(), e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoValue", e);
-					Object[] hoPo = { host, port };
-					logger.error(
-							"The Altitude is not availalbe from the GPSReceiver with host: {} and port: {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (OutOfRange e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		return null;
+		Metres altitude = getFix().getAltitude();
+		logger.trace(MMarker.GETTER, "Returning Elevation: {} .", altitude);
+		return altitude;
 	}
 
 	/*
@@ -411,51 +469,15 @@ public class GpsReceiver implements IGpsReceiver {
 	 */
 	@Override
 	public Knots getSOG() throws NoConnection, NoValue {
-		logger.info(
-				"Getting Speed Over Ground from a GPSReceiver with Host: {} and Port: {}.",
-				host, port);
-		for (int i = 0; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
-			try {
-				double speed = ep.poll().getFixes().get(0).getSpeed();
-				logger.trace(MMarker.GETTER, "Returning SOG: {} .", new Knots(
-						speed, new MathContext(5)));
-				if (Double.isNaN(speed)) {
-					throw new NoValue();
-				} else
-					return new Knots(speed, new MathContext(6));
-
-			} catch (IOException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					Object[] hoPo = { host, port };
-					NoConnection nc = new NoConnection(e.getMessage(),
-							e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
-					logger.error(
-							"Could not connect to the GPS with Host: {} and Port: {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (ParseException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					NoValue nv = new NoValue(
-							"The Altitude is not available from the GPSReceiver."
-									+ e.getMessage(), e.getCause());
-					logger.debug(MMarker.EXCEPTION, "NoValue", e);
-					Object[] hoPo = { host, port };
-					logger.error(
-							"The SOG is not availalbe from the GPSReceiver with host: {} and port: {}",
-							hoPo);
-					throw nv;
-				}
-			} catch (OutOfRange e) {
-				// TODO Auto-generated catch block
-				logger.debug(MMarker.EXCEPTION, "SOG is out of range",
-						new OutOfRange());
-			}
+		try {
+			Knots speed = getFix().getSOG();
+			logger.trace(MMarker.GETTER, "Returning SOG: {} .", speed);
+			return speed;
+		} catch (OutOfRange e) {
+			NoValue nv = new NoValue("SOG is out of range", e);
+			logger.debug(MMarker.EXCEPTION, "SOG is out of range", e);
+			throw nv;
 		}
-		// TODO Auto-generated method stub
-		return null;
-
 	}
 
 	/*
@@ -493,48 +515,8 @@ public class GpsReceiver implements IGpsReceiver {
 
 	@Override
 	public MDecimal getEPT() throws NoConnection, NoValue, OutOfRange {
-		logger.info(
-				"Getting EPT from a GPSReceiver with Host: {} and Port: {}.",
-				host, port);
-		for (int i = 1; i <= ServicesConstants.GENERAL.RETRY_AMOUNT.intValue(); i++) {
-			try {
-				// Suppose to be EPT, description of an EPT is
-				// http://www.devhardware.com/c/a/Mobile-Devices/TomTom-GO-920T-GPS-Review/2/
-				double EPT = ep.poll().getFixes().get(0).getCourse();
-				logger.trace(MMarker.GETTER, "Returning EPT: {} .", new Knots(
-						EPT, new MathContext(5)));
-				// System.out.println("This altitude is " + altitude);
-				if (Double.isNaN(EPT)) {
-					throw new NoValue();
-				} else
-					return new Knots(EPT);
-
-			} catch (IOException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					NoConnection nc = new NoConnection(e.getMessage(),
-							e.getCause());
-					Object[] hoPo = { host, port };
-					logger.debug(MMarker.EXCEPTION, "NoConnection", e);
-					logger.error(
-							"Could not connect to the GPS with Host: {} and Port: {}",
-							hoPo);
-					throw nc;
-				}
-			} catch (ParseException e) {
-				if (i == ServicesConstants.GENERAL.RETRY_AMOUNT.intValue()) {
-					NoValue nv = new NoValue(
-							"The Altitude is not available from the GPSReceiver."
-									+ e.getMessage(), e.getCause());
-					logger.debug(MMarker.EXCEPTION, "IOException", e);
-					Object[] hoPo = { host, port };
-					logger.error(
-							"The EPT is not availalbe from the GPSReceiver with host: {} and port: {}",
-							hoPo);
-					throw nv;
-				}
-			}
-		}
-		return null;
-
+		MDecimal EPT = getFix().getEPT();
+		logger.trace(MMarker.GETTER, "Returning EPT: {} .", EPT);
+		return EPT;
 	}
 }
@@ -0,0 +1,490 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.navigation;
+
+import java.math.MathContext;
+import java.nio.charset.Charset;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.event.SentenceListener;
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceId;
+
+import org.marssa.footprint.datatypes.MDate;
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.composite.Coordinate;
+import org.marssa.footprint.datatypes.composite.Latitude;
+import org.marssa.footprint.datatypes.composite.Longitude;
+import org.marssa.footprint.datatypes.decimal.DegreesDecimal;
+import org.marssa.footprint.datatypes.decimal.MDecimal;
+import org.marssa.footprint.datatypes.decimal.distance.Metres;
+import org.marssa.footprint.datatypes.decimal.speed.Knots;
+import org.marssa.footprint.datatypes.integer.DegreesInteger;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.datatypes.time.Hours;
+import org.marssa.footprint.exceptions.NoConnection;
+import org.marssa.footprint.exceptions.NoValue;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.footprint.interfaces.navigation.IGpsReceiver;
+import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
+import org.marssa.services.nmea.IRawSentenceHandler;
+import org.marssa.services.nmea.NMEATokenizer;
+import org.marssa.services.nmea.RawSentence;
+import org.marssa.services.nmea.SentenceDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GPS receiver fed directly with the NMEA sentences of a GPS, without going
+ * through gpsd. The latest GGA, RMC, VTG and GSA data is kept in primitive
+ * fields, so reading a value costs a few volatile loads and no I/O. The
+ * fields are decoded straight from the {@link RawSentence}s routed by a
+ * {@link SentenceDispatcher}, without creating any object.
+ * <p>
+ * Updates may come from the threads of several sources and are written one
+ * at a time. Values written together, such as the latitude and longitude of
+ * a position, are guarded by a version counter, hence readers never lock
+ * and never see half of an update. Feeding the sentences of a recorded
+ * NMEA file to {@link #sentenceRead(SentenceEvent)} replays a voyage.
+ */
+public class NMEAGpsReceiver implements IGpsReceiver, SentenceListener {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(NMEAGpsReceiver.class.getName());
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// Odd while an update is being written
+	private volatile int version = 0;
+
+	private volatile boolean fixValid = false;
+	private volatile long fixReceivedAt;
+	private volatile double latitude = Double.NaN;
+	private volatile double longitude = Double.NaN;
+	private volatile double altitude = Double.NaN;
+	private volatile double course = Double.NaN;
+	private volatile double speed = Double.NaN;
+	private volatile double hdop = Double.NaN;
+	private volatile double pdop = Double.NaN;
+	private volatile double vdop = Double.NaN;
+	private volatile int satellitesInUse = -1;
+	// Milliseconds since midnight UTC and days since the epoch
+	private volatile long timeOfDay = -1;
+	private volatile long day = -1;
+	private volatile long fixTimeout;
+
+	private final IRawSentenceHandler gga = new IRawSentenceHandler() {
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			readGGA(sentence);
+		}
+	};
+	private final IRawSentenceHandler rmc = new IRawSentenceHandler() {
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			readRMC(sentence);
+		}
+	};
+	private final IRawSentenceHandler vtg = new IRawSentenceHandler() {
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			readVTG(sentence);
+		}
+	};
+	private final IRawSentenceHandler gsa = new IRawSentenceHandler() {
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			readGSA(sentence);
+		}
+	};
+	// Turns the sentences of events back into raw ones
+	private final NMEATokenizer events = new NMEATokenizer();
+
+	/**
+	 * Creates a receiver which is fed by sentence events only
+	 */
+	public NMEAGpsReceiver() {
+		setFixTimeout(ServicesConstants.GPS.FIX_TIMEOUT);
+		events.addHandler(SentenceId.GGA.name(), gga);
+		events.addHandler(SentenceId.RMC.name(), rmc);
+		events.addHandler(SentenceId.VTG.name(), vtg);
+		events.addHandler(SentenceId.GSA.name(), gsa);
+	}
+
+	/**
+	 * @param reader
+	 *            the reader of the NMEA sentences of the GPS
+	 */
+	public NMEAGpsReceiver(SentenceReader reader) {
+		this(new SentenceDispatcher(reader));
+	}
+
+	/**
+	 * @param dispatcher
+	 *            the dispatcher of the NMEA sentences of the GPS
+	 */
+	public NMEAGpsReceiver(SentenceDispatcher dispatcher) {
+		this();
+		dispatcher.addHandler(SentenceId.GGA, gga);
+		dispatcher.addHandler(SentenceId.RMC, rmc);
+		dispatcher.addHandler(SentenceId.VTG, vtg);
+		dispatcher.addHandler(SentenceId.GSA, gsa);
+		String[] sentenceIDs = { "GGA", "RMC", "VTG", "GSA" };
+		logger.info(
+				"A GPS receiver with the following Sentence ids is instantiated {} .",
+				sentenceIDs);
+	}
+
+	/**
+	 * Sets the time after the last valid position for which the position,
+	 * course and speed are still returned
+	 *
+	 * @param fixTimeout
+	 *            the timeout in milliseconds
+	 */
+	public void setFixTimeout(MInteger fixTimeout) {
+		logger.info(MMarker.SETTER, "Setting fixTimeout to {} ms.", fixTimeout);
+		this.fixTimeout = fixTimeout.longValue() * 1000000L;
+	}
+
+	public MInteger getFixTimeout() {
+		return new MInteger((int) (fixTimeout / 1000000L));
+	}
+
+	@Override
+	public void readingPaused() {
+		logger.trace("Reading paused");
+	}
+
+	@Override
+	public void readingStarted() {
+		logger.trace("Reading started");
+	}
+
+	@Override
+	public void readingStopped() {
+		logger.trace("Reading stopped");
+	}
+
+	@Override
+	public void sentenceRead(SentenceEvent event) {
+		Sentence sentence = event.getSentence();
+		byte[] nmea = (sentence.toSentence() + "\r\n").getBytes(ASCII);
+		try {
+			synchronized (events) {
+				events.feed(nmea, 0, nmea.length);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// A field is missing from the sentence
+			logger.debug("Cannot read {} sentence", sentence.getSentenceId(),
+					e);
+		}
+	}
+
+	// $--GGA,time,lat,N,lon,E,quality,satellites,hdop,altitude,M,...
+	private synchronized void readGGA(RawSentence gga) {
+		boolean valid = gga.getInt(5, 0) != 0;
+		double lat = valid ? gga.getPosition(1) : Double.NaN;
+		double lon = valid ? gga.getPosition(3) : Double.NaN;
+		double ggaAltitude = gga.getDouble(8);
+		double ggaHdop = gga.getDouble(7);
+		int satellites = gga.getInt(6, -1);
+		long time = gga.getTime(0);
+
+		beginUpdate();
+		updatePosition(lat, lon);
+		altitude = valid ? ggaAltitude : Double.NaN;
+		hdop = ggaHdop;
+		satellitesInUse = satellites;
+		timeOfDay = time;
+		endUpdate();
+	}
+
+	// $--RMC,time,status,lat,N,lon,E,knots,course,date,variation,E,...
+	private synchronized void readRMC(RawSentence rmc) {
+		boolean valid = rmc.getChar(1) == 'A';
+		double lat = valid ? rmc.getPosition(2) : Double.NaN;
+		double lon = valid ? rmc.getPosition(4) : Double.NaN;
+		// The course is left empty while not moving
+		double rmcSpeed = valid ? rmc.getDouble(6) : Double.NaN;
+		double rmcCourse = valid ? rmc.getDouble(7) : Double.NaN;
+		long time = rmc.getTime(0);
+		long rmcDay = rmc.getDate(8);
+
+		beginUpdate();
+		updatePosition(lat, lon);
+		course = rmcCourse;
+		speed = rmcSpeed;
+		timeOfDay = time;
+		day = rmcDay;
+		endUpdate();
+	}
+
+	// $--VTG,true,T,magnetic,M,knots,N,km/h,K,...
+	private synchronized void readVTG(RawSentence vtg) {
+		double vtgCourse = vtg.getDouble(0);
+		double vtgSpeed = vtg.getDouble(4);
+
+		beginUpdate();
+		course = vtgCourse;
+		speed = vtgSpeed;
+		endUpdate();
+	}
+
+	// $--GSA,mode,fix,12 satellite ids,pdop,hdop,vdop
+	private synchronized void readGSA(RawSentence gsa) {
+		// A fix of 1, or none, means no fix
+		boolean valid = gsa.getInt(1, 1) != 1;
+		double gsaPdop = valid ? gsa.getDouble(14) : Double.NaN;
+		double gsaHdop = valid ? gsa.getDouble(15) : Double.NaN;
+		double gsaVdop = valid ? gsa.getDouble(16) : Double.NaN;
+
+		beginUpdate();
+		pdop = gsaPdop;
+		hdop = gsaHdop;
+		vdop = gsaVdop;
+		if (!valid)
+			fixValid = false;
+		endUpdate();
+	}
+
+	/**
+	 * Stores a valid position, or invalidates the fix if the position is
+	 * NaN. Called within an update.
+	 */
+	private void updatePosition(double lat, double lon) {
+		if (Double.isNaN(lat) || Double.isNaN(lon)) {
+			fixValid = false;
+			return;
+		}
+		latitude = lat;
+		longitude = lon;
+		fixReceivedAt = System.nanoTime();
+		fixValid = true;
+	}
+
+	// Updates are written under the lock of the receiver, hence the
+	// increments need not be atomic
+	private void beginUpdate() {
+		version++;
+	}
+
+	private void endUpdate() {
+		version++;
+	}
+
+	/**
+	 * Throws NoValue unless a valid position was received within the fix
+	 * timeout
+	 */
+	private void checkFix(String name) throws NoValue {
+		if (!fixValid || System.nanoTime() - fixReceivedAt >= fixTimeout) {
+			NoValue nv = new NoValue(name + " is not available, no GPS fix");
+			logger.debug(MMarker.EXCEPTION, "NoValue", nv);
+			throw nv;
+		}
+	}
+
+	private static double value(double value, String name) throws NoValue {
+		if (Double.isNaN(value)) {
+			NoValue nv = new NoValue(name + " is not available");
+			logger.debug(MMarker.EXCEPTION, "NoValue", nv);
+			throw nv;
+		}
+		return value;
+	}
+
+	private static MDecimal decimal(double value) {
+		return Double.isNaN(value) ? null : new MDecimal(value);
+	}
+
+	@Override
+	public DegreesInteger getAzimuth() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public DegreesDecimal getCOG() throws NoConnection, NoValue {
+		checkFix("COG");
+		DegreesDecimal cog = new DegreesDecimal(value(course, "COG"),
+				new MathContext(5));
+		logger.trace(MMarker.GETTER, "Returning COG {} .", cog);
+		return cog;
+	}
+
+	/**
+	 * Returns a snapshot of the latest fix. The position, altitude, course,
+	 * speed and time of the snapshot are read together, hence they are never
+	 * taken from different sentences half way through an update.
+	 *
+	 * @throws NoValue
+	 *             unless a valid position was received within the fix timeout
+	 */
+	public GpsFix getFix() throws NoValue {
+		double lat, lon, alt, cog, sog;
+		long date, time, receivedAt;
+		int v;
+		do {
+			v = version;
+			lat = latitude;
+			lon = longitude;
+			alt = altitude;
+			cog = course;
+			sog = speed;
+			date = day;
+			time = timeOfDay;
+			receivedAt = fixReceivedAt;
+		} while ((v & 1) != 0 || v != version);
+		checkFix("Fix");
+		double timestamp = date < 0 || time < 0 ? Double.NaN
+				: (date * 86400000L + time) / 1000.0;
+		return new GpsFix(timestamp, Double.NaN, lat, lon, alt, cog, sog,
+				Double.NaN, receivedAt);
+	}
+
+	@Override
+	public Coordinate getCoordinate() throws NoConnection, NoValue, OutOfRange {
+		double lat, lon;
+		int v;
+		do {
+			v = version;
+			lat = latitude;
+			lon = longitude;
+		} while ((v & 1) != 0 || v != version);
+		checkFix("Coordinate");
+		Coordinate coordinate = new Coordinate(new Latitude(new DegreesDecimal(
+				lat)), new Longitude(new DegreesDecimal(lon)));
+		logger.trace(MMarker.GETTER, "Returning Coordinate: {} .", coordinate);
+		return coordinate;
+	}
+
+	@Override
+	public MDate getDate() throws NoConnection, NoValue {
+		long date, time;
+		int v;
+		do {
+			v = version;
+			date = day;
+			time = timeOfDay;
+		} while ((v & 1) != 0 || v != version);
+		if (date < 0 || time < 0) {
+			NoValue nv = new NoValue("Date is not available");
+			logger.debug(MMarker.EXCEPTION, "NoValue", nv);
+			throw nv;
+		}
+		MDate mDate = new MDate(date * 86400000L + time);
+		logger.trace(MMarker.GETTER, "Returning Date: {} .", mDate);
+		return mDate;
+	}
+
+	@Override
+	public Metres getAltitude() throws NoConnection, NoValue, OutOfRange {
+		checkFix("Altitude");
+		Metres metres = new Metres(value(altitude, "Altitude"),
+				new MathContext(5));
+		logger.trace(MMarker.GETTER, "Returning Elevation: {} .", metres);
+		return metres;
+	}
+
+	@Override
+	public MDecimal getHDOP() {
+		return decimal(hdop);
+	}
+
+	@Override
+	public Hours getLocalZoneTime() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public MDecimal getPDOP() {
+		return decimal(pdop);
+	}
+
+	@Override
+	public MInteger getSatelliteID() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public MInteger getSatelliteInView() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public MInteger getSatellitesInUse() {
+		int satellites = satellitesInUse;
+		return satellites < 0 ? null : new MInteger(satellites);
+	}
+
+	@Override
+	public MDecimal getSignalSrength() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public MDecimal getSNR() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public Knots getSOG() throws NoConnection, NoValue {
+		checkFix("SOG");
+		try {
+			Knots sog = new Knots(value(speed, "SOG"), new MathContext(6));
+			logger.trace(MMarker.GETTER, "Returning SOG: {} .", sog);
+			return sog;
+		} catch (OutOfRange e) {
+			NoValue nv = new NoValue("SOG is out of range", e);
+			logger.debug(MMarker.EXCEPTION, "SOG is out of range", e);
+			throw nv;
+		}
+	}
+
+	@Override
+	public MString getStatus() {
+		return new MString(fixValid ? "A" : "V");
+	}
+
+	@Override
+	public Hours getTime() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	public MDecimal getVDOP() {
+		return decimal(vdop);
+	}
+
+	/**
+	 * NMEA sentences do not report the error of the time
+	 */
+	@Override
+	public MDecimal getEPT() throws NoConnection, NoValue, OutOfRange {
+		NoValue nv = new NoValue("EPT is not reported in NMEA sentences");
+		logger.debug(MMarker.EXCEPTION, "NoValue", nv);
+		throw nv;
+	}
+}
@@ -15,14 +15,8 @@
  */
 package org.marssa.services.navigation;
 
-import net.sf.marineapi.nmea.event.SentenceEvent;
-import net.sf.marineapi.nmea.event.SentenceListener;
 import net.sf.marineapi.nmea.io.SentenceReader;
-import net.sf.marineapi.nmea.sentence.DBTSentence;
-import net.sf.marineapi.nmea.sentence.DPTSentence;
-import net.sf.marineapi.nmea.sentence.MTWSentence;
 import net.sf.marineapi.nmea.sentence.SentenceId;
-import net.sf.marineapi.nmea.sentence.VHWSentence;
 
 import org.marssa.footprint.datatypes.decimal.DegreesDecimal;
 import org.marssa.footprint.datatypes.decimal.distance.ADistance;
@@ -34,6 +28,9 @@ import org.marssa.footprint.datatypes.decimal.temperature.DegreesCelcius;
 import org.marssa.footprint.exceptions.OutOfRange;
 import org.marssa.footprint.interfaces.navigation.ISpeedSensor;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.nmea.IRawSentenceHandler;
+import org.marssa.services.nmea.RawSentence;
+import org.marssa.services.nmea.SentenceDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,22 +38,65 @@ import org.slf4j.LoggerFactory;
  * @author Warren Zahra
  * 
  */
-public class SpeedSensor implements ISpeedSensor, SentenceListener {
+public class SpeedSensor implements ISpeedSensor {
 
 	private static Logger SpeedSensor = LoggerFactory.getLogger("SpeedSensor");
-	SentenceReader reader;
-	Knots speedKnots = null;
-	Metres depthMeters = null;
-	DegreesDecimal degreesTrue = null;
-	DegreesDecimal degreesMagnetic = null;
-	DegreesCelcius temperatureDegrees = null;
+
+	// The latest values read, NaN until the first sentence. An empty field
+	// keeps the previous value.
+	private volatile double speedKnots = Double.NaN;
+	private volatile double depthMeters = Double.NaN;
+	private volatile double degreesTrue = Double.NaN;
+	private volatile double degreesMagnetic = Double.NaN;
+	private volatile double temperatureDegrees = Double.NaN;
 
 	public SpeedSensor(SentenceReader reader) {
-		this.reader = reader;
-		reader.addSentenceListener(this, "MTW");
-		reader.addSentenceListener(this, "VHW");
-		reader.addSentenceListener(this, SentenceId.DBT);
-		reader.addSentenceListener(this, SentenceId.DPT);
+		this(new SentenceDispatcher(reader));
+	}
+
+	public SpeedSensor(SentenceDispatcher dispatcher) {
+		// $--MTW,temperature,C
+		dispatcher.addHandler(SentenceId.MTW, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double temperature = sentence.getDouble(0);
+				if (!Double.isNaN(temperature))
+					temperatureDegrees = temperature;
+			}
+		});
+		// $--VHW,true,T,magnetic,M,knots,N,km/h,K
+		dispatcher.addHandler(SentenceId.VHW, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double speed = sentence.getDouble(4);
+				double magnetic = sentence.getDouble(2);
+				double heading = sentence.getDouble(0);
+				if (!Double.isNaN(speed))
+					speedKnots = speed;
+				if (!Double.isNaN(magnetic))
+					degreesMagnetic = magnetic;
+				if (!Double.isNaN(heading))
+					degreesTrue = heading;
+			}
+		});
+		// $--DBT,feet,f,metres,M,fathoms,F
+		dispatcher.addHandler(SentenceId.DBT, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double depth = sentence.getDouble(2);
+				if (!Double.isNaN(depth))
+					depthMeters = depth;
+			}
+		});
+		// $--DPT,metres,offset
+		dispatcher.addHandler(SentenceId.DPT, new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				double depth = sentence.getDouble(0);
+				if (!Double.isNaN(depth))
+					depthMeters = depth;
+			}
+		});
 		String[] sentenceIDs = { "MTW", "VHW", "DBT", "DPT" };
 		SpeedSensor
 				.info("A speed sensor with the following Sentence id is instantiated",
@@ -65,78 +105,52 @@ public class SpeedSensor implements ISpeedSensor, SentenceListener {
 
 	@Override
 	public ASpeed getSpeedKnots() throws OutOfRange {
+		double speed = speedKnots;
+		Knots knots = Double.isNaN(speed) ? null : new Knots(speed);
 		SpeedSensor.trace(MMarker.GETTER, "Returning speed in knots {} .",
-				speedKnots);
-		return speedKnots;
+				knots);
+		return knots;
 	}
 
 	@Override
 	public DegreesDecimal getDegreesTrue() throws OutOfRange {
+		DegreesDecimal degrees = degrees(degreesTrue);
 		SpeedSensor.trace(MMarker.GETTER,
-				"Returning Degrees in degreesTrue {} .", degreesTrue);
-		return degreesTrue;
+				"Returning Degrees in degreesTrue {} .", degrees);
+		return degrees;
 	}
 
 	@Override
 	public DegreesDecimal getDegreesMagnetic() throws OutOfRange {
+		DegreesDecimal degrees = degrees(degreesMagnetic);
 		SpeedSensor.trace(MMarker.GETTER,
-				"Returning Degrees in degreesMagnetic {} .", degreesMagnetic);
-		return degreesMagnetic;
+				"Returning Degrees in degreesMagnetic {} .", degrees);
+		return degrees;
 	}
 
 	public ADistance getDepthMeters() throws OutOfRange {
+		double depth = depthMeters;
+		Metres metres = Double.isNaN(depth) ? null : new Metres(depth);
 		SpeedSensor.trace(MMarker.GETTER, "Returning Depth in metres {} .",
-				depthMeters);
-		return depthMeters;
+				metres);
+		return metres;
 	}
 
 	public ATemperature getTemperature() {
-		SpeedSensor.trace(MMarker.GETTER,
-				"Returning Temperature in degreesCelsius {} .",
-				temperatureDegrees);
-		return temperatureDegrees;
-	}
-
-	@Override
-	public void readingPaused() {
-	}
-
-	@Override
-	public void readingStarted() {
-	}
-
-	@Override
-	public void readingStopped() {
-	}
-
-	@Override
-	public void sentenceRead(SentenceEvent event) {
-		String sid = event.getSentence().getSentenceId().toString();
-		SpeedSensor.debug("Sentence received is of Id type", sid);
+		double temperature = temperatureDegrees;
+		DegreesCelcius degrees = null;
 		try {
-			if (sid.equals("MTW")) {
-				MTWSentence mtw = (MTWSentence) event.getSentence();
-				temperatureDegrees = new DegreesCelcius(mtw.getTemperature());
-
-			} else if (sid.equals("DBT")) {
-				DBTSentence dbt = (DBTSentence) event.getSentence();
-				depthMeters = new Metres(dbt.getDepth());
-
-			} else if (sid.equals("DPT")) {
-				DPTSentence dpt = (DPTSentence) event.getSentence();
-				depthMeters = new Metres(dpt.getDepth());
-
-			} else if (sid.equals("VHW")) {
-				VHWSentence vhw = (VHWSentence) event.getSentence();
-				speedKnots = new Knots(vhw.getSpeedKnots());
-				degreesMagnetic = new DegreesDecimal(vhw.getMagneticHeading());
-				degreesTrue = new DegreesDecimal(vhw.getHeading());
-			}
+			if (!Double.isNaN(temperature))
+				degrees = new DegreesCelcius(temperature);
 		} catch (OutOfRange e) {
-			SpeedSensor.debug("Value is out of range", new OutOfRange());
-			// TODO Auto-generated catch block
-			// e.printStackTrace();
+			SpeedSensor.debug("Value is out of range", e);
 		}
+		SpeedSensor.trace(MMarker.GETTER,
+				"Returning Temperature in degreesCelsius {} .", degrees);
+		return degrees;
 	}
 
+	private static DegreesDecimal degrees(double degrees) {
+		return Double.isNaN(degrees) ? null : new DegreesDecimal(degrees);
+	}
 }
@@ -0,0 +1,26 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+/**
+ * Handles the sentences of an {@link NMEATokenizer}. The sentence passed is a
+ * view of the line buffer of the tokenizer, hence its fields must be decoded
+ * before returning and the sentence itself must not be kept.
+ */
+public interface IRawSentenceHandler {
+
+	public void sentenceRead(RawSentence sentence);
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import gnu.io.SerialPort;
+
+/**
+ * Notified of the serial ports found delivering NMEA data by a discovery
+ * still running in the background. The listener is invoked on the discovery
+ * thread and becomes responsible for closing the port.
+ */
+public interface ISerialPortListener {
+
+	public void portDiscovered(SerialPort sp);
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.NoConnection;
+import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads NMEA 0183 sentences from network gateways, either broadcast over UDP
+ * or served over TCP, and passes them as {@link RawSentence}s to a handler,
+ * normally a {@link SentenceDispatcher}. A single selector thread serves
+ * every source, reading into one reusable direct buffer, and each source
+ * has its own {@link NMEATokenizer} so that sentences split across
+ * datagrams or segments are put back together. No String or Sentence
+ * object is created per sentence, the handler is called from the selector
+ * thread.
+ * <p>
+ * A TCP source which is lost or refused is connected to again after
+ * {@link ServicesConstants.NMEA#RECONNECT_DELAY}. Sources may be added
+ * before or after the reader is started. A stopped reader cannot be started
+ * again.
+ */
+public class NMEANetworkReader {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(NMEANetworkReader.class.getName());
+
+	// The largest UDP datagram
+	private static final int BUFFER_SIZE = 65536;
+
+	private final IRawSentenceHandler handler;
+	private final Selector selector;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	// Sources added since the last select, registered by the selector thread
+	private final ConcurrentLinkedQueue<Source> added = new ConcurrentLinkedQueue<Source>();
+	// Only accessed by the selector thread
+	private final List<Source> sources = new ArrayList<Source>();
+
+	private volatile boolean running = false;
+	private volatile Thread thread;
+	private volatile long sentences = 0;
+	private long reconnectDelay = ServicesConstants.NMEA.RECONNECT_DELAY
+			.intValue();
+
+	/**
+	 * @param handler
+	 *            the handler of every sentence read, such as a
+	 *            {@link SentenceDispatcher}
+	 */
+	public NMEANetworkReader(IRawSentenceHandler handler) throws NoConnection {
+		this.handler = handler;
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			NoConnection nc = new NoConnection("Cannot open a selector", e);
+			logger.error(MMarker.EXCEPTION, "NoConnection", nc);
+			throw nc;
+		}
+	}
+
+	/**
+	 * Sets the time in milliseconds after which a lost TCP source is
+	 * connected to again
+	 */
+	public void setReconnectDelay(MInteger reconnectDelay) {
+		this.reconnectDelay = reconnectDelay.intValue();
+	}
+
+	/**
+	 * Listens for the sentences broadcast to the UDP port, such as
+	 * {@link ServicesConstants.NMEA#UDP_PORT}
+	 *
+	 * @throws NoConnection
+	 *             if the port cannot be bound
+	 */
+	public void addUdpSource(MInteger port) throws NoConnection {
+		String name = "udp:" + port;
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			// Other applications may listen to the same broadcasts
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(port.intValue()));
+			channel.configureBlocking(false);
+			add(new Source(name, null, channel));
+		} catch (IOException e) {
+			NoConnection nc = new NoConnection("Cannot listen to " + name, e);
+			logger.error(MMarker.EXCEPTION, "NoConnection", nc);
+			throw nc;
+		}
+	}
+
+	/**
+	 * Reads the sentences served by the TCP host and port. The connection
+	 * is made by the selector thread.
+	 *
+	 * @throws NoConnection
+	 *             if the host cannot be resolved
+	 */
+	public void addTcpSource(MString host, MInteger port) throws NoConnection {
+		InetSocketAddress address = new InetSocketAddress(host.getContents(),
+				port.intValue());
+		if (address.isUnresolved()) {
+			NoConnection nc = new NoConnection("Unknown host " + host, null);
+			logger.error(MMarker.EXCEPTION, "NoConnection", nc);
+			throw nc;
+		}
+		add(new Source("tcp:" + host + ":" + port, address, null));
+	}
+
+	/**
+	 * Starts the selector thread
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		}, "NMEA network reader");
+		thread.setDaemon(true);
+		thread.start();
+		logger.debug("NMEA network reader started");
+	}
+
+	/**
+	 * Stops the selector thread and closes every source
+	 */
+	public synchronized void stop() {
+		running = false;
+		selector.wakeup();
+		logger.debug("NMEA network reader stopped");
+	}
+
+	/**
+	 * Returns the number of sentences passed to the handler
+	 */
+	public long getSentenceCount() {
+		return sentences;
+	}
+
+	private void add(Source source) {
+		added.add(source);
+		selector.wakeup();
+		logger.info("Reading NMEA sentences from {} .", source.name);
+	}
+
+	private void select() {
+		try {
+			while (running) {
+				Source source;
+				while ((source = added.poll()) != null) {
+					sources.add(source);
+					if (source.channel != null)
+						register(source, SelectionKey.OP_READ);
+				}
+				long now = System.currentTimeMillis();
+				long nextConnect = Long.MAX_VALUE;
+				for (Source s : sources) {
+					if (s.channel == null) {
+						if (s.connectAt <= now)
+							connect(s);
+						else
+							nextConnect = Math.min(nextConnect, s.connectAt);
+					}
+				}
+				if (nextConnect == Long.MAX_VALUE)
+					selector.select();
+				else
+					selector.select(Math.max(1, nextConnect - now));
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ready(key);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("The NMEA network reader failed", e);
+		} finally {
+			for (Source source : sources) {
+				close(source);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.warn("Cannot close the selector", e);
+			}
+		}
+	}
+
+	private void ready(SelectionKey key) {
+		Source source = (Source) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				if (((SocketChannel) key.channel()).finishConnect()) {
+					key.interestOps(SelectionKey.OP_READ);
+					logger.info("Connected to {} .", source.name);
+				}
+			} else if (key.isReadable()) {
+				read(source);
+			}
+		} catch (IOException e) {
+			logger.warn("Connection lost to {} .", source.name, e);
+			lost(source);
+		}
+	}
+
+	private void read(Source source) throws IOException {
+		buffer.clear();
+		if (source.channel instanceof DatagramChannel) {
+			// A datagram may hold many sentences
+			if (((DatagramChannel) source.channel).receive(buffer) == null)
+				return;
+		} else if (((SocketChannel) source.channel).read(buffer) < 0) {
+			logger.warn("Connection closed by {} .", source.name);
+			lost(source);
+			return;
+		}
+		buffer.flip();
+		source.tokenizer.feed(buffer);
+	}
+
+	private void connect(Source source) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			source.channel = channel;
+			if (channel.connect(source.address)) {
+				register(source, SelectionKey.OP_READ);
+				logger.info("Connected to {} .", source.name);
+			} else {
+				register(source, SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			logger.warn("Cannot connect to {} .", source.name, e);
+			lost(source);
+		}
+	}
+
+	private void register(Source source, int ops) throws IOException {
+		source.channel.register(selector, ops, source);
+	}
+
+	/**
+	 * Closes the source, a TCP source is connected to again later
+	 */
+	private void lost(Source source) {
+		close(source);
+		if (source.address == null) {
+			sources.remove(source);
+		} else {
+			source.channel = null;
+			source.connectAt = System.currentTimeMillis() + reconnectDelay;
+		}
+	}
+
+	private static void close(Source source) {
+		if (source.channel == null)
+			return;
+		try {
+			source.channel.close();
+		} catch (IOException e) {
+			logger.debug("Cannot close {} .", source.name, e);
+		}
+	}
+
+	private final class Source implements IRawSentenceHandler {
+		final String name;
+		// Null for a UDP source
+		final InetSocketAddress address;
+		final NMEATokenizer tokenizer = new NMEATokenizer();
+		// Null while a TCP source waits to be connected
+		SelectableChannel channel;
+		long connectAt = 0;
+
+		Source(String name, InetSocketAddress address,
+				SelectableChannel channel) {
+			this.name = name;
+			this.address = address;
+			this.channel = channel;
+			tokenizer.addHandler(this);
+		}
+
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			// The checksum was validated by the tokenizer
+			try {
+				handler.sentenceRead(sentence);
+			} catch (RuntimeException e) {
+				// A failing handler must not stop the selector thread
+				logger.error("Handler failed on {} from {} .", new Object[] {
+						sentence, name, e });
+			}
+			sentences++;
+		}
+	}
+}
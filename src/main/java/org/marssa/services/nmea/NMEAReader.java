@@ -36,26 +36,24 @@ package org.marssa.services.nmea;
  * along with Java Marine API. If not, see <http://www.gnu.org/licenses/>.
  */
 
-import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.sf.marineapi.nmea.event.SentenceEvent;
-import net.sf.marineapi.nmea.event.SentenceListener;
-import net.sf.marineapi.nmea.io.SentenceReader;
-import net.sf.marineapi.nmea.parser.SentenceFactory;
 import net.sf.marineapi.nmea.sentence.Sentence;
-import net.sf.marineapi.nmea.sentence.SentenceValidator;
+import net.sf.marineapi.nmea.sentence.TalkerId;
 
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.NoConnection;
 import org.marssa.footprint.interfaces.navigation.IDepthSensor;
 import org.marssa.footprint.interfaces.navigation.ISensors;
 import org.marssa.footprint.interfaces.navigation.ISpeedSensor;
 import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
 import org.marssa.services.navigation.DepthSensor;
 import org.marssa.services.navigation.SpeedSensor;
 import org.slf4j.Logger;
@@ -82,195 +80,175 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Kimmo Tuukkanen
  */
-public class NMEAReader implements SentenceListener, ISensors {
+public class NMEAReader implements ISensors {
 
 	private static Logger NMEAReader = LoggerFactory.getLogger("NMEAReader");
-	SentenceReader sr;
-	DepthSensor depthSensor;
-	SpeedSensor speedSensor;
+	// Ports found in the background are added while the others are read
+	final List<NMEATokenizer> readers = new CopyOnWriteArrayList<NMEATokenizer>();
+	final SentenceDispatcher dispatcher = new SentenceDispatcher();
+	volatile NMEARecorder recorder;
+	// Records every sentence read from a port or the network, then routes it
+	final IRawSentenceHandler router = new IRawSentenceHandler() {
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			NMEARecorder recorder = NMEAReader.this.recorder;
+			if (recorder != null)
+				record(recorder, sentence);
+			dispatcher.sentenceRead(sentence);
+		}
+	};
+	volatile DepthSensor depthSensor;
+	volatile SpeedSensor speedSensor;
 	Sentence mtwSentence = null;
-	SentenceFactory SF = SentenceFactory.getInstance();
 
-	public NMEAReader() {
-		try {
-			NMEAReader.debug("Getting SerialPort");
-			SerialPort sp = getSerialPort();
+	NMEANetworkReader networkReader;
 
-			if (sp != null) {
-				NMEAReader.debug("Creating a new Sentence reader");
-				InputStream is = sp.getInputStream();
-				sr = new SentenceReader(is);
-				sr.addSentenceListener(this);
-				NMEAReader.debug("Starting Sentence reader");
-				sr.start();
+	public NMEAReader() {
+		// A sensor is created on the first sentence of its talker
+		dispatcher.addHandler(TalkerId.SD, new ISentenceHandler() {
+			@Override
+			public void sentenceRead(Sentence sentence) {
+				if (depthSensor == null) {
+					NMEAReader.trace("Received TalkerId {} .", TalkerId.SD);
+					NMEAReader.info("Creating an Instance of Depth Sensor");
+					depthSensor = new DepthSensor(dispatcher);
+					dispatcher.removeHandler(TalkerId.SD, this);
+				}
 			}
-
-		} catch (IOException e) {
-			NMEAReader.error("IOException", new IOException());
-			e.printStackTrace();
+		});
+		dispatcher.addHandler(TalkerId.DM, new ISentenceHandler() {
+			@Override
+			public void sentenceRead(Sentence sentence) {
+				if (speedSensor == null) {
+					NMEAReader.trace("Received TalkerId {} .", TalkerId.DM);
+					NMEAReader.info("Creating an Instance of Speed Sensor");
+					speedSensor = new SpeedSensor(dispatcher);
+					dispatcher.removeHandler(TalkerId.DM, this);
+				}
+			}
+		});
+		NMEAReader.debug("Getting SerialPorts");
+		List<SerialPort> ports = new SerialPortDiscovery()
+				.discoverAll(new ISerialPortListener() {
+					@Override
+					public void portDiscovered(SerialPort sp) {
+						read(sp);
+					}
+				});
+		for (SerialPort sp : ports) {
+			read(sp);
 		}
 	}
 
-	@Override
-	public IDepthSensor getDepthSensor() {
-		NMEAReader
-				.trace(MMarker.GETTER, "Returning an instance of depthSensor");
-		return depthSensor;
-	}
-
-	@Override
-	public ISpeedSensor getSpeedSensor() {
-		NMEAReader
-				.trace(MMarker.GETTER, "Returning an instance of speedSensor");
-		return speedSensor;
+	// Every port is read by its own thread, which decodes the sentences
+	// straight into the sensors
+	private void read(final SerialPort sp) {
+		final InputStream in;
+		try {
+			in = sp.getInputStream();
+		} catch (IOException e) {
+			NMEAReader.error("Cannot read from port " + sp.getName(), e);
+			sp.close();
+			return;
+		}
+		NMEAReader.debug("Creating a new NMEA tokenizer for {} .",
+				sp.getName());
+		final NMEATokenizer tokenizer = new NMEATokenizer();
+		tokenizer.addHandler(router);
+		readers.add(tokenizer);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tokenizer.read(in);
+					NMEAReader.info("End of the NMEA stream of {} .",
+							sp.getName());
+				} catch (IOException e) {
+					NMEAReader.error("Cannot read from port " + sp.getName(),
+							e);
+				} finally {
+					readers.remove(tokenizer);
+					sp.close();
+				}
+			}
+		}, "NMEA reader " + sp.getName());
+		thread.setDaemon(true);
+		NMEAReader.debug("Starting the NMEA tokenizer for {} .", sp.getName());
+		thread.start();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see net.sf.marineapi.nmea.event.SentenceListener#readingPaused()
-	 */
-	@Override
-	public void readingPaused() {
-		NMEAReader.trace("Reading paused");
-		System.out.println("-- Paused --");
+	private void record(NMEARecorder recorder, RawSentence sentence) {
+		try {
+			recorder.record(System.nanoTime(), sentence.toString());
+		} catch (IOException e) {
+			NMEAReader.error("Recording of the NMEA stream stopped", e);
+			if (this.recorder == recorder)
+				this.recorder = null;
+		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see net.sf.marineapi.nmea.event.SentenceListener#readingStarted()
+	/**
+	 * Also reads the sentences broadcast by a network gateway to the UDP
+	 * port, such as {@link ServicesConstants.NMEA#UDP_PORT}
+	 *
+	 * @throws NoConnection
+	 *             if the port cannot be bound
 	 */
-	@Override
-	public void readingStarted() {
-		NMEAReader.trace("Reading started");
-		System.out.println("-- Started --");
+	public synchronized void addUdpSource(MInteger port) throws NoConnection {
+		getNetworkReader().addUdpSource(port);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see net.sf.marineapi.nmea.event.SentenceListener#readingStopped()
+	/**
+	 * Also reads the sentences served by a network gateway over TCP
+	 *
+	 * @throws NoConnection
+	 *             if the host cannot be resolved
 	 */
-	@Override
-	public void readingStopped() {
-		NMEAReader.trace("Reading stopped");
-		System.out.println("-- Stopped --");
+	public synchronized void addTcpSource(MString host, MInteger port)
+			throws NoConnection {
+		getNetworkReader().addTcpSource(host, port);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * net.sf.marineapi.nmea.event.SentenceListener#sentenceRead(net.sf.marineapi
-	 * .nmea.event.SentenceEvent)
-	 */
 	/**
-	 * Here we read NMEA data and for each different Talker ID a new instance of
-	 * that particular sensor is created
+	 * Records every sentence read from now on, whatever its source, to be
+	 * played back by {@link NMEAReplay}
+	 *
+	 * @param recorder
+	 *            the recorder, or null to stop recording
 	 */
-	@Override
-	public void sentenceRead(SentenceEvent event) {
-
-		String tid = event.getSentence().getTalkerId().toString();
-
-		if (tid == "SD") {
-			NMEAReader.trace("Received TalkerId {} .", tid);
-			if (depthSensor == null) {
-				NMEAReader.info("Creating an Instance of Depth Sensor");
-				depthSensor = new DepthSensor(sr);
-			}
-		}
-
-		if (tid == "DM") {
-			NMEAReader.trace("Received TalkerId {} .", tid);
-			if (speedSensor == null) {
-				NMEAReader.info("Creating an Instance of Speed Sensor");
-				speedSensor = new SpeedSensor(sr);
-			}
+	public void record(NMEARecorder recorder) {
+		this.recorder = recorder;
+	}
 
+	// The selector thread is only started for the first network source
+	private NMEANetworkReader getNetworkReader() throws NoConnection {
+		if (networkReader == null) {
+			networkReader = new NMEANetworkReader(router);
+			networkReader.start();
 		}
-
+		return networkReader;
 	}
 
 	/**
-	 * Scan serial ports for NMEA data.
-	 * 
-	 * @return SerialPort from which NMEA data was found, or null if data was
-	 *         not found in any of the ports.
+	 * Returns the dispatcher routing the sentences of every port and network
+	 * source, from the thread reading the source, in the order they were
+	 * read
 	 */
-	private SerialPort getSerialPort() {
-		try {
-			Enumeration<CommPortIdentifier> e = CommPortIdentifier
-					.getPortIdentifiers();
-			NMEAReader.debug("GettingPortIdentifier");
-			while (e.hasMoreElements()) {
-				CommPortIdentifier id = e.nextElement();
-
-				if (id.getPortType() == CommPortIdentifier.PORT_SERIAL) {
-
-					SerialPort sp = (SerialPort) id.open("SerialExample", 30);
-					Object[] serialConnection = { 4800, SerialPort.DATABITS_8,
-							SerialPort.STOPBITS_1, SerialPort.PARITY_NONE };
-					NMEAReader
-							.info("Parameters for SerialPort are BaudRate{} . DataBits{} . StopBits {} . Parity {} .",
-									serialConnection);
-					sp.setSerialPortParams(4800, SerialPort.DATABITS_8,
-							SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-
-					InputStream is = sp.getInputStream();
-					InputStreamReader isr = new InputStreamReader(is);
-					BufferedReader buf = new BufferedReader(isr);
-
-					// System.out.println("Scanning port " + sp.getName());
-
-					// try each port few times before giving up
-					for (int i = 0; i < 5; i++) {
-						try {
-							if (buf.ready()) {
-								// System.out.println("Buffer ready, reading data ...");
-								NMEAReader
-										.debug("Buffer is ready and reading Data");
-								String data = buf.readLine();
-								NMEAReader
-										.debug("Discarding first line. Reading next line");
-								// System.out.println("First line discarded. Reading next line ...");
-								data = buf.readLine();
-								// System.out.println("Data is:" + data);
-								NMEAReader.trace("Data is:", data.toString());
-								if (SentenceValidator.isValid(data)) {
-									// System.out.println("NMEA data found!");
-									NMEAReader.info("NMEA Data is found");
-									NMEAReader.trace(MMarker.GETTER,
-											"Returning SerialPort {} .",
-											sp.getName());
-									return sp;
-								}
-							} else {
-								// System.out.println("Buffer not ready, inserting delay ...");
-								NMEAReader
-										.trace("Buffer not ready inserting delay");
-								Thread.sleep(500);
-							}
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
-					}
-					NMEAReader
-							.trace("Closing InputStream, InputStreamReader and BufferReader");
-					is.close();
-					isr.close();
-					buf.close();
-				}
-			}
-			// System.out.println("NMEA data was not found..");
-			NMEAReader.warn("NMEA data was not found");
+	public SentenceDispatcher getDispatcher() {
+		return dispatcher;
+	}
 
-		} catch (Exception e) {
-			NMEAReader.error("Exception", new Exception());
-			// e.printStackTrace();
-		}
+	@Override
+	public IDepthSensor getDepthSensor() {
+		NMEAReader
+				.trace(MMarker.GETTER, "Returning an instance of depthSensor");
+		return depthSensor;
+	}
 
-		return null;
+	@Override
+	public ISpeedSensor getSpeedSensor() {
+		NMEAReader
+				.trace(MMarker.GETTER, "Returning an instance of speedSensor");
+		return speedSensor;
 	}
-}
\ No newline at end of file
+}
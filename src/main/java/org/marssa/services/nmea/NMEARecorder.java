@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records NMEA sentences with the {@link System#nanoTime()} they were
+ * received at into a log of memory-mapped segment files, to be played back
+ * by {@link NMEAReplay}.
+ * <p>
+ * Every segment starts with a header holding the wall clock and the nano
+ * time at which it was created, followed by records made of the length of
+ * the sentence as a short, its receive time as a long and its ASCII
+ * characters. A zero length ends the records of a segment, the unused tail
+ * of a mapped segment being zero filled. A new segment is started once the
+ * current one is full, and a recorder opened on an existing log appends new
+ * segments after the recorded ones.
+ */
+public class NMEARecorder {
+
+	private static Logger logger = LoggerFactory.getLogger(NMEARecorder.class
+			.getName());
+
+	// "NMEA" in ASCII
+	static final int MAGIC = 0x4E4D4541;
+	static final int VERSION = 1;
+	// Magic, version, wall clock and nano time
+	static final int HEADER_SIZE = 24;
+	// Length and receive time
+	static final int RECORD_HEADER_SIZE = 10;
+
+	private static final String SEGMENT_PREFIX = "nmea-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int MIN_SEGMENT_SIZE = 4096;
+
+	private final File directory;
+	private final int segmentSize;
+	private int segmentIndex;
+	private MappedByteBuffer segment;
+	private long recorded = 0;
+
+	/**
+	 * Creates a recorder writing segments of
+	 * {@link ServicesConstants.NMEA#RECORD_SEGMENT_SIZE} bytes
+	 */
+	public NMEARecorder(File directory) throws IOException, OutOfRange {
+		this(directory, ServicesConstants.NMEA.RECORD_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of the log, created if needed
+	 * @param segmentSize
+	 *            the size in bytes of every segment file
+	 * @throws IOException
+	 *             if the first segment cannot be created
+	 * @throws OutOfRange
+	 *             if the segments are smaller than 4096 bytes
+	 */
+	public NMEARecorder(File directory, MInteger segmentSize)
+			throws IOException, OutOfRange {
+		if (segmentSize.intValue() < MIN_SEGMENT_SIZE) {
+			OutOfRange e = new OutOfRange("Segments must be at least "
+					+ MIN_SEGMENT_SIZE + " bytes");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create the directory " + directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize.intValue();
+		File[] segments = segments(directory);
+		segmentIndex = segments.length == 0 ? 0
+				: index(segments[segments.length - 1]) + 1;
+		roll();
+	}
+
+	/**
+	 * Appends the sentence, without its terminator, to the log
+	 *
+	 * @param receivedAt
+	 *            the {@link System#nanoTime()} at which it was received
+	 * @throws IOException
+	 *             if a new segment cannot be created
+	 */
+	public synchronized void record(long receivedAt, String sentence)
+			throws IOException {
+		if (segment == null)
+			throw new IOException("The recorder is closed");
+		int length = sentence.length();
+		// Leave room for the end of segment
+		if (segment.remaining() < RECORD_HEADER_SIZE + length + 2) {
+			if (RECORD_HEADER_SIZE + length + 2 > segmentSize - HEADER_SIZE)
+				throw new IOException("Sentence too long to be recorded");
+			segment.force();
+			roll();
+		}
+		segment.putShort((short) length);
+		segment.putLong(receivedAt);
+		for (int i = 0; i < length; i++) {
+			segment.put((byte) sentence.charAt(i));
+		}
+		recorded++;
+	}
+
+	/**
+	 * Returns the number of sentences recorded
+	 */
+	public synchronized long getRecordedCount() {
+		return recorded;
+	}
+
+	/**
+	 * Flushes the current segment to disk. No sentence can be recorded once
+	 * the recorder is closed.
+	 */
+	public synchronized void close() {
+		if (segment == null)
+			return;
+		segment.force();
+		segment = null;
+		logger.info("{} NMEA sentences recorded in {} .", recorded, directory);
+	}
+
+	/**
+	 * Returns the segment files of the log, in the order they were written
+	 */
+	static File[] segments(File directory) {
+		File[] segments = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && index(file) >= 0;
+			}
+		});
+		if (segments == null)
+			return new File[0];
+		// The index is zero padded
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Returns the index of a segment file, or -1 if the file is not one
+	 */
+	private static int index(File file) {
+		String name = file.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void roll() throws IOException {
+		File file = new File(directory, String.format("%s%08d%s",
+				SEGMENT_PREFIX, segmentIndex++, SEGMENT_SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			// The mapping stays valid once the file is closed
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		} finally {
+			raf.close();
+		}
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putLong(System.currentTimeMillis());
+		segment.putLong(System.nanoTime());
+		logger.debug("Recording NMEA sentences in {} .", file);
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays back a log written by {@link NMEARecorder} into a
+ * {@link SentenceDispatcher}, either at the pace the sentences were
+ * received at or as fast as they can be parsed and dispatched. The sensors
+ * fed by the dispatcher see the same sentences in the same order as when
+ * they were recorded.
+ * <p>
+ * The receive times are {@link System#nanoTime()} values, whose origin
+ * differs from one run of the recorder to the next. Every segment is paced
+ * on the wall clock instead, from the wall clock and nanoTime stored in its
+ * header when it was created.
+ */
+public class NMEAReplay {
+
+	private static Logger logger = LoggerFactory.getLogger(NMEAReplay.class
+			.getName());
+
+	private final File directory;
+	private final SentenceFactory factory = SentenceFactory.getInstance();
+	private final char[] chars = new char[Short.MAX_VALUE];
+
+	private long skipped = 0;
+
+	/**
+	 * @param directory
+	 *            the directory of the log to play back
+	 */
+	public NMEAReplay(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Plays back every segment of the log on the calling thread
+	 *
+	 * @param paced
+	 *            true to wait between the sentences as long as between their
+	 *            receive times, false to play them back as fast as possible
+	 * @return the number of sentences dispatched
+	 * @throws IOException
+	 *             if a segment cannot be read or is not part of a log
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the next sentence
+	 */
+	public long replay(SentenceDispatcher dispatcher, boolean paced)
+			throws IOException, InterruptedException {
+		long dispatched = 0;
+		skipped = 0;
+		// The receive time of the first sentence and when it was played back
+		long firstReceived = 0;
+		long started = 0;
+		boolean first = true;
+		for (File file : NMEARecorder.segments(directory)) {
+			MappedByteBuffer segment = map(file);
+			long createdAt = TimeUnit.MILLISECONDS.toNanos(segment.getLong());
+			long createdNanos = segment.getLong();
+			while (segment.remaining() >= NMEARecorder.RECORD_HEADER_SIZE) {
+				int length = segment.getShort();
+				if (length <= 0)
+					break;
+				// On the wall clock, in nanoseconds
+				long receivedAt = createdAt + segment.getLong() - createdNanos;
+				if (length > segment.remaining())
+					throw new IOException("Truncated record in " + file);
+				for (int i = 0; i < length; i++) {
+					chars[i] = (char) segment.get();
+				}
+				if (first) {
+					firstReceived = receivedAt;
+					started = System.nanoTime();
+					first = false;
+				} else if (paced) {
+					long delay = started + receivedAt - firstReceived
+							- System.nanoTime();
+					if (delay > 0)
+						TimeUnit.NANOSECONDS.sleep(delay);
+				}
+				String nmea = new String(chars, 0, length);
+				try {
+					dispatcher.dispatch(factory.createParser(nmea));
+					dispatched++;
+				} catch (IllegalArgumentException e) {
+					skipped++;
+					logger.trace("Unsupported sentence {} .", nmea);
+				}
+			}
+		}
+		logger.debug("{} NMEA sentences played back from {} .", dispatched,
+				directory);
+		return dispatched;
+	}
+
+	/**
+	 * Returns the number of sentences of the last play back which could not
+	 * be parsed
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Maps the segment, positioned on the wall clock and nanoTime of its
+	 * header
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer segment;
+		try {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		if (segment.remaining() < NMEARecorder.HEADER_SIZE
+				|| segment.getInt() != NMEARecorder.MAGIC)
+			throw new IOException(file + " is not an NMEA log segment");
+		int version = segment.getInt();
+		if (version != NMEARecorder.VERSION)
+			throw new IOException("Unsupported version " + version + " of "
+					+ file);
+		logger.debug("Playing back {} recorded at {} .", file,
+				segment.getLong(segment.position()));
+		return segment;
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.event.SentenceListener;
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.sentence.Sentence;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the sentences read from many NMEA sources into a single stream
+ * ordered by the time they were read at, and routes the stream through a
+ * {@link SentenceDispatcher} from a single consumer thread.
+ * <p>
+ * Every source keeps its own reader thread and only appends to a lock-free
+ * queue, so a slow or silent source never holds back the others. The
+ * consumer drains the queue in batches and sorts each batch by time stamp;
+ * sentences read at the same time keep the order they were queued in. When
+ * the queue is full the newest sentences are dropped and counted, rather
+ * than blocking the reader threads.
+ */
+public class NMEAStreamMerger {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(NMEAStreamMerger.class.getName());
+
+	private static final int BATCH_SIZE = 64;
+	// Bounds the wait of a wake up lost between the check and the park
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final Comparator<TimedSentence> BY_TIME = new Comparator<TimedSentence>() {
+		@Override
+		public int compare(TimedSentence a, TimedSentence b) {
+			return a.timeStamp < b.timeStamp ? -1
+					: a.timeStamp == b.timeStamp ? 0 : 1;
+		}
+	};
+
+	private final SentenceDispatcher dispatcher;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<TimedSentence> queue = new ConcurrentLinkedQueue<TimedSentence>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long sentences = 0;
+	private volatile NMEARecorder recorder;
+
+	private volatile Thread consumer;
+	private volatile boolean parked = false;
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a merger feeding the dispatcher, holding up to
+	 * {@link ServicesConstants.NMEA#MERGE_CAPACITY} waiting sentences
+	 */
+	public NMEAStreamMerger(SentenceDispatcher dispatcher) {
+		this(dispatcher, ServicesConstants.NMEA.MERGE_CAPACITY);
+	}
+
+	public NMEAStreamMerger(SentenceDispatcher dispatcher, MInteger capacity) {
+		this.dispatcher = dispatcher;
+		this.capacity = capacity.intValue();
+	}
+
+	/**
+	 * Merges every sentence read by the reader into the stream
+	 *
+	 * @param source
+	 *            the name of the source, such as its serial port, for logging
+	 */
+	public void addReader(SentenceReader reader, final String source) {
+		reader.addSentenceListener(new SentenceListener() {
+			@Override
+			public void sentenceRead(SentenceEvent event) {
+				offer(event.getSentence(), event.getTimeStamp());
+			}
+
+			@Override
+			public void readingStarted() {
+				logger.debug("Reading started on {} .", source);
+			}
+
+			@Override
+			public void readingPaused() {
+				logger.debug("Reading paused on {} .", source);
+			}
+
+			@Override
+			public void readingStopped() {
+				logger.debug("Reading stopped on {} .", source);
+			}
+		});
+		logger.info("Merging the NMEA sentences read from {} .", source);
+	}
+
+	/**
+	 * Queues a sentence to be merged into the stream. Never blocks.
+	 *
+	 * @param timeStamp
+	 *            the time in milliseconds at which the sentence was read
+	 * @return false if the queue is full and the sentence was dropped
+	 */
+	public boolean offer(Sentence sentence, long timeStamp) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			if (dropped.getAndIncrement() == 0)
+				logger.warn("The NMEA stream is not consumed fast enough, dropping sentences");
+			return false;
+		}
+		queue.offer(new TimedSentence(timeStamp, System.nanoTime(), sentence));
+		if (parked)
+			LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/**
+	 * Starts the consumer thread routing the stream to the dispatcher
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "NMEA merge");
+		thread.setDaemon(true);
+		consumer = thread;
+		thread.start();
+		logger.debug("NMEA stream merger started");
+	}
+
+	/**
+	 * Stops the consumer thread, waiting for it to finish the batch it is
+	 * dispatching. The sentences still queued are kept until the merger is
+	 * started again.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		Thread thread = consumer;
+		consumer = null;
+		LockSupport.unpark(thread);
+		// A handler stopping the merger cannot wait for itself
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		logger.debug("NMEA stream merger stopped");
+	}
+
+	/**
+	 * Records every sentence of the merged stream, in the order it is
+	 * dispatched, until recording fails or another recorder is set
+	 *
+	 * @param recorder
+	 *            the recorder, or null to stop recording
+	 */
+	public void setRecorder(NMEARecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Returns the number of sentences dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of sentences routed to the dispatcher
+	 */
+	public long getSentenceCount() {
+		return sentences;
+	}
+
+	private void consume() {
+		TimedSentence[] batch = new TimedSentence[BATCH_SIZE];
+		// Only the latest consumer may run, even if the merger is restarted
+		// before a stopped consumer noticed it
+		Thread self = Thread.currentThread();
+		while (running && consumer == self) {
+			int count = 0;
+			TimedSentence next;
+			while (count < BATCH_SIZE && (next = queue.poll()) != null) {
+				batch[count++] = next;
+			}
+			if (count == 0) {
+				parked = true;
+				if (queue.isEmpty() && running && consumer == self)
+					LockSupport.parkNanos(this, IDLE_PARK);
+				parked = false;
+				continue;
+			}
+			size.addAndGet(-count);
+			// A stable sort, sentences of a source stay in the order read
+			Arrays.sort(batch, 0, count, BY_TIME);
+			NMEARecorder recorder = this.recorder;
+			if (recorder != null)
+				record(recorder, batch, count);
+			for (int i = 0; i < count; i++) {
+				try {
+					dispatcher.dispatch(batch[i].sentence);
+				} catch (RuntimeException e) {
+					// A failing handler must not stop the stream
+					logger.error("Cannot dispatch {} sentence",
+							batch[i].sentence.getSentenceId(), e);
+				}
+				batch[i] = null;
+			}
+			sentences += count;
+		}
+	}
+
+	private void record(NMEARecorder recorder, TimedSentence[] batch, int count) {
+		try {
+			for (int i = 0; i < count; i++) {
+				recorder.record(batch[i].receivedAt,
+						batch[i].sentence.toSentence());
+			}
+		} catch (IOException e) {
+			logger.error("Recording of the NMEA stream stopped", e);
+			this.recorder = null;
+		}
+	}
+
+	static final class TimedSentence {
+		final long timeStamp;
+		// The nano time it was queued at
+		final long receivedAt;
+		final Sentence sentence;
+
+		TimedSentence(long timeStamp, long receivedAt, Sentence sentence) {
+			this.timeStamp = timeStamp;
+			this.receivedAt = receivedAt;
+			this.sentence = sentence;
+		}
+	}
+}
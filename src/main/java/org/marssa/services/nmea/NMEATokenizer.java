@@ -0,0 +1,265 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming NMEA 0183 tokenizer working on bytes. The input is copied into a
+ * single reusable line buffer, the checksum of every line is validated in
+ * place, and the sentence is passed to the registered handlers as a
+ * {@link RawSentence} view which decodes its fields straight from the
+ * buffer. Unlike marineapi's SentenceReader, no String or Sentence object is
+ * created per line.
+ * <p>
+ * Both regular ($) and encapsulated (!) sentences such as AIS are accepted.
+ * Sentences without a checksum are accepted, sentences with a wrong one are
+ * dropped and counted. A begin character in the middle of a line starts a
+ * new sentence, so that the tokenizer resynchronises after garbage.
+ * <p>
+ * A tokenizer is fed by a single thread. Handlers may be added and removed
+ * from any thread.
+ */
+public class NMEATokenizer {
+
+	private static Logger logger = LoggerFactory.getLogger(NMEATokenizer.class
+			.getName());
+
+	// NMEA 0183 limits a sentence to 82 characters, some devices do not
+	private static final int MAX_SENTENCE_LENGTH = 256;
+	private static final int MAX_FIELDS = 64;
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final byte[] line = new byte[MAX_SENTENCE_LENGTH];
+	private final RawSentence sentence = new RawSentence(line, MAX_FIELDS);
+	private int length = 0;
+	private boolean overflowing = false;
+	private byte[] readBuffer;
+
+	private volatile Registration[] registrations = new Registration[0];
+
+	private volatile long sentences = 0;
+	private volatile long checksumErrors = 0;
+	private volatile long discarded = 0;
+
+	/**
+	 * Registers a handler for the sentences of the given type, such as GGA
+	 */
+	public synchronized void addHandler(String sentenceId,
+			IRawSentenceHandler handler) {
+		add(new Registration(sentenceId, handler));
+		logger.debug("Handler added for Sentence id {} .", sentenceId);
+	}
+
+	/**
+	 * Registers a handler for every sentence
+	 */
+	public synchronized void addHandler(IRawSentenceHandler handler) {
+		add(new Registration(null, handler));
+	}
+
+	/**
+	 * Removes every registration of the handler
+	 */
+	public synchronized void removeHandler(IRawSentenceHandler handler) {
+		int kept = 0;
+		Registration[] current = registrations;
+		Registration[] remaining = new Registration[current.length];
+		for (Registration registration : current) {
+			if (registration.handler != handler)
+				remaining[kept++] = registration;
+		}
+		Registration[] copy = new Registration[kept];
+		System.arraycopy(remaining, 0, copy, 0, kept);
+		registrations = copy;
+	}
+
+	/**
+	 * Tokenizes count bytes of the buffer starting from offset. Sentences
+	 * may be split across calls.
+	 */
+	public void feed(byte[] buffer, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			accept(buffer[i]);
+		}
+	}
+
+	/**
+	 * Tokenizes the remaining bytes of the buffer, which may be direct, and
+	 * moves its position to its limit
+	 */
+	public void feed(ByteBuffer buffer) {
+		int end = buffer.limit();
+		for (int i = buffer.position(); i < end; i++) {
+			accept(buffer.get(i));
+		}
+		buffer.position(end);
+	}
+
+	/**
+	 * Tokenizes the stream until its end, reusing a single read buffer
+	 *
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	public void read(InputStream in) throws IOException {
+		if (readBuffer == null)
+			readBuffer = new byte[READ_BUFFER_SIZE];
+		int count;
+		while ((count = in.read(readBuffer)) != -1) {
+			feed(readBuffer, 0, count);
+		}
+	}
+
+	/**
+	 * Returns the number of sentences passed to the handlers
+	 */
+	public long getSentenceCount() {
+		return sentences;
+	}
+
+	/**
+	 * Returns the number of sentences dropped because of a wrong checksum
+	 */
+	public long getChecksumErrors() {
+		return checksumErrors;
+	}
+
+	/**
+	 * Returns the number of sentences dropped because they were truncated,
+	 * too long or malformed
+	 */
+	public long getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * Packs up to the first three characters of a sentence id into an int
+	 */
+	static int sentenceCode(String sentenceId) {
+		int code = 0;
+		for (int i = 0; i < sentenceId.length() && i < 3; i++) {
+			code = code << 8 | sentenceId.charAt(i) & 0xFF;
+		}
+		return code;
+	}
+
+	private void accept(byte b) {
+		if (b == '$' || b == '!') {
+			if (length > 0 && !overflowing)
+				discarded++;
+			line[0] = b;
+			length = 1;
+			overflowing = false;
+		} else if (b == '\r' || b == '\n') {
+			if (length > 0 && !overflowing)
+				tokenize();
+			length = 0;
+			overflowing = false;
+		} else if (length > 0 && !overflowing) {
+			if (length == line.length) {
+				overflowing = true;
+				discarded++;
+			} else {
+				line[length++] = b;
+			}
+		}
+	}
+
+	private void tokenize() {
+		int end = length;
+		int checksum = 0;
+		int i = 1;
+		for (; i < length && line[i] != '*'; i++) {
+			checksum ^= line[i];
+		}
+		if (i < length) {
+			end = i;
+			int high = hex(i + 1);
+			int low = hex(i + 2);
+			if (high < 0 || low < 0 || i + 3 != length) {
+				discarded++;
+				return;
+			}
+			if ((high << 4 | low) != (checksum & 0xFF)) {
+				checksumErrors++;
+				logger.trace("Checksum error, expected {} .",
+						Integer.toHexString(checksum & 0xFF));
+				return;
+			}
+		}
+		if (!sentence.split(end)) {
+			discarded++;
+			return;
+		}
+		sentences++;
+		int code = sentence.getSentenceCode();
+		for (Registration registration : registrations) {
+			if (registration.matches(sentence, code))
+				registration.handler.sentenceRead(sentence);
+		}
+	}
+
+	/**
+	 * Returns the value of the hex digit in the line, or -1
+	 */
+	private int hex(int index) {
+		if (index >= length)
+			return -1;
+		int c = line[index];
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+
+	private void add(Registration registration) {
+		Registration[] current = registrations;
+		Registration[] copy = new Registration[current.length + 1];
+		System.arraycopy(current, 0, copy, 0, current.length);
+		copy[current.length] = registration;
+		registrations = copy;
+	}
+
+	private static final class Registration {
+		// Null for every sentence
+		final String sentenceId;
+		final int code;
+		final IRawSentenceHandler handler;
+
+		Registration(String sentenceId, IRawSentenceHandler handler) {
+			this.sentenceId = sentenceId;
+			this.code = sentenceId == null ? 0 : sentenceCode(sentenceId);
+			this.handler = handler;
+		}
+
+		boolean matches(RawSentence sentence, int sentenceCode) {
+			if (sentenceId == null)
+				return true;
+			// Ids may be longer than the packed characters
+			return code == sentenceCode && sentence.isSentence(sentenceId);
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+/**
+ * View of a single NMEA 0183 sentence held in the line buffer of a
+ * {@link NMEATokenizer}. Fields are decoded straight from the bytes of the
+ * line when they are asked for, without creating any String.
+ * <p>
+ * The view is reused for every sentence, hence it is only valid within the
+ * {@link IRawSentenceHandler#sentenceRead(RawSentence)} call it is passed
+ * to. Fields are numbered from 0, the first field after the address.
+ */
+public final class RawSentence {
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18 };
+
+	private final byte[] line;
+	// Start of every field, and the end of the last one, in the line
+	private final int[] fieldStart;
+	private int fieldCount;
+	// The address field, such as GPGGA
+	private int addressStart;
+	private int addressEnd;
+
+	RawSentence(byte[] line, int maxFields) {
+		this.line = line;
+		this.fieldStart = new int[maxFields + 1];
+	}
+
+	/**
+	 * Splits the sentence in line[0, end), which starts with the begin
+	 * character and ends before the checksum delimiter if there is one
+	 *
+	 * @return false if the sentence has more fields than can be held
+	 */
+	boolean split(int end) {
+		addressStart = 1;
+		int i = 1;
+		while (i < end && line[i] != ',')
+			i++;
+		addressEnd = i;
+		fieldCount = 0;
+		while (i < end) {
+			if (fieldCount == fieldStart.length - 1)
+				return false;
+			fieldStart[fieldCount++] = i + 1;
+			i++;
+			while (i < end && line[i] != ',')
+				i++;
+		}
+		fieldStart[fieldCount] = i + 1;
+		return true;
+	}
+
+	/**
+	 * Returns '$' for a regular sentence or '!' for an encapsulated one
+	 */
+	public char getBeginChar() {
+		return (char) line[0];
+	}
+
+	/**
+	 * Returns true if the sentence is proprietary, that is, if its address
+	 * starts with P
+	 */
+	public boolean isProprietary() {
+		return addressEnd > addressStart && line[addressStart] == 'P';
+	}
+
+	/**
+	 * Returns true if the talker of the sentence is the given one, such as GP
+	 */
+	public boolean isTalker(String talkerId) {
+		int length = isProprietary() ? 1 : 2;
+		return talkerId.length() == length
+				&& regionMatches(addressStart, length, talkerId);
+	}
+
+	/**
+	 * Returns true if the sentence is of the given type, such as GGA
+	 */
+	public boolean isSentence(String sentenceId) {
+		int start = addressStart + (isProprietary() ? 1 : 2);
+		return regionMatches(start, addressEnd - start, sentenceId);
+	}
+
+	/**
+	 * Returns the packed characters of the sentence type, as returned by
+	 * {@link NMEATokenizer#sentenceCode(String)}
+	 */
+	int getSentenceCode() {
+		int start = addressStart + (isProprietary() ? 1 : 2);
+		int code = 0;
+		for (int i = start; i < addressEnd && i < start + 3; i++) {
+			code = code << 8 | line[i] & 0xFF;
+		}
+		return code;
+	}
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public boolean isEmpty(int field) {
+		return length(field) == 0;
+	}
+
+	/**
+	 * Returns the first character of the field, or 0 if the field is empty
+	 */
+	public char getChar(int field) {
+		return isEmpty(field) ? 0 : (char) line[fieldStart[field]];
+	}
+
+	/**
+	 * Returns the field as an integer, or missing if the field is empty or
+	 * not a number
+	 */
+	public int getInt(int field, int missing) {
+		int i = fieldStart[field];
+		int end = end(field);
+		if (i == end)
+			return missing;
+		boolean negative = line[i] == '-';
+		if (negative || line[i] == '+')
+			i++;
+		if (i == end)
+			return missing;
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				return missing;
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns the field as a decimal number, or NaN if the field is empty or
+	 * not a number
+	 */
+	public double getDouble(int field) {
+		return parseDouble(fieldStart[field], end(field));
+	}
+
+	/**
+	 * Returns a latitude or longitude in signed degrees from the field in
+	 * NMEA (d)ddmm.mmmm format and the hemisphere in the next field, or NaN
+	 * if either is empty
+	 */
+	public double getPosition(int field) {
+		double value = getDouble(field);
+		char hemisphere = getChar(field + 1);
+		if (Double.isNaN(value) || hemisphere == 0)
+			return Double.NaN;
+		double degrees = Math.floor(value / 100);
+		degrees += (value - degrees * 100) / 60;
+		return hemisphere == 'S' || hemisphere == 'W' ? -degrees : degrees;
+	}
+
+	/**
+	 * Returns a UTC time in hhmmss.ss format as milliseconds since midnight,
+	 * or -1 if the field is empty or malformed
+	 */
+	public long getTime(int field) {
+		int start = fieldStart[field];
+		if (end(field) - start < 6)
+			return -1;
+		int hours = digits(start, 2);
+		int minutes = digits(start + 2, 2);
+		double seconds = parseDouble(start + 4, end(field));
+		if (hours < 0 || minutes < 0 || Double.isNaN(seconds))
+			return -1;
+		return (hours * 60L + minutes) * 60000L + Math.round(seconds * 1000);
+	}
+
+	/**
+	 * Returns a date in ddmmyy format as days since 1970-01-01, or -1 if the
+	 * field is empty or malformed. Two digit years are taken as 2000 to 2099.
+	 */
+	public long getDate(int field) {
+		int start = fieldStart[field];
+		if (end(field) - start != 6)
+			return -1;
+		int day = digits(start, 2);
+		int month = digits(start + 2, 2);
+		int year = digits(start + 4, 2);
+		if (day < 1 || month < 1 || month > 12 || year < 0)
+			return -1;
+		return epochDay(2000 + year, month, day);
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to the given date
+	 */
+	public static long epochDay(int year, int month, int day) {
+		// Days from civil, shifting the year to start in March
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Builds the sentence as a String, without the checksum. Meant for
+	 * logging only.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sentence = new StringBuilder();
+		int end = fieldStart[fieldCount] - 1;
+		for (int i = 0; i < end; i++) {
+			sentence.append((char) line[i]);
+		}
+		return sentence.toString();
+	}
+
+	private int end(int field) {
+		if (field < 0 || field >= fieldCount)
+			throw new IndexOutOfBoundsException("Field " + field + " of "
+					+ fieldCount);
+		return fieldStart[field + 1] - 1;
+	}
+
+	private int length(int field) {
+		return end(field) - fieldStart[field];
+	}
+
+	private boolean regionMatches(int start, int length, String s) {
+		if (s.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (line[start + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the value of count decimal digits, or -1 if they are not all
+	 * digits
+	 */
+	private int digits(int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private double parseDouble(int i, int end) {
+		if (i == end)
+			return Double.NaN;
+		boolean negative = line[i] == '-';
+		if (negative || line[i] == '+')
+			i++;
+		long mantissa = 0;
+		int scale = -1;
+		int digits = 0;
+		for (; i < end; i++) {
+			byte b = line[i];
+			if (b == '.' && scale < 0) {
+				scale = 0;
+				continue;
+			}
+			int digit = b - '0';
+			if (digit < 0 || digit > 9)
+				return Double.NaN;
+			// Digits beyond the precision of a double are dropped
+			if (digits < 18) {
+				mantissa = mantissa * 10 + digit;
+				digits++;
+				if (scale >= 0)
+					scale++;
+			} else if (scale < 0) {
+				// Too large a number for NMEA
+				return Double.NaN;
+			}
+		}
+		if (digits == 0)
+			return Double.NaN;
+		double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+		return negative ? -value : value;
+	}
+}
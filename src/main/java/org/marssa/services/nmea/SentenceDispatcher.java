@@ -0,0 +1,325 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.event.SentenceListener;
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.parser.DataNotAvailableException;
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceId;
+import net.sf.marineapi.nmea.sentence.TalkerId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes every sentence read to the handlers registered for its
+ * {@link SentenceId} and to the handlers registered for its {@link TalkerId}.
+ * The handlers are kept in tables indexed by the ordinal of the ids, so
+ * routing a sentence takes a single lookup of its id whatever the number of
+ * handlers registered.
+ * <p>
+ * The dispatcher is also fed with the {@link RawSentence}s of a
+ * {@link NMEATokenizer}, which reach the {@link IRawSentenceHandler}s
+ * registered for their id without being parsed. A raw sentence is only
+ * parsed by marineapi if a {@link ISentenceHandler} is registered for it,
+ * and a parsed sentence is only converted back to a raw one if a
+ * {@link IRawSentenceHandler} is registered for it, so that every handler
+ * sees the sentences of both kinds.
+ * <p>
+ * Handlers may be added and removed at any time, including from within a
+ * handler. The tables are copied on every change, hence routing never
+ * locks. Handlers are called from the threads feeding the dispatcher.
+ */
+public class SentenceDispatcher implements SentenceListener,
+		IRawSentenceHandler {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(SentenceDispatcher.class.getName());
+
+	private static final ISentenceHandler[] NO_HANDLERS = new ISentenceHandler[0];
+	private static final IRawSentenceHandler[] NO_RAW_HANDLERS = new IRawSentenceHandler[0];
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final TalkerId[] TALKER_IDS = TalkerId.values();
+
+	// SentenceId.valueOf throws on the ids which marineapi cannot parse
+	private static final Map<String, SentenceId> SENTENCE_IDS;
+	static {
+		Map<String, SentenceId> sentenceIds = new HashMap<String, SentenceId>();
+		for (SentenceId sid : SentenceId.values()) {
+			sentenceIds.put(sid.name(), sid);
+		}
+		SENTENCE_IDS = Collections.unmodifiableMap(sentenceIds);
+	}
+
+	// The packed characters of the sentence ids, as matched by the
+	// tokenizer, sorted to be searched, and the id of every code
+	private static final int[] SENTENCE_CODES;
+	private static final SentenceId[] CODED_IDS;
+	static {
+		SentenceId[] sids = SentenceId.values();
+		long[] keys = new long[sids.length];
+		for (int i = 0; i < sids.length; i++) {
+			keys[i] = (long) NMEATokenizer.sentenceCode(sids[i].name()) << 32
+					| sids[i].ordinal();
+		}
+		Arrays.sort(keys);
+		SENTENCE_CODES = new int[keys.length];
+		CODED_IDS = new SentenceId[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			SENTENCE_CODES[i] = (int) (keys[i] >>> 32);
+			CODED_IDS[i] = sids[(int) keys[i]];
+		}
+	}
+
+	private final SentenceFactory factory = SentenceFactory.getInstance();
+	// Turns the parsed sentences back into raw ones for the raw handlers
+	private final NMEATokenizer converter = new NMEATokenizer();
+
+	private volatile ISentenceHandler[][] sentenceHandlers = emptyTable(
+			new ISentenceHandler[SentenceId.values().length][], NO_HANDLERS);
+	private volatile ISentenceHandler[][] talkerHandlers = emptyTable(
+			new ISentenceHandler[TALKER_IDS.length][], NO_HANDLERS);
+	private volatile IRawSentenceHandler[][] rawHandlers = emptyTable(
+			new IRawSentenceHandler[SentenceId.values().length][],
+			NO_RAW_HANDLERS);
+	// Raw sentences are only matched against the talkers if there are any
+	private volatile int talkerHandlerCount = 0;
+
+	/**
+	 * Creates a dispatcher which is fed with {@link #sentenceRead} calls
+	 */
+	public SentenceDispatcher() {
+		converter.addHandler(new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				SentenceId sid = sentenceId(sentence);
+				if (sid != null)
+					dispatch(rawHandlers[sid.ordinal()], sentence);
+			}
+		});
+	}
+
+	/**
+	 * Creates a dispatcher routing every sentence read by the reader
+	 */
+	public SentenceDispatcher(SentenceReader reader) {
+		this();
+		reader.addSentenceListener(this);
+	}
+
+	public synchronized void addHandler(SentenceId sid, ISentenceHandler handler) {
+		sentenceHandlers = add(sentenceHandlers, sid.ordinal(), handler);
+		logger.debug("Handler added for Sentence id {} .", sid);
+	}
+
+	public synchronized void addHandler(TalkerId tid, ISentenceHandler handler) {
+		talkerHandlers = add(talkerHandlers, tid.ordinal(), handler);
+		talkerHandlerCount++;
+		logger.debug("Handler added for TalkerId {} .", tid);
+	}
+
+	/**
+	 * Registers a handler decoding the raw sentences of the given type
+	 */
+	public synchronized void addHandler(SentenceId sid,
+			IRawSentenceHandler handler) {
+		rawHandlers = add(rawHandlers, sid.ordinal(), handler);
+		logger.debug("Raw handler added for Sentence id {} .", sid);
+	}
+
+	public synchronized void removeHandler(SentenceId sid,
+			ISentenceHandler handler) {
+		sentenceHandlers = remove(sentenceHandlers, sid.ordinal(), handler);
+	}
+
+	public synchronized void removeHandler(TalkerId tid,
+			ISentenceHandler handler) {
+		ISentenceHandler[][] table = talkerHandlers;
+		talkerHandlers = remove(table, tid.ordinal(), handler);
+		if (talkerHandlers != table)
+			talkerHandlerCount--;
+	}
+
+	public synchronized void removeHandler(SentenceId sid,
+			IRawSentenceHandler handler) {
+		rawHandlers = remove(rawHandlers, sid.ordinal(), handler);
+	}
+
+	/**
+	 * Routes the sentence to its handlers
+	 */
+	public void dispatch(Sentence sentence) {
+		SentenceId sid = SENTENCE_IDS.get(sentence.getSentenceId());
+		if (sid != null) {
+			dispatch(sentenceHandlers[sid.ordinal()], sentence);
+			if (rawHandlers[sid.ordinal()].length > 0)
+				convert(sentence);
+		}
+		TalkerId tid = sentence.getTalkerId();
+		if (tid != null)
+			dispatch(talkerHandlers[tid.ordinal()], sentence);
+	}
+
+	@Override
+	public void sentenceRead(SentenceEvent event) {
+		dispatch(event.getSentence());
+	}
+
+	/**
+	 * Routes the raw sentence to its raw handlers, and to the handlers of
+	 * parsed sentences if any are registered for it
+	 */
+	@Override
+	public void sentenceRead(RawSentence sentence) {
+		SentenceId sid = sentenceId(sentence);
+		boolean parse = false;
+		if (sid != null) {
+			dispatch(rawHandlers[sid.ordinal()], sentence);
+			parse = sentenceHandlers[sid.ordinal()].length > 0;
+		}
+		if (!parse && talkerHandlerCount > 0)
+			parse = hasTalkerHandlers(sentence);
+		if (!parse)
+			return;
+		Sentence parsed;
+		try {
+			parsed = factory.createParser(sentence.toString());
+		} catch (IllegalArgumentException e) {
+			logger.trace("Unsupported sentence {} .", sentence);
+			return;
+		}
+		if (sid != null)
+			dispatch(sentenceHandlers[sid.ordinal()], parsed);
+		TalkerId tid = parsed.getTalkerId();
+		if (tid != null)
+			dispatch(talkerHandlers[tid.ordinal()], parsed);
+	}
+
+	@Override
+	public void readingPaused() {
+		logger.trace("Reading paused");
+	}
+
+	@Override
+	public void readingStarted() {
+		logger.trace("Reading started");
+	}
+
+	@Override
+	public void readingStopped() {
+		logger.trace("Reading stopped");
+	}
+
+	/**
+	 * Returns the id of the raw sentence, or null if marineapi has no such
+	 * id
+	 */
+	private static SentenceId sentenceId(RawSentence sentence) {
+		int i = Arrays.binarySearch(SENTENCE_CODES, sentence.getSentenceCode());
+		if (i < 0)
+			return null;
+		SentenceId sid = CODED_IDS[i];
+		// Ids may be longer than the packed characters
+		return sentence.isSentence(sid.name()) ? sid : null;
+	}
+
+	private boolean hasTalkerHandlers(RawSentence sentence) {
+		ISentenceHandler[][] table = talkerHandlers;
+		for (TalkerId tid : TALKER_IDS) {
+			if (table[tid.ordinal()].length > 0
+					&& sentence.isTalker(tid.name()))
+				return true;
+		}
+		return false;
+	}
+
+	private void convert(Sentence sentence) {
+		byte[] nmea = (sentence.toSentence() + "\r\n").getBytes(ASCII);
+		// The converter is fed by every thread dispatching parsed sentences
+		synchronized (converter) {
+			converter.feed(nmea, 0, nmea.length);
+		}
+	}
+
+	private static void dispatch(ISentenceHandler[] handlers, Sentence sentence) {
+		for (int i = 0; i < handlers.length; i++) {
+			try {
+				handlers[i].sentenceRead(sentence);
+			} catch (DataNotAvailableException e) {
+				// Also a ParseException, one empty or bad field must not keep
+				// the sentence from the other handlers
+				logger.debug("Cannot read {} sentence",
+						sentence.getSentenceId(), e);
+			} catch (RuntimeException e) {
+				logger.error("Handler failed on {} sentence",
+						sentence.getSentenceId(), e);
+			}
+		}
+	}
+
+	private static void dispatch(IRawSentenceHandler[] handlers,
+			RawSentence sentence) {
+		for (int i = 0; i < handlers.length; i++) {
+			try {
+				handlers[i].sentenceRead(sentence);
+			} catch (IndexOutOfBoundsException e) {
+				// A field missing from the sentence must not keep it from
+				// the other handlers
+				logger.debug("Cannot read {} sentence", sentence, e);
+			} catch (RuntimeException e) {
+				logger.error("Handler failed on {} sentence", sentence, e);
+			}
+		}
+	}
+
+	private static <T> T[][] emptyTable(T[][] table, T[] empty) {
+		Arrays.fill(table, empty);
+		return table;
+	}
+
+	private static <T> T[][] add(T[][] table, int index, T handler) {
+		T[] handlers = table[index];
+		T[] added = Arrays.copyOf(handlers, handlers.length + 1);
+		added[handlers.length] = handler;
+		T[][] copy = table.clone();
+		copy[index] = added;
+		return copy;
+	}
+
+	private static <T> T[][] remove(T[][] table, int index, T handler) {
+		T[] handlers = table[index];
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i] == handler) {
+				T[] removed = Arrays.copyOf(handlers, handlers.length - 1);
+				System.arraycopy(handlers, i + 1, removed, i, removed.length
+						- i);
+				T[][] copy = table.clone();
+				copy[index] = removed;
+				return copy;
+			}
+		}
+		return table;
+	}
+}
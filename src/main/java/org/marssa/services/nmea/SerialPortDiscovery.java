@@ -0,0 +1,483 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.nmea;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.logger.MMarker;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the serial port on which NMEA data is received. Every serial port is
+ * probed concurrently at the common NMEA baud rates, and a port is accepted
+ * once two well formed sentences, with valid checksums if any, are read from
+ * it.
+ * <p>
+ * The port and baud rate found are remembered in the user preferences, and
+ * the next discovery tries them alone first. All the ports are only probed
+ * again if the remembered port does not deliver NMEA data. The same holds
+ * for {@link #discoverAll()}, which keeps every port delivering NMEA data.
+ * When every remembered port delivers NMEA data, a listener given to
+ * {@link #discoverAll(ISerialPortListener)} is still notified of the other
+ * ports found by probing them in the background.
+ */
+public class SerialPortDiscovery {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(SerialPortDiscovery.class.getName());
+
+	private static final int[] BAUD_RATES = { 4800, 9600, 38400 };
+	private static final String PORT_KEY = "port";
+	private static final String BAUD_KEY = "baud";
+	// Comma separated port:baud pairs found by discoverAll
+	private static final String PORTS_KEY = "ports";
+	private static final int OPEN_TIMEOUT = 30;
+	// Timeout of a single read, so that probing notices its deadline
+	private static final int READ_TIMEOUT = 100;
+	private static final int SENTENCES_REQUIRED = 2;
+
+	private final Preferences preferences;
+	private volatile long probeTimeout;
+
+	/**
+	 * Remembers the port found in the user preferences of this package
+	 */
+	public SerialPortDiscovery() {
+		this(Preferences.userNodeForPackage(SerialPortDiscovery.class));
+	}
+
+	/**
+	 * @param preferences
+	 *            the preferences node in which the port found is remembered
+	 */
+	public SerialPortDiscovery(Preferences preferences) {
+		this.preferences = preferences;
+		setProbeTimeout(ServicesConstants.NMEA.PROBE_TIMEOUT);
+	}
+
+	/**
+	 * Sets how long a port is listened to at each baud rate
+	 *
+	 * @param probeTimeout
+	 *            the timeout in milliseconds
+	 */
+	public void setProbeTimeout(MInteger probeTimeout) {
+		logger.info(MMarker.SETTER, "Setting probeTimeout to {} ms.",
+				probeTimeout);
+		this.probeTimeout = probeTimeout.longValue();
+	}
+
+	/**
+	 * Returns the open serial port on which NMEA data is received, or null if
+	 * none of the serial ports delivers NMEA data
+	 */
+	public SerialPort discover() {
+		return discover(serialPortNames());
+	}
+
+	/**
+	 * Returns the open port among the given ones on which NMEA data is
+	 * received, or null if none of them delivers NMEA data
+	 */
+	public SerialPort discover(Collection<String> portNames) {
+		String lastPort = preferences.get(PORT_KEY, null);
+		int lastBaudRate = preferences.getInt(BAUD_KEY, 0);
+		if (lastPort != null && lastBaudRate > 0
+				&& portNames.contains(lastPort)) {
+			SerialPort sp = probe(lastPort, new int[] { lastBaudRate },
+					new AtomicBoolean());
+			if (sp != null) {
+				logger.info("NMEA Data is found on the last known port {} .",
+						lastPort);
+				return sp;
+			}
+			logger.info(
+					"No NMEA Data on the last known port {} . Probing all ports",
+					lastPort);
+		}
+		SerialPort sp = probeAll(portNames);
+		if (sp == null) {
+			logger.warn("NMEA data was not found");
+			return null;
+		}
+		remember(sp);
+		return sp;
+	}
+
+	/**
+	 * Returns every open serial port on which NMEA data is received
+	 */
+	public List<SerialPort> discoverAll() {
+		return discoverAll(serialPortNames(), null);
+	}
+
+	/**
+	 * Returns every open serial port on which NMEA data is received
+	 *
+	 * @param listener
+	 *            notified of the ports found in the background after the
+	 *            remembered ports are returned
+	 */
+	public List<SerialPort> discoverAll(ISerialPortListener listener) {
+		return discoverAll(serialPortNames(), listener);
+	}
+
+	/**
+	 * Returns every open port among the given ones on which NMEA data is
+	 * received. If every port remembered by the last call delivers NMEA data
+	 * at its remembered baud rate, the other ports are not probed.
+	 */
+	public List<SerialPort> discoverAll(Collection<String> portNames) {
+		return discoverAll(portNames, null);
+	}
+
+	/**
+	 * Returns every open port among the given ones on which NMEA data is
+	 * received. If every port remembered by the last call delivers NMEA data
+	 * at its remembered baud rate, they are returned at once and the other
+	 * ports are probed in the background.
+	 *
+	 * @param listener
+	 *            notified of every other port found in the background, or
+	 *            null not to probe the other ports
+	 */
+	public List<SerialPort> discoverAll(Collection<String> portNames,
+			ISerialPortListener listener) {
+		List<String> lastPorts = new ArrayList<String>();
+		List<Integer> lastBaudRates = new ArrayList<Integer>();
+		String remembered = preferences.get(PORTS_KEY, "");
+		try {
+			for (String entry : remembered.split(",")) {
+				int separator = entry.lastIndexOf(':');
+				if (separator > 0
+						&& portNames.contains(entry.substring(0, separator))) {
+					lastPorts.add(entry.substring(0, separator));
+					lastBaudRates.add(Integer.valueOf(entry
+							.substring(separator + 1)));
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring the corrupted last known ports "
+					+ remembered, e);
+			lastPorts.clear();
+			lastBaudRates.clear();
+		}
+		if (!lastPorts.isEmpty()) {
+			List<SerialPort> ports = probeEach(lastPorts, lastBaudRates);
+			if (ports.size() == lastPorts.size()) {
+				logger.info("NMEA Data is found on the {} last known ports",
+						ports.size());
+				if (listener != null) {
+					List<String> others = new ArrayList<String>(portNames);
+					others.removeAll(lastPorts);
+					probeInBackground(others, ports, listener);
+				}
+				return ports;
+			}
+			for (SerialPort sp : ports) {
+				sp.close();
+			}
+			logger.info("No NMEA Data on some of the last known ports. Probing all ports");
+		}
+		List<Integer> baudRates = new ArrayList<Integer>();
+		for (int i = 0; i < portNames.size(); i++) {
+			baudRates.add(null);
+		}
+		List<SerialPort> ports = probeEach(new ArrayList<String>(portNames),
+				baudRates);
+		if (ports.isEmpty())
+			logger.warn("NMEA data was not found");
+		rememberAll(ports);
+		return ports;
+	}
+
+	/**
+	 * Probes the ports on a daemon thread, notifying the listener of every
+	 * port found and remembering it along with the ports already found
+	 */
+	private void probeInBackground(final List<String> portNames,
+			final List<SerialPort> found, final ISerialPortListener listener) {
+		if (portNames.isEmpty())
+			return;
+		// The ports returned may be closed before the probes complete
+		final List<String> remembered = new ArrayList<String>();
+		for (SerialPort sp : found) {
+			remembered.add(sp.getName() + ':' + sp.getBaudRate());
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				List<Integer> baudRates = new ArrayList<Integer>();
+				for (int i = 0; i < portNames.size(); i++) {
+					baudRates.add(null);
+				}
+				List<SerialPort> ports = probeEach(portNames, baudRates);
+				if (ports.isEmpty())
+					return;
+				logger.info("NMEA Data is found on {} other ports",
+						ports.size());
+				for (SerialPort sp : ports) {
+					remembered.add(sp.getName() + ':' + sp.getBaudRate());
+					try {
+						listener.portDiscovered(sp);
+					} catch (RuntimeException e) {
+						logger.error("Cannot use the port " + sp.getName(), e);
+						sp.close();
+					}
+				}
+				remember(remembered);
+			}
+		}, "NMEA port discovery");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Forgets the ports remembered by the last discoveries
+	 */
+	public void forget() {
+		preferences.remove(PORT_KEY);
+		preferences.remove(BAUD_KEY);
+		preferences.remove(PORTS_KEY);
+	}
+
+	/**
+	 * Probes every port concurrently
+	 *
+	 * @param baudRates
+	 *            the baud rate to probe each port at, or null to probe it at
+	 *            every common baud rate
+	 * @return the ports delivering NMEA data
+	 */
+	private List<SerialPort> probeEach(List<String> portNames,
+			List<Integer> baudRates) {
+		List<SerialPort> ports = new ArrayList<SerialPort>();
+		if (portNames.isEmpty())
+			return ports;
+		ExecutorService executor = newProbeExecutor(portNames.size());
+		try {
+			CompletionService<SerialPort> probes = new ExecutorCompletionService<SerialPort>(
+					executor);
+			for (int i = 0; i < portNames.size(); i++) {
+				final String portName = portNames.get(i);
+				final int[] rates = baudRates.get(i) == null ? BAUD_RATES
+						: new int[] { baudRates.get(i) };
+				probes.submit(new Callable<SerialPort>() {
+					@Override
+					public SerialPort call() {
+						return probe(portName, rates, null);
+					}
+				});
+			}
+			for (int i = 0; i < portNames.size(); i++) {
+				SerialPort sp = probes.take().get();
+				if (sp != null)
+					ports.add(sp);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.error("Probing the serial ports failed", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return ports;
+	}
+
+	private static ExecutorService newProbeExecutor(int ports) {
+		return Executors.newFixedThreadPool(ports, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "NMEA port probe");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private SerialPort probeAll(Collection<String> portNames) {
+		if (portNames.isEmpty())
+			return null;
+		ExecutorService executor = newProbeExecutor(portNames.size());
+		try {
+			CompletionService<SerialPort> probes = new ExecutorCompletionService<SerialPort>(
+					executor);
+			// Only the first port found is kept open
+			final AtomicBoolean found = new AtomicBoolean();
+			for (final String portName : portNames) {
+				probes.submit(new Callable<SerialPort>() {
+					@Override
+					public SerialPort call() {
+						return probe(portName, BAUD_RATES, found);
+					}
+				});
+			}
+			for (int i = 0; i < portNames.size(); i++) {
+				SerialPort sp = probes.take().get();
+				if (sp != null)
+					return sp;
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			logger.error("Probing the serial ports failed", e);
+			return null;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Opens the port and listens for NMEA data at each baud rate in turn
+	 *
+	 * @param found
+	 *            set by the first port found among concurrent probes, or null
+	 *            to keep every port found
+	 * @return the open port, or null if no NMEA data is received or another
+	 *         port was found first
+	 */
+	private SerialPort probe(String portName, int[] baudRates,
+			AtomicBoolean found) {
+		SerialPort sp = null;
+		boolean keep = false;
+		try {
+			CommPortIdentifier id = CommPortIdentifier
+					.getPortIdentifier(portName);
+			if (id.isCurrentlyOwned()) {
+				logger.debug("Port {} . is currently in use", portName);
+				return null;
+			}
+			CommPort port = id.open("NMEAReader", OPEN_TIMEOUT);
+			if (!(port instanceof SerialPort)) {
+				port.close();
+				return null;
+			}
+			sp = (SerialPort) port;
+			sp.enableReceiveTimeout(READ_TIMEOUT);
+			InputStream is = sp.getInputStream();
+			for (int baudRate : baudRates) {
+				if ((found != null && found.get())
+						|| Thread.currentThread().isInterrupted())
+					return null;
+				Object[] serialConnection = { portName, baudRate };
+				logger.debug("Probing port {} . at {} . baud",
+						serialConnection);
+				sp.setSerialPortParams(baudRate, SerialPort.DATABITS_8,
+						SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+				if (receivesNMEA(is)
+						&& (found == null || found.compareAndSet(false, true))) {
+					logger.info("NMEA Data is found on port {} . at {} . baud",
+							serialConnection);
+					sp.disableReceiveTimeout();
+					keep = true;
+					return sp;
+				}
+			}
+			return null;
+		} catch (Exception e) {
+			logger.debug("Cannot probe port " + portName, e);
+			return null;
+		} finally {
+			if (sp != null && !keep)
+				sp.close();
+		}
+	}
+
+	private boolean receivesNMEA(InputStream is) throws IOException {
+		NMEATokenizer tokenizer = new NMEATokenizer();
+		byte[] buffer = new byte[256];
+		long deadline = System.currentTimeMillis() + probeTimeout;
+		while (System.currentTimeMillis() < deadline
+				&& !Thread.currentThread().isInterrupted()) {
+			int count = is.read(buffer);
+			if (count > 0)
+				tokenizer.feed(buffer, 0, count);
+			if (tokenizer.getSentenceCount() >= SENTENCES_REQUIRED)
+				return true;
+		}
+		return false;
+	}
+
+	private void remember(SerialPort sp) {
+		preferences.put(PORT_KEY, sp.getName());
+		preferences.putInt(BAUD_KEY, sp.getBaudRate());
+		flush();
+	}
+
+	private void rememberAll(List<SerialPort> ports) {
+		List<String> entries = new ArrayList<String>();
+		for (SerialPort sp : ports) {
+			entries.add(sp.getName() + ':' + sp.getBaudRate());
+		}
+		remember(entries);
+	}
+
+	private void remember(List<String> entries) {
+		StringBuilder remembered = new StringBuilder();
+		for (String entry : entries) {
+			if (remembered.length() > 0)
+				remembered.append(',');
+			remembered.append(entry);
+		}
+		preferences.put(PORTS_KEY, remembered.toString());
+		flush();
+	}
+
+	private void flush() {
+		try {
+			preferences.flush();
+		} catch (BackingStoreException e) {
+			logger.warn("Cannot remember the NMEA ports", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> serialPortNames() {
+		List<String> names = new ArrayList<String>();
+		Enumeration<CommPortIdentifier> e = CommPortIdentifier
+				.getPortIdentifiers();
+		while (e.hasMoreElements()) {
+			CommPortIdentifier id = e.nextElement();
+			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL)
+				names.add(id.getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer service for a large number of short periodic tasks, such as one
+ * {@link org.marssa.services.logging.LoggingTask} per logged quantity. The
+ * tasks are hashed by their execution tick into the buckets of a wheel, so
+ * that scheduling and cancelling a task take constant time whatever the
+ * number of tasks, unlike the binary heap of {@link java.util.Timer}.
+ * <p>
+ * Scheduling only appends the task to a lock-free queue, which the wheel
+ * thread moves into the buckets on every tick. Cancelling a task only marks
+ * it, and the wheel thread unlinks it the next time it visits its bucket,
+ * at most one revolution later. Tasks run on the wheel thread at the
+ * resolution of the tick, and should therefore be short; tasks which may
+ * block belong on {@link MTimerService}.
+ */
+public class HashedWheelTimer implements ITimerService {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(HashedWheelTimer.class.getName());
+
+	// Bounds the time spent moving new tasks into the wheel on one tick
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	// log2 of the number of buckets
+	private final int shift;
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+	// The wall clock and nano time the ticks are counted from
+	private final long startMillis;
+	private final long startNanos;
+	// Only accessed by the wheel thread
+	private long tick = 0;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Creates a timer ticking every
+	 * {@link ServicesConstants.SCHEDULING#WHEEL_TICK} milliseconds with
+	 * {@link ServicesConstants.SCHEDULING#WHEEL_SIZE} buckets
+	 */
+	public HashedWheelTimer() throws OutOfRange {
+		this(ServicesConstants.SCHEDULING.WHEEL_TICK,
+				ServicesConstants.SCHEDULING.WHEEL_SIZE);
+	}
+
+	/**
+	 * @param tickMillis
+	 *            the resolution of the timer in milliseconds
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two. Tasks
+	 *            due within one revolution of the wheel are never looked at
+	 *            before they are due.
+	 * @throws OutOfRange
+	 *             if the tick or the wheel size is not positive
+	 */
+	public HashedWheelTimer(MInteger tickMillis, MInteger wheelSize)
+			throws OutOfRange {
+		if (tickMillis.intValue() < 1 || wheelSize.intValue() < 1
+				|| wheelSize.intValue() > 1 << 30) {
+			OutOfRange e = new OutOfRange(
+					"Tick and wheel size of the timer must be greater than 0");
+			logger.error("OutOfRange Exception", e);
+			throw e;
+		}
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis.intValue());
+		int size = 1;
+		while (size < wheelSize.intValue())
+			size <<= 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		shift = Integer.numberOfTrailingZeros(size);
+		startMillis = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, "HashedWheelTimer");
+		worker.start();
+		logger.debug("Timer wheel of {} . buckets started", size);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, Date date) {
+		schedule(task, date.getTime() - System.currentTimeMillis(), 0, false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, Date date, long period) {
+		checkPeriod(period);
+		schedule(task, date.getTime() - System.currentTimeMillis(), period,
+				false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, long delay) {
+		checkDelay(delay);
+		schedule(task, delay, 0, false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, long delay, long period) {
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, delay, period, false);
+	}
+
+	public void addScheduleAtFixedRate(MTimerTask task, Date firstTime,
+			long period) {
+		checkPeriod(period);
+		schedule(task, firstTime.getTime() - System.currentTimeMillis(),
+				period, true);
+	}
+
+	public void addScheduleAtFixedRate(MTimerTask task, long delay, long period) {
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, delay, period, true);
+	}
+
+	/**
+	 * Stops the wheel and discards every scheduled task. A task running is
+	 * completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+		worker.interrupt();
+		logger.debug("Timer wheel cancelled");
+	}
+
+	/**
+	 * Returns true once the timer is cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Returns the resolution of the timer in milliseconds
+	 */
+	public long getTickMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+	}
+
+	private static void checkDelay(long delay) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+	}
+
+	private static void checkPeriod(long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+	}
+
+	private void schedule(MTimerTask task, long delayMillis, long period,
+			boolean fixedRate) {
+		if (cancelled)
+			throw new IllegalStateException("Timer already cancelled.");
+		task.markScheduled();
+		long deadline = System.nanoTime() - startNanos
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		pending.add(new Timeout(task, deadline,
+				TimeUnit.MILLISECONDS.toNanos(period), fixedRate));
+	}
+
+	private void turn() {
+		try {
+			while (!cancelled) {
+				long deadline = (tick + 1) * tickNanos;
+				long sleep = deadline - (System.nanoTime() - startNanos);
+				if (sleep > 0)
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				transferPending();
+				expire(wheel[(int) (tick & mask)]);
+				tick++;
+			}
+		} catch (InterruptedException e) {
+			if (!cancelled)
+				logger.warn("Timer wheel interrupted", e);
+		}
+		pending.clear();
+		for (Bucket bucket : wheel) {
+			bucket.head = null;
+			bucket.tail = null;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK
+				&& (timeout = pending.poll()) != null; i++) {
+			if (!timeout.task.isCancelled())
+				place(timeout);
+		}
+	}
+
+	/**
+	 * Puts the timeout in the bucket of its deadline, or in the bucket of
+	 * the current tick if its deadline has passed
+	 */
+	private void place(Timeout timeout) {
+		long due = Math.max(timeout.deadline / tickNanos, tick);
+		timeout.rounds = (due - tick) >> shift;
+		wheel[(int) (due & mask)].add(timeout);
+	}
+
+	/**
+	 * Runs the timeouts of the bucket which are due this revolution
+	 */
+	private void expire(Bucket bucket) {
+		// The periodic timeouts put back into the bucket wait a revolution
+		Timeout last = bucket.tail;
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout == last ? null : timeout.next;
+			if (timeout.task.isCancelled()) {
+				bucket.remove(timeout);
+			} else if (timeout.rounds <= 0) {
+				bucket.remove(timeout);
+				run(timeout);
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void run(Timeout timeout) {
+		MTimerTask task = timeout.task;
+		task.setScheduledExecutionTime(startMillis
+				+ TimeUnit.NANOSECONDS.toMillis(timeout.deadline));
+		long started = System.nanoTime() - startNanos;
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			logger.error("Task {} . failed", task.getTaskName(), e);
+		}
+		if (timeout.period == 0) {
+			task.setFinished();
+		} else if (!task.isCancelled()) {
+			timeout.deadline = (timeout.fixedRate ? timeout.deadline
+					: started) + timeout.period;
+			// Never back into the bucket being expired
+			long due = Math.max(timeout.deadline / tickNanos, tick + 1);
+			timeout.rounds = (due - tick - 1) >> shift;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * A scheduled execution of a task, linked into a bucket
+	 */
+	private static final class Timeout {
+		final MTimerTask task;
+		final long period;
+		final boolean fixedRate;
+		// Nanos since the start of the timer
+		long deadline;
+		// Revolutions of the wheel left before the deadline
+		long rounds;
+		Timeout previous;
+		Timeout next;
+
+		Timeout(MTimerTask task, long deadline, long period, boolean fixedRate) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+			this.fixedRate = fixedRate;
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts, only accessed by the wheel thread
+	 */
+	private static final class Bucket {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.next = null;
+			timeout.previous = tail;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous == null)
+				head = timeout.next;
+			else
+				timeout.previous.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.previous;
+			else
+				timeout.next.previous = timeout.previous;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+/**
+ * Source of the time of the services which read or wait for it, so that
+ * they can run on a {@link VirtualClock} in simulations and tests instead of
+ * the {@link SystemClock}. The services also tell the clock when they are
+ * busy with work it timed, so that a virtual clock only moves once that
+ * work is done.
+ */
+public interface IClock {
+	/**
+	 * Returns the current time in milliseconds since the epoch
+	 */
+	public long currentTimeMillis();
+
+	/**
+	 * Blocks the calling thread for the given time of this clock
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while sleeping
+	 */
+	public void sleep(long millis) throws InterruptedException;
+
+	/**
+	 * Waits on the monitor, whose lock the caller holds, until it is notified
+	 * or this clock reaches the given time. As with {@link Object#wait()},
+	 * the wait may end early, hence callers check their condition again.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void waitUntil(Object monitor, long time)
+			throws InterruptedException;
+
+	/**
+	 * Counts the thread as busy with work timed by this clock until it
+	 * sleeps or waits on the clock, or calls {@link #idle()}. Meant for a
+	 * thread started or notified by a busy one, as a {@link VirtualClock}
+	 * does not move while a thread is busy. A thread woken by the clock is
+	 * busy already.
+	 */
+	public void busy(Thread thread);
+
+	/**
+	 * Counts the calling thread as idle, such as before it ends
+	 */
+	public void idle();
+
+	/**
+	 * Counts work timed by this clock handed over to another thread, such as
+	 * a run queued for a worker, until {@link #endWork()} is called
+	 */
+	public void beginWork();
+
+	public void endWork();
+}
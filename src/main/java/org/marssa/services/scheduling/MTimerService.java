@@ -13,31 +13,140 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-/**
- * 
- */
 package org.marssa.services.scheduling;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Timer;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.constants.ServicesConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Runs {@link MTimerTask}s on a pool of worker threads. A single timer
+ * thread keeps the tasks ordered by their next execution time and hands
+ * every task falling due to the workers, so that a task overrunning its
+ * period only holds up one worker while the other tasks keep their
+ * schedule. An exception thrown by a task is logged and the task keeps its
+ * schedule.
+ * <p>
+ * The executions of a periodic task never overlap: its next execution is
+ * scheduled once the current one completes. As with {@link java.util.Timer},
+ * the next execution of a fixed-delay task is due one period after the
+ * current one started, a fixed-rate task which falls behind runs its late
+ * executions back to back, and a task may only be scheduled once.
+ * <p>
+ * The tasks are indexed by their {@link MTimerTask#getTaskName()}, so that
+ * they can be cancelled by name, and the {@link TaskStatistics} of their
+ * runs are kept by name as well.
+ * <p>
+ * The executions waiting for a worker run by {@link TaskPriority}, and
+ * earliest deadline first within each priority. A task's deadline is its
+ * {@link MTimerTask#getDeadline()} from its scheduled time, or its period.
+ * {@link ServicesConstants.SCHEDULING#RESERVED_WORKERS} workers are kept free
+ * of {@link TaskPriority#LOW} executions. A low priority execution finding
+ * higher priority ones waiting, or the other workers busy with low priority
+ * work, is deferred until a run completes, and shed once past its deadline.
+ * A periodic task whose execution is shed resumes at its next period.
+ * <p>
+ * The schedule follows an {@link IClock}, the {@link SystemClock} unless
+ * another is given, so that a service may run on a {@link VirtualClock}.
+ *
  * @author Warren Zahra
  * 
  */
 public class MTimerService implements ITimerService {
-	private Timer marssaTimer;
+
+	private static Logger logger = LoggerFactory.getLogger(MTimerService.class
+			.getName());
+
 	private static MTimerService mTimer;
-	private MTimerTask task;
-	private final ArrayList<MTimerTask> timerTasklist = new ArrayList<MTimerTask>();;
+
+	// Guarded by itself, notified when an earlier execution is added
+	private final PriorityQueue<Schedule> queue = new PriorityQueue<Schedule>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final IClock clock;
+	private final ThreadPoolExecutor workers;
+	// The executions waiting for a worker, by priority
+	private final AtomicIntegerArray waiting = new AtomicIntegerArray(
+			TaskPriority.values().length);
+	private final AtomicInteger lowRunning = new AtomicInteger();
+	private final int lowWorkers;
+	// Guarded by itself, the low priority executions held back by deadline
+	private final PriorityQueue<Schedule> deferred = new PriorityQueue<Schedule>(
+			11, BY_DEADLINE);
+	private final Thread timer;
+	private volatile boolean cancelled = false;
+	// The tasks and statistics by task name, entries are never removed
+	private final ConcurrentMap<String, NamedTasks> tasksByName = new ConcurrentHashMap<String, NamedTasks>();
 
 	private MTimerService() {
-		marssaTimer = new Timer();
+		this(ServicesConstants.SCHEDULING.WORKER_THREADS);
 	}
 
-	public static MTimerService getInstance() {
-		if (mTimer == null) {
+	/**
+	 * Creates a service of its own, independent of {@link #getInstance()}
+	 *
+	 * @param workerThreads
+	 *            the number of tasks which may run at the same time
+	 */
+	public MTimerService(MInteger workerThreads) {
+		this(workerThreads, SystemClock.getInstance());
+	}
+
+	/**
+	 * Creates a service of its own following the given clock
+	 *
+	 * @param workerThreads
+	 *            the number of tasks which may run at the same time
+	 */
+	public MTimerService(MInteger workerThreads, IClock clock) {
+		this.clock = clock;
+		final AtomicInteger workerCount = new AtomicInteger();
+		workers = new ThreadPoolExecutor(workerThreads.intValue(),
+				workerThreads.intValue(), 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(11, READY_ORDER),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "MTimerService worker "
+								+ workerCount.incrementAndGet());
+					}
+				});
+		lowWorkers = Math.max(1, workerThreads.intValue()
+				- ServicesConstants.SCHEDULING.RESERVED_WORKERS.intValue());
+		timer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "MTimerService");
+		timer.start();
+		logger.debug("Timer service started with {} . workers", workerThreads);
+	}
+
+	/**
+	 * Returns the shared service, creating it again if it was cancelled
+	 */
+	public static synchronized MTimerService getInstance() {
+		if (mTimer == null || mTimer.cancelled) {
 			mTimer = new MTimerService();
 		}
 		return mTimer;
@@ -45,50 +154,457 @@ public class MTimerService implements ITimerService {
 
 	@Override
 	public void addSchedule(MTimerTask task, Date date) {
-		marssaTimer.schedule(task, date);
-		timerTasklist.add(task);
-
+		schedule(task, date.getTime(), 0, false);
 	}
 
 	@Override
 	public void addSchedule(MTimerTask task, Date date, long period) {
-		marssaTimer.schedule(task, date, period);
-		timerTasklist.add(task);
-
+		checkPeriod(period);
+		schedule(task, date.getTime(), period, false);
 	}
 
 	@Override
 	public void addSchedule(MTimerTask task, long delay) {
-		marssaTimer.schedule(task, delay);
-		timerTasklist.add(task);
-
+		checkDelay(delay);
+		schedule(task, clock.currentTimeMillis() + delay, 0, false);
 	}
 
 	@Override
 	public void addSchedule(MTimerTask task, long delay, long period) {
-		marssaTimer.schedule(task, delay, period);
-		timerTasklist.add(task);
-
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, clock.currentTimeMillis() + delay, period, false);
 	}
 
 	public void addScheduleAtFixedRate(MTimerTask task, Date firstTime,
 			long period) {
-		marssaTimer.scheduleAtFixedRate(task, firstTime, period);
-		timerTasklist.add(task);
+		checkPeriod(period);
+		schedule(task, firstTime.getTime(), period, true);
 	}
 
 	public void addScheduleAtFixedRate(MTimerTask task, long delay, long period) {
-		marssaTimer.scheduleAtFixedRate(task, delay, period);
-		timerTasklist.add(task);
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, clock.currentTimeMillis() + delay, period, true);
 	}
 
+	/**
+	 * Discards every scheduled task. The runs in progress are completed.
+	 */
 	public void cancel() {
-		marssaTimer.cancel();
-		marssaTimer = null;
-		timerTasklist.clear();
+		synchronized (queue) {
+			cancelled = true;
+			queue.clear();
+			queue.notifyAll();
+		}
+		synchronized (deferred) {
+			deferred.clear();
+		}
+		workers.shutdown();
+		for (NamedTasks named : tasksByName.values()) {
+			named.tasks.clear();
+		}
+		logger.debug("Timer service cancelled");
+	}
+
+	/**
+	 * Returns true once the service is cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
 	}
 
+	/**
+	 * Cancels every scheduled task of the given name
+	 */
 	public void cancelTask(String timerTaskName) {
-		timerTasklist.remove(new String(timerTaskName.toString()));
+		NamedTasks named = tasksByName.get(timerTaskName);
+		if (named == null)
+			return;
+		for (MTimerTask task : named.tasks) {
+			task.cancel();
+			named.tasks.remove(task);
+		}
+		logger.debug("Cancelled task {} .", timerTaskName);
+	}
+
+	/**
+	 * Returns the statistics of the tasks of the given name, or null if no
+	 * task of that name was ever scheduled
+	 */
+	public TaskStatistics getStatistics(String timerTaskName) {
+		NamedTasks named = tasksByName.get(timerTaskName);
+		return named == null ? null : named.statistics;
+	}
+
+	/**
+	 * Returns the statistics of every task name ever scheduled
+	 */
+	public Collection<TaskStatistics> getStatistics() {
+		List<TaskStatistics> statistics = new ArrayList<TaskStatistics>();
+		for (NamedTasks named : tasksByName.values()) {
+			statistics.add(named.statistics);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns the number of tasks of the given name which are scheduled
+	 */
+	public int getScheduledCount(String timerTaskName) {
+		NamedTasks named = tasksByName.get(timerTaskName);
+		return named == null ? 0 : named.tasks.size();
+	}
+
+	private static void checkDelay(long delay) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+	}
+
+	private static void checkPeriod(long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+	}
+
+	private void schedule(MTimerTask task, long time, long period,
+			boolean fixedRate) {
+		if (cancelled)
+			throw new IllegalStateException("Timer already cancelled.");
+		task.markScheduled();
+		String name = String.valueOf(task.getTaskName());
+		NamedTasks named = tasksByName.get(name);
+		if (named == null) {
+			NamedTasks created = new NamedTasks(name);
+			named = tasksByName.putIfAbsent(name, created);
+			if (named == null)
+				named = created;
+		}
+		named.tasks.add(task);
+		enqueue(new Schedule(task, named, time, period, fixedRate));
+		logger.trace("Scheduled {} .", task.getTaskName());
+	}
+
+	private void enqueue(Schedule schedule) {
+		synchronized (queue) {
+			if (cancelled)
+				return;
+			schedule.sequence = sequence.getAndIncrement();
+			queue.add(schedule);
+			if (queue.peek() == schedule)
+				wakeTimer();
+		}
+	}
+
+	/**
+	 * Queues the execution for a worker, ordered by its priority and
+	 * deadline
+	 */
+	private void ready(Schedule schedule) {
+		waiting.incrementAndGet(schedule.priority.ordinal());
+		clock.beginWork();
+		try {
+			workers.execute(schedule);
+		} catch (RejectedExecutionException e) {
+			waiting.decrementAndGet(schedule.priority.ordinal());
+			clock.endWork();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wakes the timer thread, which is busy for the clock until it waits
+	 * again. Called holding the queue.
+	 */
+	private void wakeTimer() {
+		clock.busy(timer);
+		queue.notify();
+	}
+
+	/**
+	 * Returns true if executions of a higher priority than the given one are
+	 * waiting for a worker
+	 */
+	private boolean higherWaiting(TaskPriority priority) {
+		for (int i = 0; i < priority.ordinal(); i++) {
+			if (waiting.get(i) > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Queues the deferred execution with the earliest deadline again, once a
+	 * run has completed
+	 */
+	private void releaseDeferred() {
+		Schedule next;
+		synchronized (deferred) {
+			next = deferred.poll();
+		}
+		if (next == null)
+			return;
+		try {
+			ready(next);
+		} catch (RejectedExecutionException e) {
+			// Cancelled
+		}
+	}
+
+	/**
+	 * Queues the deferred executions past their deadline again, to be shed
+	 * even if no run completes
+	 *
+	 * @return the time the next deferred execution passes its deadline, or
+	 *         Long.MAX_VALUE
+	 */
+	private long releaseExpired(long now) {
+		while (true) {
+			Schedule expired;
+			synchronized (deferred) {
+				Schedule first = deferred.peek();
+				if (first == null || first.deadline == Long.MAX_VALUE)
+					return Long.MAX_VALUE;
+				if (first.deadline >= now)
+					return first.deadline + 1;
+				expired = deferred.poll();
+			}
+			ready(expired);
+		}
+	}
+
+	/**
+	 * Hands the tasks to the workers as they fall due
+	 */
+	private void dispatch() {
+		try {
+			synchronized (queue) {
+				while (!cancelled) {
+					long now = clock.currentTimeMillis();
+					long expiry = releaseExpired(now);
+					Schedule next = queue.peek();
+					if (next == null || next.time > now) {
+						clock.waitUntil(queue, Math.min(
+								next == null ? Long.MAX_VALUE : next.time,
+								expiry));
+						continue;
+					}
+					queue.poll();
+					if (next.task.isCancelled()) {
+						next.named.tasks.remove(next.task);
+						continue;
+					}
+					next.prepare();
+					ready(next);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Timer service interrupted", e);
+		} catch (RejectedExecutionException e) {
+			// Cancelled while handing a task over
+		} finally {
+			clock.idle();
+		}
+	}
+
+	/**
+	 * Orders the executions waiting for a worker by priority, then earliest
+	 * deadline first
+	 */
+	private static final Comparator<Runnable> READY_ORDER = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable r1, Runnable r2) {
+			Schedule s1 = (Schedule) r1;
+			Schedule s2 = (Schedule) r2;
+			if (s1.priority != s2.priority)
+				return s1.priority.compareTo(s2.priority);
+			return BY_DEADLINE.compare(s1, s2);
+		}
+	};
+
+	private static final Comparator<Schedule> BY_DEADLINE = new Comparator<Schedule>() {
+		@Override
+		public int compare(Schedule s1, Schedule s2) {
+			if (s1.deadline != s2.deadline)
+				return s1.deadline < s2.deadline ? -1 : 1;
+			return s1.sequence < s2.sequence ? -1
+					: s1.sequence == s2.sequence ? 0 : 1;
+		}
+	};
+
+	/**
+	 * The tasks scheduled under one name and their statistics
+	 */
+	private static final class NamedTasks {
+		final TaskStatistics statistics;
+		final Set<MTimerTask> tasks = Collections
+				.newSetFromMap(new ConcurrentHashMap<MTimerTask, Boolean>());
+
+		NamedTasks(String name) {
+			statistics = new TaskStatistics(name);
+		}
+	}
+
+	/**
+	 * The next execution of a task
+	 */
+	private final class Schedule implements Runnable, Comparable<Schedule> {
+		final MTimerTask task;
+		// The name the task was scheduled under
+		final NamedTasks named;
+		final long period;
+		final boolean fixedRate;
+		long time;
+		// Orders the executions due at the same time by when they were queued
+		long sequence;
+		// Of the current execution, set as it falls due
+		TaskPriority priority;
+		long deadline;
+		boolean wasDeferred;
+
+		Schedule(MTimerTask task, NamedTasks named, long time, long period,
+				boolean fixedRate) {
+			this.task = task;
+			this.named = named;
+			this.time = time;
+			this.period = period;
+			this.fixedRate = fixedRate;
+		}
+
+		void prepare() {
+			priority = task.getPriority();
+			long relative = task.getDeadline() > 0 ? task.getDeadline()
+					: period;
+			deadline = relative > 0 ? time + relative : Long.MAX_VALUE;
+			wasDeferred = false;
+		}
+
+		@Override
+		public void run() {
+			// The worker takes the work over, so that a task sleeping on the
+			// clock lets it move on
+			clock.busy(Thread.currentThread());
+			clock.endWork();
+			try {
+				start();
+			} finally {
+				clock.idle();
+			}
+		}
+
+		/**
+		 * Runs, defers or sheds the execution
+		 */
+		private void start() {
+			waiting.decrementAndGet(priority.ordinal());
+			if (task.isCancelled()) {
+				named.tasks.remove(task);
+				releaseDeferred();
+				return;
+			}
+			if (priority != TaskPriority.LOW) {
+				execute();
+				releaseDeferred();
+				return;
+			}
+			boolean admitted = false;
+			if (!higherWaiting(priority)) {
+				admitted = lowRunning.incrementAndGet() <= lowWorkers;
+				if (!admitted)
+					lowRunning.decrementAndGet();
+			}
+			boolean late = clock.currentTimeMillis() > deadline;
+			if (admitted) {
+				try {
+					if (wasDeferred && late)
+						shed();
+					else
+						execute();
+				} finally {
+					lowRunning.decrementAndGet();
+				}
+			} else if (late) {
+				shed();
+			} else {
+				defer();
+				return;
+			}
+			releaseDeferred();
+		}
+
+		/**
+		 * Holds the execution back until a run completes or its deadline
+		 * passes
+		 */
+		private void defer() {
+			wasDeferred = true;
+			named.statistics.recordDeferred();
+			boolean earliest;
+			synchronized (deferred) {
+				deferred.add(this);
+				earliest = deferred.peek() == this;
+			}
+			if (earliest) {
+				// The timer thread sheds the execution past its deadline
+				synchronized (queue) {
+					wakeTimer();
+				}
+			}
+			// The run holding this one back may have completed before it was
+			// added, finding nothing to release
+			if (!higherWaiting(priority) && lowRunning.get() < lowWorkers)
+				releaseDeferred();
+		}
+
+		/**
+		 * Skips the execution, a periodic task resuming at its next period
+		 */
+		private void shed() {
+			named.statistics.recordShed();
+			logger.debug("Shed an execution of {} .", task.getTaskName());
+			if (period == 0) {
+				task.setFinished();
+				named.tasks.remove(task);
+				return;
+			}
+			long now = clock.currentTimeMillis();
+			if (fixedRate)
+				time += ((now - time) / period + 1) * period;
+			else
+				time = now + period;
+			enqueue(this);
+		}
+
+		private void execute() {
+			task.setScheduledExecutionTime(time);
+			long start = clock.currentTimeMillis();
+			long lag = start - time;
+			long started = System.nanoTime();
+			boolean failed = false;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				failed = true;
+				logger.error("Task {} . failed", task.getTaskName(), e);
+			}
+			named.statistics.record(lag, System.nanoTime() - started, period,
+					fixedRate, failed);
+			if (period == 0) {
+				task.setFinished();
+				named.tasks.remove(task);
+			} else if (task.isCancelled()) {
+				named.tasks.remove(task);
+			} else {
+				time = fixedRate ? time + period : start + period;
+				enqueue(this);
+			}
+		}
+
+		@Override
+		public int compareTo(Schedule other) {
+			if (time != other.time)
+				return time < other.time ? -1 : 1;
+			return sequence < other.sequence ? -1
+					: sequence == other.sequence ? 0 : 1;
+		}
 	}
 }
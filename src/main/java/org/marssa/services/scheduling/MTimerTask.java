@@ -16,6 +16,7 @@
 package org.marssa.services.scheduling;
 
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.marssa.footprint.datatypes.MString;
 
@@ -28,6 +29,18 @@ public abstract class MTimerTask extends TimerTask {
 
 	private MString taskName;
 
+	private volatile TaskPriority priority = TaskPriority.NORMAL;
+	// Milliseconds from the scheduled time, 0 for the period
+	private volatile long deadline = 0;
+
+	// Set once the task is scheduled on an MTimerService
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean cancelled = false;
+	// Set once a one-time execution on an MTimerService has run
+	private volatile boolean finished = false;
+	// Zero unless run by an MTimerService
+	private volatile long scheduledExecutionTime = 0;
+
 	/**
 	 * Default no-arg constructor. Task name is assigned to the class name of
 	 * the class instance.
@@ -63,4 +76,98 @@ public abstract class MTimerTask extends TimerTask {
 	public void setTaskName(MString taskName) {
 		this.taskName = taskName;
 	}
+
+	/**
+	 * Returns the priority class of the task, {@link TaskPriority#NORMAL}
+	 * unless set
+	 */
+	public TaskPriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority class of the task, which applies from its next
+	 * execution on an {@link MTimerService}
+	 */
+	public void setPriority(TaskPriority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns the time in milliseconds from its scheduled time within which
+	 * an execution of the task should complete, or 0 if the deadline is the
+	 * period of the task
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Sets the time in milliseconds from its scheduled time within which an
+	 * execution of the task should complete. A task run once without a
+	 * deadline has no deadline.
+	 *
+	 * @param deadline
+	 *            the relative deadline, or 0 for the period of the task
+	 */
+	public void setDeadline(long deadline) {
+		if (deadline < 0)
+			throw new IllegalArgumentException("Negative deadline.");
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Cancels this task whether it is scheduled on a {@link java.util.Timer}
+	 * or on an {@link MTimerService}. A run in progress is completed.
+	 *
+	 * @return true if a scheduled execution was prevented
+	 */
+	@Override
+	public boolean cancel() {
+		boolean prevented = super.cancel();
+		if (!cancelled && !finished && scheduled.get())
+			prevented = true;
+		cancelled = true;
+		return prevented;
+	}
+
+	/**
+	 * Returns true once the task is cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Returns the time at which the most recent execution of this task was
+	 * scheduled to start
+	 */
+	@Override
+	public long scheduledExecutionTime() {
+		long time = scheduledExecutionTime;
+		return time == 0 ? super.scheduledExecutionTime() : time;
+	}
+
+	void setScheduledExecutionTime(long time) {
+		scheduledExecutionTime = time;
+	}
+
+	void setFinished() {
+		finished = true;
+	}
+
+	/**
+	 * Marks the task as scheduled on an MTimerService
+	 *
+	 * @throws IllegalStateException
+	 *             if the task was already scheduled or cancelled, as for
+	 *             {@link java.util.Timer}
+	 */
+	void markScheduled() {
+		if (cancelled)
+			throw new IllegalStateException("Task already cancelled");
+		if (!scheduled.compareAndSet(false, true))
+			throw new IllegalStateException(
+					"Task already scheduled or cancelled");
+	}
 }
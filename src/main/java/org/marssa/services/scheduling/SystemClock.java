@@ -0,0 +1,65 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+/**
+ * The wall clock of the system
+ */
+public final class SystemClock implements IClock {
+
+	private static final SystemClock instance = new SystemClock();
+
+	private SystemClock() {
+	}
+
+	public static SystemClock getInstance() {
+		return instance;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	@Override
+	public void waitUntil(Object monitor, long time)
+			throws InterruptedException {
+		long delay = time - System.currentTimeMillis();
+		if (delay > 0)
+			monitor.wait(delay);
+	}
+
+	@Override
+	public void busy(Thread thread) {
+	}
+
+	@Override
+	public void idle() {
+	}
+
+	@Override
+	public void beginWork() {
+	}
+
+	@Override
+	public void endWork() {
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+/**
+ * Priority classes of the tasks run by an {@link MTimerService}, from the
+ * highest to the lowest
+ */
+public enum TaskPriority {
+	/**
+	 * Safety relevant control, such as ramping a motor or updating the
+	 * rudder
+	 */
+	HIGH,
+	/**
+	 * The default priority
+	 */
+	NORMAL,
+	/**
+	 * Bulk work such as logging, which is deferred or shed when higher
+	 * priority tasks are at risk of missing their deadline
+	 */
+	LOW
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Execution statistics of the tasks of one name scheduled on an
+ * {@link MTimerService}. The statistics are updated as the tasks run, every
+ * getter returning the current value.
+ * <p>
+ * Run durations are counted in a histogram of power of two buckets: bucket
+ * i counts the runs which took from 2^i to 2^(i+1) microseconds, bucket 0
+ * also counting the runs shorter than a microsecond.
+ */
+public final class TaskStatistics {
+
+	static final int BUCKETS = 40;
+
+	private final String taskName;
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong overruns = new AtomicLong();
+	private final AtomicLong missedPeriods = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong totalLag = new AtomicLong();
+	private final AtomicLong maxLag = new AtomicLong();
+	private final AtomicLong totalDuration = new AtomicLong();
+	private final AtomicLong maxDuration = new AtomicLong();
+	private final AtomicLongArray durations = new AtomicLongArray(BUCKETS);
+
+	TaskStatistics(String taskName) {
+		this.taskName = taskName;
+	}
+
+	/**
+	 * Records a run of the task
+	 *
+	 * @param lagMillis
+	 *            how late the run started after its scheduled time
+	 * @param durationNanos
+	 *            how long the run took
+	 * @param period
+	 *            the period of the task in milliseconds, or 0 for a task run
+	 *            once
+	 */
+	void record(long lagMillis, long durationNanos, long period,
+			boolean fixedRate, boolean failed) {
+		runs.incrementAndGet();
+		if (failed)
+			failures.incrementAndGet();
+		lagMillis = Math.max(0, lagMillis);
+		totalLag.addAndGet(lagMillis);
+		max(maxLag, lagMillis);
+		totalDuration.addAndGet(durationNanos);
+		max(maxDuration, durationNanos);
+		durations.incrementAndGet(bucket(durationNanos));
+		if (period > 0) {
+			if (durationNanos > TimeUnit.MILLISECONDS.toNanos(period))
+				overruns.incrementAndGet();
+			// Started once the next period had already begun
+			if (fixedRate && lagMillis >= period)
+				missedPeriods.incrementAndGet();
+		}
+	}
+
+	void recordDeferred() {
+		deferred.incrementAndGet();
+	}
+
+	void recordShed() {
+		shed.incrementAndGet();
+	}
+
+	public String getTaskName() {
+		return taskName;
+	}
+
+	/**
+	 * Returns the number of runs, including the failed ones
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * Returns the number of runs which threw an exception
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the number of runs of a periodic task which took longer than
+	 * its period
+	 */
+	public long getOverruns() {
+		return overruns.get();
+	}
+
+	/**
+	 * Returns the number of runs of a fixed-rate task which started a whole
+	 * period or more after their scheduled time
+	 */
+	public long getMissedPeriods() {
+		return missedPeriods.get();
+	}
+
+	/**
+	 * Returns the number of times an execution was deferred to leave the
+	 * workers to higher priority tasks
+	 */
+	public long getDeferred() {
+		return deferred.get();
+	}
+
+	/**
+	 * Returns the number of executions skipped because they could not run
+	 * before their deadline
+	 */
+	public long getShed() {
+		return shed.get();
+	}
+
+	/**
+	 * Returns the mean delay in milliseconds from the scheduled to the
+	 * actual start of a run
+	 */
+	public double getMeanLag() {
+		long count = runs.get();
+		return count == 0 ? 0 : (double) totalLag.get() / count;
+	}
+
+	/**
+	 * Returns the longest delay in milliseconds from the scheduled to the
+	 * actual start of a run
+	 */
+	public long getMaxLag() {
+		return maxLag.get();
+	}
+
+	/**
+	 * Returns the mean duration of a run in microseconds
+	 */
+	public double getMeanDuration() {
+		long count = runs.get();
+		return count == 0 ? 0 : totalDuration.get() / 1000.0 / count;
+	}
+
+	/**
+	 * Returns the longest duration of a run in microseconds
+	 */
+	public long getMaxDuration() {
+		return TimeUnit.NANOSECONDS.toMicros(maxDuration.get());
+	}
+
+	/**
+	 * Returns a copy of the histogram of the run durations
+	 */
+	public long[] getDurationHistogram() {
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = durations.get(i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the duration in microseconds within which the given fraction
+	 * of the runs completed, rounded up to a power of two
+	 *
+	 * @param fraction
+	 *            such as 0.99 for the 99th percentile
+	 */
+	public long getDurationPercentile(double fraction) {
+		long[] histogram = getDurationHistogram();
+		long total = 0;
+		for (long count : histogram) {
+			total += count;
+		}
+		long rank = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= rank && seen > 0)
+				return 1L << (i + 1);
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d runs, %d failed, %d overruns, "
+				+ "%d missed periods, %d deferred, %d shed, "
+				+ "lag mean %.1f ms max %d ms, duration mean %.1f us max %d us",
+				taskName, getRuns(), getFailures(), getOverruns(),
+				getMissedPeriods(), getDeferred(), getShed(), getMeanLag(),
+				getMaxLag(), getMeanDuration(), getMaxDuration());
+	}
+
+	private static int bucket(long durationNanos) {
+		long micros = durationNanos / 1000;
+		if (micros <= 1)
+			return 0;
+		return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Clock whose time only moves when it is advanced. Advancing the clock
+ * steps through the wake-up times of the threads sleeping on it and the
+ * times waited for through {@link #waitUntil(Object, long)}. At every step
+ * the woken threads are busy, and the clock waits for them, and for the work
+ * they hand over, to be done before the next step. A ramp sleeping between
+ * its steps, or an {@link MTimerService} whose workers run the tasks, thus
+ * runs every step at its exact virtual time without waiting for real time
+ * to pass.
+ * <p>
+ * A thread is busy from being woken by the clock, or from being passed to
+ * {@link #busy(Thread)}, until it sleeps or waits on the clock again or
+ * calls {@link #idle()}. The clock never guesses: a busy thread which ends
+ * without calling {@link #idle()}, or blocks on anything else, holds the
+ * clock back.
+ */
+public class VirtualClock implements IClock {
+
+	private volatile long time;
+	// Guarded by this, notified whenever a thread or work becomes idle
+	private final PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+	private final Set<Thread> busyThreads = new HashSet<Thread>();
+	private int work = 0;
+	private long sequence = 0;
+
+	/**
+	 * Creates a clock starting at the epoch
+	 */
+	public VirtualClock() {
+		this(0);
+	}
+
+	/**
+	 * Creates a clock starting at the given time in milliseconds
+	 */
+	public VirtualClock(long time) {
+		this.time = time;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return time;
+	}
+
+	@Override
+	public void sleep(long millis) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		// As busy as before, the thread does not leave the clock's hands
+		if (millis <= 0)
+			return;
+		synchronized (this) {
+			Sleeper sleeper = register(time + millis, null);
+			try {
+				while (!sleeper.woken) {
+					wait();
+				}
+			} finally {
+				if (!sleeper.woken)
+					sleepers.remove(sleeper);
+			}
+		}
+	}
+
+	@Override
+	public void waitUntil(Object monitor, long time)
+			throws InterruptedException {
+		Sleeper sleeper;
+		synchronized (this) {
+			if (this.time >= time)
+				return;
+			sleeper = register(time, monitor);
+		}
+		try {
+			// The monitor is held until the wait, hence the notification of
+			// advanceTo cannot be missed
+			monitor.wait();
+		} finally {
+			synchronized (this) {
+				if (!sleeper.woken)
+					sleepers.remove(sleeper);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void busy(Thread thread) {
+		busyThreads.add(thread);
+	}
+
+	@Override
+	public synchronized void idle() {
+		if (busyThreads.remove(Thread.currentThread()))
+			notifyAll();
+	}
+
+	@Override
+	public synchronized void beginWork() {
+		work++;
+	}
+
+	@Override
+	public synchronized void endWork() {
+		if (--work == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Returns the earliest time a thread sleeping or waiting on the clock
+	 * wakes up, or Long.MAX_VALUE if none does
+	 */
+	public synchronized long getNextWakeUp() {
+		Sleeper first = sleepers.peek();
+		return first == null ? Long.MAX_VALUE : first.wakeTime;
+	}
+
+	/**
+	 * Returns the number of threads sleeping or waiting on the clock
+	 */
+	public synchronized int getSleepingCount() {
+		return sleepers.size();
+	}
+
+	/**
+	 * Waits for every thread but the calling one to be idle and for the work
+	 * handed over to be done
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (isBusy()) {
+			wait();
+		}
+	}
+
+	/**
+	 * Moves the clock forward by the given number of milliseconds
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             woken threads
+	 */
+	public void advance(long millis) throws InterruptedException {
+		if (millis < 0)
+			throw new IllegalArgumentException("Negative time.");
+		advanceTo(time + millis);
+	}
+
+	/**
+	 * Moves the clock forward to the given time, waking the sleeping and
+	 * waiting threads in the order of their wake-up times, and returns once
+	 * they are idle again
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the time is before the current time
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             woken threads
+	 */
+	public void advanceTo(long time) throws InterruptedException {
+		if (time < this.time)
+			throw new IllegalArgumentException("The clock cannot go back.");
+		while (true) {
+			List<Sleeper> woken = new ArrayList<Sleeper>();
+			synchronized (this) {
+				awaitIdle();
+				Sleeper first = sleepers.peek();
+				if (first == null || first.wakeTime > time) {
+					this.time = time;
+					return;
+				}
+				this.time = first.wakeTime;
+				while (!sleepers.isEmpty()
+						&& sleepers.peek().wakeTime <= this.time) {
+					Sleeper sleeper = sleepers.poll();
+					sleeper.woken = true;
+					busyThreads.add(sleeper.thread);
+					woken.add(sleeper);
+				}
+				notifyAll();
+			}
+			// Not holding the clock, which waitUntil takes under the monitor
+			for (Sleeper sleeper : woken) {
+				if (sleeper.monitor != null) {
+					synchronized (sleeper.monitor) {
+						sleeper.monitor.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers the calling thread as sleeping until the given time, and
+	 * idle until then. Called holding the clock.
+	 */
+	private Sleeper register(long wakeTime, Object monitor) {
+		Sleeper sleeper = new Sleeper(wakeTime, sequence++, monitor);
+		sleepers.add(sleeper);
+		if (busyThreads.remove(sleeper.thread))
+			notifyAll();
+		return sleeper;
+	}
+
+	// Called holding the clock
+	private boolean isBusy() {
+		if (work > 0)
+			return true;
+		Iterator<Thread> threads = busyThreads.iterator();
+		while (threads.hasNext()) {
+			Thread thread = threads.next();
+			if (!thread.isAlive())
+				threads.remove();
+			else if (thread != Thread.currentThread())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A thread sleeping or waiting on the clock
+	 */
+	private static final class Sleeper implements Comparable<Sleeper> {
+		final long wakeTime;
+		final long order;
+		final Thread thread = Thread.currentThread();
+		// Null for a sleep
+		final Object monitor;
+		// Set holding the clock when the time is reached
+		boolean woken = false;
+
+		Sleeper(long wakeTime, long order, Object monitor) {
+			this.wakeTime = wakeTime;
+			this.order = order;
+			this.monitor = monitor;
+		}
+
+		@Override
+		public int compareTo(Sleeper other) {
+			if (wakeTime != other.wakeTime)
+				return wakeTime < other.wakeTime ? -1 : 1;
+			return order < other.order ? -1 : order == other.order ? 0 : 1;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.scheduling;
+
+import java.util.Date;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link MTimerTask}s in virtual time, for simulations and regression
+ * suites. Nothing runs until {@link #runUntil(long)} or
+ * {@link #runFor(long)} is called, which then jumps the {@link VirtualClock}
+ * straight to the next due task, or to the next wake-up of a thread sleeping
+ * or waiting on the clock, and runs the tasks on the calling thread. Services
+ * sharing the clock, such as an {@link MTimerService}, are left idle before
+ * every jump. Hours of a voyage
+ * therefore take as long as the tasks take to run.
+ * <p>
+ * The tasks due at the same time run in the order they were scheduled. As
+ * with {@link MTimerService}, an exception thrown by a task is logged and
+ * the task keeps its schedule, and a task may only be scheduled once. Tasks
+ * may schedule other tasks while they run.
+ */
+public class VirtualTimeScheduler implements ITimerService {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(VirtualTimeScheduler.class.getName());
+
+	private final VirtualClock clock;
+	// Guarded by itself
+	private final PriorityQueue<Schedule> queue = new PriorityQueue<Schedule>();
+	private long sequence = 0;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Creates a scheduler on a clock of its own starting at the epoch
+	 */
+	public VirtualTimeScheduler() {
+		this(new VirtualClock());
+	}
+
+	/**
+	 * Creates a scheduler on the given clock, which may be shared with the
+	 * services being simulated
+	 */
+	public VirtualTimeScheduler(VirtualClock clock) {
+		this.clock = clock;
+	}
+
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, Date date) {
+		schedule(task, date.getTime(), 0, false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, Date date, long period) {
+		checkPeriod(period);
+		schedule(task, date.getTime(), period, false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, long delay) {
+		checkDelay(delay);
+		schedule(task, clock.currentTimeMillis() + delay, 0, false);
+	}
+
+	@Override
+	public void addSchedule(MTimerTask task, long delay, long period) {
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, clock.currentTimeMillis() + delay, period, false);
+	}
+
+	public void addScheduleAtFixedRate(MTimerTask task, Date firstTime,
+			long period) {
+		checkPeriod(period);
+		schedule(task, firstTime.getTime(), period, true);
+	}
+
+	public void addScheduleAtFixedRate(MTimerTask task, long delay, long period) {
+		checkDelay(delay);
+		checkPeriod(period);
+		schedule(task, clock.currentTimeMillis() + delay, period, true);
+	}
+
+	/**
+	 * Runs every task falling due up to the given time, then leaves the
+	 * clock at that time
+	 *
+	 * @return the number of task executions
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             threads sharing the clock
+	 */
+	public long runUntil(long time) throws InterruptedException {
+		long runs = 0;
+		while (!cancelled) {
+			clock.awaitIdle();
+			Schedule next;
+			synchronized (queue) {
+				next = queue.peek();
+			}
+			long taskTime = next == null ? Long.MAX_VALUE : next.time;
+			long due = Math.min(taskTime, clock.getNextWakeUp());
+			if (due > time)
+				break;
+			if (due > clock.currentTimeMillis())
+				clock.advanceTo(due);
+			synchronized (queue) {
+				// A thread woken by the clock may have scheduled a task
+				next = queue.peek();
+				if (next == null || next.time > clock.currentTimeMillis())
+					continue;
+				queue.poll();
+			}
+			if (next.run())
+				runs++;
+		}
+		if (time > clock.currentTimeMillis())
+			clock.advanceTo(time);
+		return runs;
+	}
+
+	/**
+	 * Runs every task falling due within the given number of milliseconds
+	 * from now
+	 *
+	 * @return the number of task executions
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             threads sharing the clock
+	 */
+	public long runFor(long millis) throws InterruptedException {
+		checkDelay(millis);
+		return runUntil(clock.currentTimeMillis() + millis);
+	}
+
+	/**
+	 * Returns the number of scheduled executions
+	 */
+	public int getScheduledCount() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Discards every scheduled task
+	 */
+	public void cancel() {
+		cancelled = true;
+		synchronized (queue) {
+			queue.clear();
+		}
+	}
+
+	private static void checkDelay(long delay) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+	}
+
+	private static void checkPeriod(long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+	}
+
+	private void schedule(MTimerTask task, long time, long period,
+			boolean fixedRate) {
+		if (cancelled)
+			throw new IllegalStateException("Timer already cancelled.");
+		task.markScheduled();
+		enqueue(new Schedule(task, time, period, fixedRate));
+	}
+
+	private void enqueue(Schedule schedule) {
+		synchronized (queue) {
+			if (cancelled)
+				return;
+			schedule.sequence = sequence++;
+			queue.add(schedule);
+		}
+	}
+
+	/**
+	 * The next execution of a task
+	 */
+	private final class Schedule implements Comparable<Schedule> {
+		final MTimerTask task;
+		final long period;
+		final boolean fixedRate;
+		long time;
+		long sequence;
+
+		Schedule(MTimerTask task, long time, long period, boolean fixedRate) {
+			this.task = task;
+			this.time = time;
+			this.period = period;
+			this.fixedRate = fixedRate;
+		}
+
+		/**
+		 * Runs the task and schedules its next execution
+		 *
+		 * @return false if the task was cancelled
+		 */
+		boolean run() {
+			if (task.isCancelled())
+				return false;
+			task.setScheduledExecutionTime(time);
+			long start = clock.currentTimeMillis();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("Task {} . failed", task.getTaskName(), e);
+			}
+			if (period == 0) {
+				task.setFinished();
+			} else if (!task.isCancelled()) {
+				time = fixedRate ? time + period : start + period;
+				enqueue(this);
+			}
+			return true;
+		}
+
+		@Override
+		public int compareTo(Schedule other) {
+			if (time != other.time)
+				return time < other.time ? -1 : 1;
+			return sequence < other.sequence ? -1
+					: sequence == other.sequence ? 0 : 1;
+		}
+	}
+}
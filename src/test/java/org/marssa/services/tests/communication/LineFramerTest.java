@@ -0,0 +1,146 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.communication.BatchingWriter;
+import org.marssa.services.communication.IFrameListener;
+import org.marssa.services.communication.LineFramer;
+
+public class LineFramerTest {
+
+	private final List<String> lines = new ArrayList<String>();
+	private LineFramer framer;
+
+	@Before
+	public void setUp() {
+		framer = new LineFramer(new MInteger(16), new IFrameListener() {
+			@Override
+			public void frameReceived(byte[] buffer, int offset, int length) {
+				lines.add(new String(buffer, offset, length));
+			}
+		});
+	}
+
+	private void feed(String data) throws Exception {
+		byte[] bytes = data.getBytes("US-ASCII");
+		framer.feed(bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void testLinesSplitAcrossReads() throws Exception {
+		feed("$SDMTW,1");
+		feed("7.9,C\r\n$VW");
+		feed("VHW\n\r\n");
+		assertEquals(2, lines.size());
+		assertEquals("$SDMTW,17.9,C", lines.get(0));
+		assertEquals("$VWVHW", lines.get(1));
+	}
+
+	@Test
+	public void testLongLineDropped() throws Exception {
+		feed("0123456789");
+		feed("0123456789ABCDEF\r\nshort\r\n");
+		assertEquals(1, lines.size());
+		assertEquals("short", lines.get(0));
+		assertEquals(1, framer.getDropped());
+	}
+
+	@Test
+	public void testReadFrom() throws Exception {
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			data.append("line").append(i).append("\r\n");
+		}
+		InputStream in = new ByteArrayInputStream(data.toString().getBytes(
+				"US-ASCII"));
+		while (framer.readFrom(in) > -1) {
+		}
+		assertEquals(100, lines.size());
+		assertEquals("line99", lines.get(99));
+		assertEquals(100, framer.getFrameCount());
+	}
+
+	@Test
+	public void testWritesBatched() throws Exception {
+		final List<Integer> writes = new ArrayList<Integer>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				writes.add(len);
+				super.write(b, off, len);
+			}
+		};
+		BatchingWriter writer = new BatchingWriter(out, new MInteger(100));
+		for (int i = 0; i < 100; i++) {
+			writer.send("$SDMTW,17.9,C*0B\r\n");
+		}
+		assertFalse(writer.send("refused"));
+		writer.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (writer.getWrittenCount() < 100) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Written " + writer.getWrittenCount() + " of 100");
+			Thread.sleep(10);
+		}
+		writer.stop();
+		assertEquals(1, writes.size());
+		assertEquals(1, writer.getBatchCount());
+		assertEquals(100 * 18, out.size());
+	}
+
+	@Test
+	public void testStopWritesQueuedMessages() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream slow = new OutputStream() {
+			@Override
+			public void write(int b) {
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					// Written regardless
+				}
+				out.write(b, off, len);
+			}
+		};
+		BatchingWriter writer = new BatchingWriter(slow, new MInteger(100));
+		writer.start();
+		for (int i = 0; i < 50; i++) {
+			writer.send("$SDMTW,17.9,C*0B\r\n");
+		}
+		writer.stop();
+		assertEquals(50, writer.getWrittenCount());
+		assertEquals(50 * 18, out.size());
+	}
+}
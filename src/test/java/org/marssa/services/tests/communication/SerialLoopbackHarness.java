@@ -0,0 +1,316 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.communication;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.RXTXCommDriver;
+import gnu.io.SerialPort;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.event.SentenceListener;
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.sentence.MTWSentence;
+
+import org.marssa.services.communication.SerialCommunication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serial loopback over a Linux pseudo-terminal pair created by socat. One
+ * end is opened through {@link SerialCommunication#connect} and read by a
+ * marineapi {@link SentenceReader}, the other end is written to as a plain
+ * file at a configurable sentence rate. Every sentence carries its sequence
+ * number, so that lost lines and the latency from the write to
+ * {@link SentenceListener#sentenceRead} can be measured.
+ * <p>
+ * A pseudo-terminal accepts the baud rate but does not pace the bytes by
+ * it, hence the capacity of a real line at that baud rate is reported next
+ * to the results rather than enforced. Running the harness needs socat and
+ * the RXTX native library; {@link #isSupported()} tells whether they are
+ * available.
+ */
+public class SerialLoopbackHarness {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(SerialLoopbackHarness.class.getName());
+
+	// Start, data, parity and stop bits
+	private static final int BITS_PER_BYTE = 10;
+	// Time allowed for the last sentences to arrive
+	private static final long DRAIN_MILLIS = 500;
+
+	/**
+	 * Results of a run at one baud rate
+	 */
+	public static class Result {
+		public int baudRate;
+		public int requestedRate;
+		public double lineCapacity;
+		public long sent;
+		public long received;
+		public double throughput;
+		public double dropRate;
+		public double meanLatencyMicros;
+		public double p99LatencyMicros;
+		public double maxLatencyMicros;
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%6d baud %6d/s requested (line capacity %7.1f/s): "
+							+ "%7d sent %7d received %9.1f/s %6.2f%% dropped, "
+							+ "latency mean %8.1f us p99 %8.1f us max %8.1f us",
+					baudRate, requestedRate, lineCapacity, sent, received,
+					throughput, dropRate * 100, meanLatencyMicros,
+					p99LatencyMicros, maxLatencyMicros);
+		}
+	}
+
+	/**
+	 * Returns true if socat and the RXTX native library are available
+	 */
+	public static boolean isSupported() {
+		if (!System.getProperty("os.name").startsWith("Linux"))
+			return false;
+		boolean socat = false;
+		for (String dir : System.getenv("PATH").split(File.pathSeparator)) {
+			socat |= new File(dir, "socat").canExecute();
+		}
+		if (!socat)
+			return false;
+		try {
+			System.loadLibrary("rxtxSerial");
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Drives the loopback at every baud rate in turn
+	 *
+	 * @param durationMillis
+	 *            how long sentences are written at each baud rate
+	 */
+	public Result[] run(int[] baudRates, int sentencesPerSecond,
+			long durationMillis) throws Exception {
+		Result[] results = new Result[baudRates.length];
+		for (int i = 0; i < baudRates.length; i++) {
+			results[i] = run(baudRates[i], sentencesPerSecond, durationMillis);
+			logger.info("{}", results[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * Drives the loopback at a single baud rate
+	 */
+	public Result run(int baudRate, int sentencesPerSecond, long durationMillis)
+			throws Exception {
+		PtyPair pty = new PtyPair();
+		SerialCommunication serial = new SerialCommunication();
+		SentenceReader reader = null;
+		try {
+			// RXTX only scans the usual device names on start up
+			CommPortIdentifier.addPortName(pty.port,
+					CommPortIdentifier.PORT_SERIAL, new RXTXCommDriver());
+			serial.connect(pty.port, baudRate, SerialPort.DATABITS_8,
+					SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			if (serial.getInputStream() == null)
+				throw new IOException("Cannot open " + pty.port);
+
+			int count = (int) (sentencesPerSecond * durationMillis / 1000);
+			final long[] sentAt = new long[count];
+			final long[] latencies = new long[count];
+			final AtomicLong received = new AtomicLong();
+			reader = new SentenceReader(serial.getInputStream());
+			reader.addSentenceListener(new SentenceListener() {
+				@Override
+				public void sentenceRead(SentenceEvent event) {
+					long now = System.nanoTime();
+					int sequence = (int) ((MTWSentence) event.getSentence())
+							.getTemperature();
+					if (sequence >= 0 && sequence < sentAt.length
+							&& latencies[sequence] == 0) {
+						latencies[sequence] = now - sentAt[sequence];
+						received.incrementAndGet();
+					}
+				}
+
+				@Override
+				public void readingStarted() {
+				}
+
+				@Override
+				public void readingPaused() {
+				}
+
+				@Override
+				public void readingStopped() {
+				}
+			});
+			reader.start();
+
+			OutputStream device = new FileOutputStream(pty.device);
+			long period = TimeUnit.SECONDS.toNanos(1) / sentencesPerSecond;
+			long started = System.nanoTime();
+			int length = 0;
+			try {
+				for (int i = 0; i < count; i++) {
+					long delay = started + i * period - System.nanoTime();
+					if (delay > 0)
+						LockSupport.parkNanos(delay);
+					byte[] sentence = sentence(i);
+					length = sentence.length;
+					sentAt[i] = System.nanoTime();
+					device.write(sentence);
+				}
+			} finally {
+				device.close();
+			}
+			long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+			while (received.get() < count
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			double elapsed = (System.nanoTime() - started) / 1e9;
+			return result(baudRate, sentencesPerSecond, length, count,
+					received.get(), elapsed, latencies);
+		} finally {
+			if (reader != null)
+				reader.stop();
+			serial.close();
+			pty.close();
+		}
+	}
+
+	private static Result result(int baudRate, int requestedRate, int length,
+			int sent, long received, double elapsed, long[] latencies) {
+		Result result = new Result();
+		result.baudRate = baudRate;
+		result.requestedRate = requestedRate;
+		result.lineCapacity = (double) baudRate / BITS_PER_BYTE / length;
+		result.sent = sent;
+		result.received = received;
+		result.throughput = received / elapsed;
+		result.dropRate = sent == 0 ? 0 : (double) (sent - received) / sent;
+		long[] measured = new long[(int) received];
+		int n = 0;
+		long total = 0;
+		for (long latency : latencies) {
+			if (latency > 0 && n < measured.length) {
+				measured[n++] = latency;
+				total += latency;
+			}
+		}
+		if (n > 0) {
+			Arrays.sort(measured, 0, n);
+			result.meanLatencyMicros = total / 1e3 / n;
+			result.p99LatencyMicros = measured[(int) (n * 0.99)] / 1e3;
+			result.maxLatencyMicros = measured[n - 1] / 1e3;
+		}
+		return result;
+	}
+
+	/**
+	 * Builds a water temperature sentence carrying the sequence number
+	 */
+	private static byte[] sentence(int sequence) throws IOException {
+		String body = "IIMTW," + sequence + ".0,C";
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++) {
+			checksum ^= body.charAt(i);
+		}
+		return String.format("$%s*%02X\r\n", body, checksum).getBytes(
+				"US-ASCII");
+	}
+
+	/**
+	 * Two linked pseudo-terminals in raw mode
+	 */
+	private static class PtyPair {
+		final Process socat;
+		final File directory;
+		// The end opened through RXTX
+		final String port;
+		// The end written to by the harness
+		final File device;
+
+		PtyPair() throws IOException, InterruptedException {
+			directory = File.createTempFile("pty", "");
+			directory.delete();
+			directory.mkdir();
+			File portLink = new File(directory, "port");
+			File deviceLink = new File(directory, "device");
+			socat = new ProcessBuilder("socat", "pty,raw,echo=0,link="
+					+ portLink, "pty,raw,echo=0,link=" + deviceLink)
+					.redirectErrorStream(true).start();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!portLink.exists() || !deviceLink.exists()) {
+				if (System.currentTimeMillis() > deadline) {
+					close();
+					throw new IOException("socat did not create the ptys");
+				}
+				Thread.sleep(10);
+			}
+			// RXTX locks the port by the name of the device
+			port = portLink.getCanonicalPath();
+			device = deviceLink.getCanonicalFile();
+		}
+
+		void close() {
+			socat.destroy();
+			for (File link : directory.listFiles()) {
+				link.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Runs the harness and prints the results. The arguments are the
+	 * sentence rate, the duration in milliseconds at each baud rate and the
+	 * baud rates.
+	 */
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		long duration = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+		int[] baudRates = { 4800, 9600, 38400, 115200 };
+		if (args.length > 2) {
+			baudRates = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				baudRates[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+		if (!isSupported()) {
+			System.err.println("socat and the RXTX native library are needed");
+			return;
+		}
+		for (Result result : new SerialLoopbackHarness().run(baudRates, rate,
+				duration)) {
+			System.out.println(result);
+		}
+	}
+}
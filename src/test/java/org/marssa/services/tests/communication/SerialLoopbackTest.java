@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the {@link SerialLoopbackHarness} briefly. Skipped unless socat and
+ * the RXTX native library are installed.
+ */
+public class SerialLoopbackTest {
+
+	@Before
+	public void setUp() {
+		assumeTrue(SerialLoopbackHarness.isSupported());
+	}
+
+	@Test
+	public void testLoopback() throws Exception {
+		SerialLoopbackHarness.Result[] results = new SerialLoopbackHarness()
+				.run(new int[] { 4800, 38400 }, 10, 1000);
+		for (SerialLoopbackHarness.Result result : results) {
+			assertEquals(result.sent, result.received);
+			assertTrue(result.maxLatencyMicros > 0);
+		}
+	}
+}
@@ -45,7 +45,16 @@ public class ServicesTestConstants {
 		public final static MString HOST = new MString("192.168.1.1");
 		public final static MInteger PORT = new MInteger(5021);
 	}
-	
+
+	/**
+	 * LabJack Simulator Constants, latency and jitter in microseconds
+	 * @author Warren Zahra
+	 */
+	public final static class LABJACK_SIMULATOR {
+		public final static MInteger LATENCY = new MInteger(1000);
+		public final static MInteger JITTER = new MInteger(500);
+	}
+
 	/**
 	 * Web Services Constants
 	 * @author Clayton Tabone
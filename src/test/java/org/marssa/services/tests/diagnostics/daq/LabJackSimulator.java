@@ -0,0 +1,366 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.diagnostics.daq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusTCPTransport;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process Modbus TCP slave emulating the register map of a LabJack U3 or
+ * UE9, so that {@link org.marssa.services.diagnostics.daq.LabJackU3} and
+ * {@link org.marssa.services.diagnostics.daq.LabJackUE9} can be load tested on
+ * localhost without the hardware.
+ * <p>
+ * The analog inputs are held as floats, two registers each, starting from
+ * register 0 and are read only. Every other register, covering the FIO state
+ * and direction registers in the 6000 range, the timer clock, mode and value
+ * registers from 7000 to 7210 and the number of enabled timers, can be
+ * written and read back.
+ * <p>
+ * Every response is delayed by the configured latency plus a uniformly
+ * distributed jitter. Responses are scheduled independently, hence pipelined
+ * requests may be answered out of order as a real slave under jitter would.
+ */
+public class LabJackSimulator {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(LabJackSimulator.class.getName());
+
+	private static final int ADDRESS_SPACE = 0x10000;
+
+	private final int ainCount;
+	private final AtomicIntegerArray registers = new AtomicIntegerArray(
+			ADDRESS_SPACE);
+	private final Random random = new Random();
+	private final AtomicLong requests = new AtomicLong();
+	private final CopyOnWriteArrayList<Socket> clients = new CopyOnWriteArrayList<Socket>();
+
+	// Latency and jitter of the responses in microseconds
+	private volatile long latency;
+	private volatile long jitter;
+
+	private ServerSocket serverSocket;
+	private ScheduledExecutorService responder;
+	private volatile boolean running = false;
+
+	/**
+	 * @param ainCount
+	 *            the number of analog inputs of the emulated model
+	 * @see org.marssa.services.diagnostics.daq.LabJackU3#AIN_COUNT
+	 * @see org.marssa.services.diagnostics.daq.LabJackUE9#AIN_COUNT
+	 */
+	public LabJackSimulator(MInteger ainCount) {
+		this.ainCount = ainCount.intValue();
+	}
+
+	/**
+	 * Starts listening on an ephemeral port of the loopback interface
+	 *
+	 * @see #getPort()
+	 */
+	public void start() throws IOException {
+		start(new MInteger(0));
+	}
+
+	/**
+	 * Starts listening on the given port of the loopback interface
+	 */
+	public synchronized void start(MInteger port) throws IOException {
+		serverSocket = new ServerSocket(port.intValue(), 50,
+				InetAddress.getByName("127.0.0.1"));
+		responder = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LabJack simulator responder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "LabJack simulator " + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("LabJack simulator listening on port {} .",
+				serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Closes the listening socket and all the client connections
+	 */
+	public synchronized void stop() {
+		running = false;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			logger.warn("Cannot close the LabJack simulator socket", e);
+		}
+		for (Socket client : clients) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// The client is gone already
+			}
+		}
+		clients.clear();
+		if (responder != null)
+			responder.shutdownNow();
+	}
+
+	public MString getHost() {
+		return new MString("127.0.0.1");
+	}
+
+	public MInteger getPort() {
+		return new MInteger(serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Sets the fixed delay, in microseconds, before every response is sent
+	 */
+	public void setLatency(MInteger latency) {
+		this.latency = latency.intValue();
+	}
+
+	/**
+	 * Sets the maximum random delay, in microseconds, added to the latency of
+	 * every response
+	 */
+	public void setJitter(MInteger jitter) {
+		this.jitter = jitter.intValue();
+	}
+
+	/**
+	 * Sets the voltage returned for the given analog input
+	 */
+	public void setVoltage(int AIN, double voltage) {
+		int bits = Float.floatToIntBits((float) voltage);
+		registers.set(AIN * 2, (bits >>> 16) & 0xFFFF);
+		registers.set(AIN * 2 + 1, bits & 0xFFFF);
+	}
+
+	/**
+	 * Returns the value last written to the given register
+	 */
+	public int getRegister(int register) {
+		return registers.get(register);
+	}
+
+	/**
+	 * Returns the number of requests received since the simulator was
+	 * created
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	private void accept() {
+		while (running) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running)
+					logger.error("LabJack simulator stopped accepting", e);
+				return;
+			}
+			final Socket client = socket;
+			clients.add(client);
+			Thread handler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(client);
+				}
+			}, "LabJack simulator client " + client.getPort());
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) {
+		final ModbusTCPTransport transport = new ModbusTCPTransport(client);
+		try {
+			while (running) {
+				ModbusRequest request = transport.readRequest();
+				requests.incrementAndGet();
+				final ModbusResponse response = process(request);
+				response.setTransactionID(request.getTransactionID());
+				response.setProtocolID(request.getProtocolID());
+				response.setUnitID(request.getUnitID());
+				Runnable send = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							synchronized (transport) {
+								transport.writeMessage(response);
+							}
+						} catch (ModbusIOException e) {
+							logger.debug("LabJack simulator client is gone", e);
+						}
+					}
+				};
+				long delay = nextDelay();
+				if (delay > 0)
+					responder.schedule(send, delay, TimeUnit.MICROSECONDS);
+				else
+					send.run();
+			}
+		} catch (ModbusIOException e) {
+			logger.debug("LabJack simulator client disconnected", e);
+		} finally {
+			clients.remove(client);
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Closed already
+			}
+		}
+	}
+
+	private long nextDelay() {
+		long delay = latency;
+		if (jitter > 0) {
+			synchronized (random) {
+				delay += (long) (random.nextDouble() * jitter);
+			}
+		}
+		return delay;
+	}
+
+	private ModbusResponse process(ModbusRequest request) {
+		switch (request.getFunctionCode()) {
+		case Modbus.READ_MULTIPLE_REGISTERS: {
+			ReadMultipleRegistersRequest read = (ReadMultipleRegistersRequest) request;
+			int reference = read.getReference();
+			int count = read.getWordCount();
+			if (reference + count > ADDRESS_SPACE)
+				return request
+						.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+			Register[] values = new Register[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = new SimpleRegister(registers.get(reference + i));
+			}
+			return new ReadMultipleRegistersResponse(values);
+		}
+		case Modbus.WRITE_SINGLE_REGISTER: {
+			WriteSingleRegisterRequest write = (WriteSingleRegisterRequest) request;
+			int reference = write.getReference();
+			if (!isWritable(reference, 1))
+				return request
+						.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+			int value = write.getRegister().toUnsignedShort();
+			registers.set(reference, value);
+			return createWriteResponse(request, reference, value);
+		}
+		case Modbus.WRITE_MULTIPLE_REGISTERS: {
+			WriteMultipleRegistersRequest write = (WriteMultipleRegistersRequest) request;
+			int reference = write.getReference();
+			int count = write.getWordCount();
+			if (!isWritable(reference, count))
+				return request
+						.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+			for (int i = 0; i < count; i++) {
+				registers.set(reference + i, write.getRegisterValue(i));
+			}
+			return createWriteResponse(request, reference, count);
+		}
+		case Modbus.READ_INPUT_DISCRETES: {
+			ReadInputDiscretesRequest read = (ReadInputDiscretesRequest) request;
+			ReadInputDiscretesResponse response = new ReadInputDiscretesResponse();
+			response.setBitCount(read.getBitCount());
+			for (int i = 0; i < read.getBitCount(); i++) {
+				response.setDiscreteStatus(i,
+						registers.get(6000 + read.getReference() + i) != 0);
+			}
+			return response;
+		}
+		default:
+			return request
+					.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+		}
+	}
+
+	/**
+	 * Creates the echo sent in response to a write. The value constructors of
+	 * the jamod write responses leave the function code unset, hence the
+	 * response is parsed from its frame instead.
+	 */
+	private static ModbusResponse createWriteResponse(ModbusRequest request,
+			int reference, int word) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(frame);
+		try {
+			out.writeShort(request.getTransactionID());
+			out.writeShort(request.getProtocolID());
+			out.writeShort(6);
+			out.writeByte(request.getUnitID());
+			out.writeByte(request.getFunctionCode());
+			out.writeShort(reference);
+			out.writeShort(word);
+			ModbusResponse response = ModbusResponse
+					.createModbusResponse(request.getFunctionCode());
+			response.readFrom(new DataInputStream(new ByteArrayInputStream(
+					frame.toByteArray())));
+			return response;
+		} catch (IOException e) {
+			// Cannot happen on in-memory streams
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private boolean isWritable(int reference, int count) {
+		// The analog inputs are read only
+		return reference >= ainCount * 2 && reference + count <= ADDRESS_SPACE;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.diagnostics.daq;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import net.wimpi.modbus.msg.ModbusResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.diagnostics.daq.LabJack;
+import org.marssa.services.diagnostics.daq.LabJackU3;
+import org.marssa.services.diagnostics.daq.LabJackU3.TimerConfigModeU3;
+import org.marssa.services.tests.constants.ServicesTestConstants;
+
+/**
+ * Runs a LabJackU3 against the {@link LabJackSimulator} on localhost
+ */
+public class LabJackSimulatorTest {
+
+	private static final MInteger TIMER0_CONFIG_MODE_ADDR = new MInteger(7100);
+	private static final MInteger TIMER0_VALUE_ADDR = new MInteger(7200);
+
+	private LabJackSimulator simulator;
+	private LabJackU3 labJack;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator = new LabJackSimulator(LabJackU3.AIN_COUNT);
+		simulator.setLatency(ServicesTestConstants.LABJACK_SIMULATOR.LATENCY);
+		simulator.setJitter(ServicesTestConstants.LABJACK_SIMULATOR.JITTER);
+		simulator.start();
+		labJack = LabJackU3.getInstance(simulator.getHost(),
+				simulator.getPort());
+	}
+
+	@After
+	public void tearDown() {
+		labJack.release();
+		simulator.stop();
+	}
+
+	@Test
+	public void testReadScan() throws Exception {
+		for (int i = 0; i < LabJackU3.AIN_COUNT.intValue(); i++) {
+			simulator.setVoltage(i, i * 0.25);
+		}
+		double[] voltages = labJack.readScan(new MInteger(2), new MInteger(4));
+		for (int i = 0; i < voltages.length; i++) {
+			assertEquals((i + 2) * 0.25, voltages[i], 1e-6);
+		}
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		labJack.write(LabJack.FIO4_ADDR, new MInteger(1));
+		assertEquals(1, simulator.getRegister(LabJack.FIO4_ADDR.intValue()));
+	}
+
+	@Test
+	public void testRedundantWritesSkipped() throws Exception {
+		long requests = simulator.getRequestCount();
+		labJack.write(LabJack.FIO4_ADDR, new MInteger(1));
+		labJack.write(LabJack.FIO4_ADDR, new MInteger(1));
+		assertEquals(requests + 1, simulator.getRequestCount());
+		labJack.write(LabJack.FIO4_DIR_ADDR, new MInteger(1));
+		labJack.write(LabJack.FIO4_DIR_ADDR, new MInteger(1));
+		assertEquals(requests + 2, simulator.getRequestCount());
+	}
+
+	@Test
+	public void testInputTimerValueRewritten() throws Exception {
+		long requests = simulator.getRequestCount();
+		// The mode of the timer is not known yet
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		assertEquals(requests + 2, simulator.getRequestCount());
+		labJack.write(TIMER0_CONFIG_MODE_ADDR,
+				TimerConfigModeU3.FIRMWARE_COUNTER_INPUT.getTimerConfigMode());
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		assertEquals(requests + 5, simulator.getRequestCount());
+		// The value of an output timer only sets its duty cycle
+		labJack.write(TIMER0_CONFIG_MODE_ADDR,
+				TimerConfigModeU3.PWM_OUTPUT_16BIT.getTimerConfigMode());
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+		assertEquals(requests + 7, simulator.getRequestCount());
+	}
+
+	@Test
+	public void testCoalescingFlushesBeforeOtherWrites() throws Exception {
+		labJack.setWriteFlushInterval(new MInteger(60000));
+		try {
+			long requests = simulator.getRequestCount();
+			labJack.write(LabJack.FIO4_ADDR, new MInteger(1));
+			labJack.write(LabJack.FIO4_DIR_ADDR, new MInteger(1));
+			labJack.write(LabJack.FIO5_DIR_ADDR, new MInteger(1));
+			labJack.write(TIMER0_CONFIG_MODE_ADDR,
+					TimerConfigModeU3.FIRMWARE_COUNTER_INPUT.getTimerConfigMode());
+			assertEquals(requests, simulator.getRequestCount());
+			labJack.write(TIMER0_VALUE_ADDR, new MInteger(10));
+			// The state, both directions and the mode, then the value
+			assertEquals(requests + 4, simulator.getRequestCount());
+			assertEquals(1, simulator.getRegister(LabJack.FIO4_ADDR.intValue()));
+			assertEquals(1,
+					simulator.getRegister(LabJack.FIO5_DIR_ADDR.intValue()));
+			assertEquals(10, simulator.getRegister(TIMER0_VALUE_ADDR.intValue()));
+		} finally {
+			labJack.setWriteFlushInterval(new MInteger(0));
+		}
+	}
+
+	@Test
+	public void testPipelinedReads() throws Exception {
+		for (int i = 0; i < LabJackU3.AIN_COUNT.intValue(); i++) {
+			simulator.setVoltage(i, i);
+		}
+		List<Future<ModbusResponse>> responses = new ArrayList<Future<ModbusResponse>>();
+		for (int i = 0; i < LabJackU3.AIN_COUNT.intValue(); i++) {
+			responses.add(labJack.readRegistersAsync(i * 2, 2, null));
+		}
+		for (int i = 0; i < responses.size(); i++) {
+			assertEquals(i, LabJack.getVoltage(responses.get(i).get(), 0), 1e-6);
+		}
+	}
+}
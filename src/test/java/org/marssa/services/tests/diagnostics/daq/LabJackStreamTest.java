@@ -0,0 +1,155 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.diagnostics.daq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.diagnostics.daq.LabJackStream;
+import org.marssa.services.diagnostics.daq.LabJackU3;
+import org.marssa.services.tests.constants.ServicesTestConstants;
+
+/**
+ * Streams from a LabJackU3 connected to the {@link LabJackSimulator} on
+ * localhost
+ */
+public class LabJackStreamTest {
+
+	private static final int CHANNELS = 4;
+	private static final int SCAN_RATE = 200;
+	private static final long SCAN_PERIOD = 1000000000L / SCAN_RATE;
+
+	private LabJackSimulator simulator;
+	private LabJackU3 labJack;
+	private LabJackStream stream;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator = new LabJackSimulator(LabJackU3.AIN_COUNT);
+		simulator.setLatency(ServicesTestConstants.LABJACK_SIMULATOR.LATENCY);
+		simulator.setJitter(ServicesTestConstants.LABJACK_SIMULATOR.JITTER);
+		simulator.start();
+		for (int i = 0; i < LabJackU3.AIN_COUNT.intValue(); i++) {
+			simulator.setVoltage(i, i * 0.25);
+		}
+		labJack = LabJackU3.getInstance(simulator.getHost(),
+				simulator.getPort());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (stream != null)
+			stream.stop();
+		labJack.release();
+		simulator.stop();
+	}
+
+	private LabJackStream createStream(int firstAIN, int scanRate,
+			int capacity) throws Exception {
+		stream = new LabJackStream(labJack, new MInteger(firstAIN),
+				new MInteger(CHANNELS), new MInteger(scanRate), new MInteger(
+						capacity));
+		return stream;
+	}
+
+	private static void assertScans(double[] voltages, long[] timestamps,
+			int firstAIN, int count, long previous) {
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < CHANNELS; j++) {
+				assertEquals((firstAIN + j) * 0.25,
+						voltages[i * CHANNELS + j], 1e-6);
+			}
+			// Scans are taken on a fixed grid, some periods may be missed
+			long elapsed = timestamps[i] - previous;
+			if (previous != 0) {
+				assertTrue(elapsed > 0);
+				assertEquals(0, elapsed % SCAN_PERIOD);
+			}
+			previous = timestamps[i];
+		}
+	}
+
+	@Test
+	public void testScansDrainedInOrderAcrossWrapAround() throws Exception {
+		// A buffer much smaller than the number of scans wraps many times
+		final int capacity = 4;
+		final int scans = 60;
+		createStream(2, SCAN_RATE, capacity).start();
+		double[] voltages = new double[capacity * CHANNELS];
+		long[] timestamps = new long[capacity];
+		long previous = 0;
+		int drained = 0;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (drained < scans) {
+			assertTrue("Drained " + drained + " of " + scans + " scans",
+					System.currentTimeMillis() < deadline);
+			int count = stream.drain(voltages, timestamps, capacity);
+			if (count > 0) {
+				assertScans(voltages, timestamps, 2, count, previous);
+				previous = timestamps[count - 1];
+				drained += count;
+			} else {
+				Thread.sleep(1);
+			}
+		}
+		assertEquals(0, stream.getDroppedScans());
+		assertEquals(0, stream.getFailedScans());
+	}
+
+	@Test
+	public void testStalledConsumerDropsNewestScans() throws Exception {
+		final int capacity = 8;
+		createStream(0, SCAN_RATE, capacity).start();
+		// Nothing is drained for about 60 scan periods
+		Thread.sleep(300);
+		stream.stop();
+		assertEquals(capacity, stream.available());
+		assertTrue(stream.getDroppedScans() > 0);
+		double[] voltages = new double[capacity * CHANNELS];
+		long[] timestamps = new long[capacity];
+		assertEquals(capacity, stream.drain(voltages, timestamps, capacity));
+		// The oldest scans are kept
+		assertScans(voltages, timestamps, 0, capacity, 0);
+		assertEquals(0, stream.available());
+		assertEquals(0, stream.drain(voltages, timestamps, capacity));
+	}
+
+	@Test
+	public void testSlowLabJackMissesScans() throws Exception {
+		// Every scan takes about four scan periods
+		simulator.setLatency(new MInteger(20000));
+		simulator.setJitter(new MInteger(0));
+		createStream(0, SCAN_RATE, 64).start();
+		Thread.sleep(300);
+		stream.stop();
+		int taken = stream.available();
+		assertTrue(taken > 0);
+		assertTrue(stream.getMissedScans() >= 2 * taken);
+		assertEquals(0, stream.getDroppedScans());
+		double[] voltages = new double[taken * CHANNELS];
+		long[] timestamps = new long[taken];
+		assertEquals(taken, stream.drain(voltages, timestamps, taken));
+		assertScans(voltages, timestamps, 0, taken, 0);
+		// The missed periods are skipped, not queued up
+		for (int i = 1; i < taken; i++) {
+			assertTrue(timestamps[i] - timestamps[i - 1] >= 3 * SCAN_PERIOD);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.navigation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.navigation.GpsFix;
+import org.marssa.services.navigation.GpsFixHistory;
+import org.marssa.services.navigation.GpsReceiver;
+
+/**
+ * Records fixes streamed by the {@link GpsdSimulator} into a GpsFixHistory
+ */
+public class GpsFixHistoryTest {
+
+	private static final int CAPACITY = 4;
+
+	private GpsdSimulator gpsd;
+	private GpsReceiver receiver;
+	private GpsFixHistory history;
+
+	@Before
+	public void setUp() throws Exception {
+		gpsd = new GpsdSimulator();
+		gpsd.start();
+		receiver = new GpsReceiver(gpsd.getHost(), gpsd.getPort());
+		history = new GpsFixHistory(new MInteger(CAPACITY));
+		receiver.addFixListener(history);
+	}
+
+	@After
+	public void tearDown() {
+		gpsd.stop();
+	}
+
+	/**
+	 * Streams fixes with latitudes 0, 1, 2 ... at least 5 ms apart
+	 */
+	private void stream(int fixes) throws Exception {
+		GpsFix fix = null;
+		for (int i = 0; i < fixes; i++) {
+			Thread.sleep(5);
+			gpsd.setFix(i, 14.5, 10.0, 90.0, 2.0 * i);
+			gpsd.publish();
+			fix = receiver.awaitFix(fix, new MInteger(5000));
+		}
+	}
+
+	@Test
+	public void testOldestFixesAreOverwritten() throws Exception {
+		stream(CAPACITY + 2);
+		GpsFixHistory.Window window = history.createWindow();
+		assertEquals(CAPACITY, history.size());
+		assertEquals(CAPACITY,
+				history.select(Long.MIN_VALUE, Long.MAX_VALUE, window));
+		for (int i = 0; i < CAPACITY; i++) {
+			assertEquals(i + 2, window.getLatitude(i), 1e-9);
+			assertEquals(2.0 * (i + 2), window.getSpeed(i), 1e-9);
+		}
+	}
+
+	@Test
+	public void testSelectRange() throws Exception {
+		stream(CAPACITY);
+		GpsFixHistory.Window window = history.createWindow();
+		history.select(Long.MIN_VALUE, Long.MAX_VALUE, window);
+		long from = window.getTime(1);
+		long to = window.getTime(2);
+		assertEquals(2, history.select(from, to, window));
+		assertEquals(1, window.getLatitude(0), 1e-9);
+		assertEquals(2, window.getLatitude(1), 1e-9);
+		assertEquals(0, history.select(to + 1000000, Long.MAX_VALUE, window));
+	}
+
+	@Test
+	public void testNearest() throws Exception {
+		stream(CAPACITY);
+		GpsFixHistory.Window window = history.createWindow();
+		history.select(Long.MIN_VALUE, Long.MAX_VALUE, window);
+		long before = window.getTime(1) - 1;
+		long after = window.getTime(1) + 1;
+		assertEquals(1, history.getNearest(before).getLatitude(), 1e-9);
+		assertEquals(1, history.getNearest(after).getLatitude(), 1e-9);
+		assertEquals(0, history.getNearest(0).getLatitude(), 1e-9);
+		assertEquals(3, history.getNearest(Long.MAX_VALUE).getLatitude(),
+				1e-9);
+	}
+
+	@Test
+	public void testStaleFixIsIgnored() throws Exception {
+		stream(1);
+		GpsFix fix = history.getNearest(0);
+		assertFalse(history.add(fix));
+		assertEquals(1, history.size());
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.navigation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.navigation.GpsFix;
+import org.marssa.services.navigation.GpsReceiver;
+import org.marssa.services.navigation.IGpsFixListener;
+
+/**
+ * Runs a GpsReceiver against the {@link GpsdSimulator} on localhost
+ */
+public class GpsReceiverTest {
+
+	private GpsdSimulator gpsd;
+	private GpsReceiver receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		gpsd = new GpsdSimulator();
+		gpsd.start();
+		receiver = new GpsReceiver(gpsd.getHost(), gpsd.getPort());
+	}
+
+	@After
+	public void tearDown() {
+		gpsd.stop();
+	}
+
+	@Test
+	public void testGettersShareOnePoll() throws Exception {
+		receiver.setFixFreshness(new MInteger(60000));
+		receiver.getCoordinate();
+		receiver.getCOG();
+		receiver.getSOG();
+		receiver.getAltitude();
+		receiver.getEPT();
+		assertEquals(1, gpsd.getPollCount());
+	}
+
+	@Test
+	public void testFixIsConsistent() throws Exception {
+		gpsd.setFix(10.5, 20.25, 5.0, 45.0, 3.0);
+		receiver.setFixFreshness(new MInteger(0));
+		GpsFix fix = receiver.getFix();
+		gpsd.setFix(11.5, 21.25, 6.0, 46.0, 4.0);
+		assertEquals(10.5, fix.getLatitude(), 1e-9);
+		assertEquals(20.25, fix.getLongitude(), 1e-9);
+		assertEquals(11.5, receiver.getFix().getLatitude(), 1e-9);
+	}
+
+	@Test
+	public void testFixIsReusedWithinWindow() throws Exception {
+		receiver.setFixFreshness(new MInteger(60000));
+		GpsFix fix = receiver.getFix();
+		assertSame(fix, receiver.getFix());
+	}
+
+	@Test
+	public void testStreamedFixServesGetters() throws Exception {
+		gpsd.setFix(10.5, 20.25, 5.0, 45.0, 3.0);
+		gpsd.publish();
+		GpsFix fix = receiver.awaitFix(null, new MInteger(5000));
+		assertEquals(10.5, fix.getLatitude(), 1e-9);
+		receiver.getCoordinate();
+		receiver.getCOG();
+		receiver.getSOG();
+		assertEquals(0, gpsd.getPollCount());
+	}
+
+	@Test
+	public void testAwaitNewerFix() throws Exception {
+		gpsd.publish();
+		GpsFix first = receiver.awaitFix(null, new MInteger(5000));
+		gpsd.setFix(11.5, 21.25, 6.0, 46.0, 4.0);
+		gpsd.publish();
+		GpsFix second = receiver.awaitFix(first, new MInteger(5000));
+		assertTrue(second.getReceivedAt() > first.getReceivedAt());
+		assertEquals(11.5, second.getLatitude(), 1e-9);
+	}
+
+	@Test
+	public void testListenerReceivesStreamedFix() throws Exception {
+		final BlockingQueue<GpsFix> fixes = new LinkedBlockingQueue<GpsFix>();
+		receiver.addFixListener(new IGpsFixListener() {
+			@Override
+			public void fixReceived(GpsFix fix) {
+				fixes.add(fix);
+			}
+		});
+		gpsd.setFix(12.5, 22.25, 7.0, 47.0, 5.0);
+		gpsd.publish();
+		GpsFix fix = fixes.poll(5, TimeUnit.SECONDS);
+		assertEquals(12.5, fix.getLatitude(), 1e-9);
+	}
+}
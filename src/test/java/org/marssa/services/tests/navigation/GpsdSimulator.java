@@ -0,0 +1,240 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.navigation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal gpsd stand-in listening on the loopback interface. It answers the
+ * VERSION, WATCH and POLL commands issued by gpsd4java with a configurable
+ * fix, so that {@link org.marssa.services.navigation.GpsReceiver} can be
+ * exercised without a GPS.
+ * <p>
+ * Replies are delayed by a small latency, 1 ms unless configured otherwise.
+ * gpsd4java only starts waiting for a reply after the command has been
+ * written, hence a reply arriving instantly over the loopback interface can
+ * be missed and the command times out.
+ */
+public class GpsdSimulator {
+
+	private static Logger logger = LoggerFactory.getLogger(GpsdSimulator.class
+			.getName());
+
+	private final CopyOnWriteArrayList<Writer> watchers = new CopyOnWriteArrayList<Writer>();
+	private final AtomicLong polls = new AtomicLong();
+
+	// Delay of the replies in microseconds
+	private volatile long latency = 1000;
+
+	private volatile double latitude = 35.8989;
+	private volatile double longitude = 14.5146;
+	private volatile double altitude = 12.5;
+	private volatile double track = 90.0;
+	private volatile double speed = 2.5;
+
+	private ServerSocket serverSocket;
+	private volatile boolean running = false;
+
+	/**
+	 * Starts listening on an ephemeral port of the loopback interface
+	 */
+	public synchronized void start() throws IOException {
+		serverSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "gpsd simulator " + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("gpsd simulator listening on port {} .",
+				serverSocket.getLocalPort());
+	}
+
+	public synchronized void stop() {
+		running = false;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			logger.warn("Cannot close the gpsd simulator socket", e);
+		}
+		watchers.clear();
+	}
+
+	public MString getHost() {
+		return new MString("127.0.0.1");
+	}
+
+	public MInteger getPort() {
+		return new MInteger(serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Sets the delay, in microseconds, before every reply is sent
+	 */
+	public void setLatency(MInteger latency) {
+		this.latency = latency.intValue();
+	}
+
+	/**
+	 * Sets the fix returned from now on
+	 */
+	public void setFix(double latitude, double longitude, double altitude,
+			double track, double speed) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.altitude = altitude;
+		this.track = track;
+		this.speed = speed;
+	}
+
+	/**
+	 * Pushes the current fix to every client which enabled watch mode, as
+	 * gpsd does whenever the GPS reports a new fix
+	 */
+	public void publish() {
+		String tpv = tpv();
+		for (Writer watcher : watchers) {
+			try {
+				send(watcher, tpv);
+			} catch (IOException e) {
+				watchers.remove(watcher);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of POLL commands answered
+	 */
+	public long getPollCount() {
+		return polls.get();
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket client;
+			try {
+				client = serverSocket.accept();
+			} catch (IOException e) {
+				if (running)
+					logger.error("gpsd simulator stopped accepting", e);
+				return;
+			}
+			Thread handler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(client);
+				}
+			}, "gpsd simulator client " + client.getPort());
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) {
+		Writer out = null;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					client.getInputStream(), "US-ASCII"));
+			out = new OutputStreamWriter(client.getOutputStream(), "US-ASCII");
+			String command;
+			while (running && (command = in.readLine()) != null) {
+				LockSupport.parkNanos(latency * 1000);
+				if (command.startsWith("?VERSION")) {
+					send(out,
+							"{\"class\":\"VERSION\",\"release\":\"3.4\",\"rev\":\"3.4\",\"proto_major\":3,\"proto_minor\":6}");
+				} else if (command.startsWith("?WATCH")) {
+					boolean enable = !command.contains("\"enable\":false");
+					if (enable)
+						watchers.addIfAbsent(out);
+					else
+						watchers.remove(out);
+					send(out, "{\"class\":\"WATCH\",\"enable\":" + enable
+							+ ",\"json\":true}");
+				} else if (command.startsWith("?POLL")) {
+					polls.incrementAndGet();
+					send(out, "{\"class\":\"POLL\",\"time\":\"" + now()
+							+ "\",\"active\":1,\"fixes\":[" + tpv()
+							+ "],\"skyviews\":[]}");
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("gpsd simulator client disconnected", e);
+		} finally {
+			if (out != null)
+				watchers.remove(out);
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Closed already
+			}
+		}
+	}
+
+	private String tpv() {
+		return "{\"class\":\"TPV\",\"tag\":\"RMC\",\"device\":\"/dev/ttyUSB0\",\"time\":\""
+				+ now()
+				+ "\",\"ept\":0.005,\"lat\":"
+				+ latitude
+				+ ",\"lon\":"
+				+ longitude
+				+ ",\"alt\":"
+				+ altitude
+				+ ",\"epx\":10.0,\"epy\":10.0,\"epv\":20.0,\"track\":"
+				+ track
+				+ ",\"speed\":"
+				+ speed
+				+ ",\"climb\":0.0,\"epd\":0.0,\"eps\":0.0,\"epc\":0.0,\"mode\":3}";
+	}
+
+	private static String now() {
+		DateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date());
+	}
+
+	private static void send(Writer out, String json) throws IOException {
+		synchronized (out) {
+			out.write(json);
+			out.write("\r\n");
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.navigation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.SentenceValidator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.exceptions.NoValue;
+import org.marssa.services.navigation.GpsFix;
+import org.marssa.services.navigation.NMEAGpsReceiver;
+
+/**
+ * Replays recorded NMEA files into an NMEAGpsReceiver
+ */
+public class NMEAGpsReceiverTest {
+
+	private NMEAGpsReceiver receiver;
+
+	@Before
+	public void setUp() {
+		receiver = new NMEAGpsReceiver();
+	}
+
+	private void replay(String recording) throws IOException {
+		InputStream in = getClass().getResourceAsStream(recording);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"US-ASCII"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (SentenceValidator.isValid(line))
+					receiver.sentenceRead(new SentenceEvent(this,
+							SentenceFactory.getInstance().createParser(line)));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void read(String nmea) {
+		receiver.sentenceRead(new SentenceEvent(this, SentenceFactory
+				.getInstance().createParser(nmea)));
+	}
+
+	@Test
+	public void testLatestFix() throws Exception {
+		replay("gps.nmea");
+		assertEquals(5.6, receiver.getSOG().doubleValue(), 1e-9);
+		assertEquals(88.5, receiver.getCOG().doubleValue(), 1e-9);
+		assertEquals(12.7, receiver.getAltitude().doubleValue(), 1e-9);
+		assertEquals(1.2, receiver.getHDOP().doubleValue(), 1e-9);
+		assertEquals(2.4, receiver.getPDOP().doubleValue(), 1e-9);
+		assertEquals(2.0, receiver.getVDOP().doubleValue(), 1e-9);
+		assertEquals(9, receiver.getSatellitesInUse().intValue());
+		assertEquals("A", receiver.getStatus().getContents());
+		receiver.getCoordinate();
+		receiver.getDate();
+		// 3553.9360,N,01430.8820,E at 12:00:02 on the 18th of March 2012
+		GpsFix fix = receiver.getFix();
+		assertEquals(35 + 53.936 / 60, fix.getLatitude(), 1e-9);
+		assertEquals(14 + 30.882 / 60, fix.getLongitude(), 1e-9);
+		Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		utc.clear();
+		utc.set(2012, Calendar.MARCH, 18, 12, 0, 2);
+		assertEquals(utc.getTimeInMillis() / 1000.0, fix.getTimestamp(), 1e-9);
+	}
+
+	@Test(expected = NoValue.class)
+	public void testNoFixBeforeSentences() throws Exception {
+		receiver.getCoordinate();
+	}
+
+	@Test(expected = NoValue.class)
+	public void testLostFix() throws Exception {
+		replay("gps.nmea");
+		replay("gps-lost.nmea");
+		assertEquals("V", receiver.getStatus().getContents());
+		assertNull(receiver.getVDOP());
+		receiver.getCoordinate();
+	}
+
+	@Test
+	public void testLostFixWithoutTime() throws Exception {
+		replay("gps.nmea");
+		read("$GPRMC,,V,,,,,,,,,,N*53");
+		assertEquals("V", receiver.getStatus().getContents());
+		replay("gps.nmea");
+		read("$GPGGA,,,,,,0,00,99.9,,M,,M,,*71");
+		assertEquals("V", receiver.getStatus().getContents());
+		try {
+			receiver.getDate();
+			fail("The time of day is unknown");
+		} catch (NoValue e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSentenceReader() throws Exception {
+		SentenceReader reader = new SentenceReader(getClass()
+				.getResourceAsStream("gps.nmea"));
+		receiver = new NMEAGpsReceiver(reader);
+		reader.start();
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (receiver.getSatellitesInUse() == null
+					|| receiver.getSatellitesInUse().intValue() != 9) {
+				if (System.currentTimeMillis() > deadline)
+					throw new AssertionError("Recording was not read");
+				Thread.sleep(10);
+			}
+		} finally {
+			reader.stop();
+		}
+		assertEquals(12.7, receiver.getAltitude().doubleValue(), 1e-9);
+	}
+}
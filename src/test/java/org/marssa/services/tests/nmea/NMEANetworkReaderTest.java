@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.navigation.DepthSensor;
+import org.marssa.services.navigation.SpeedSensor;
+import org.marssa.services.nmea.NMEANetworkReader;
+import org.marssa.services.nmea.SentenceDispatcher;
+
+public class NMEANetworkReaderTest {
+
+	private static final String DPT = "$SDDPT,12.6,0.5*67\r\n";
+	private static final String VHW = "$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50\r\n";
+
+	private NMEANetworkReader reader;
+	private DepthSensor depthSensor;
+	private SpeedSensor speedSensor;
+
+	@Before
+	public void setUp() throws Exception {
+		SentenceDispatcher dispatcher = new SentenceDispatcher();
+		depthSensor = new DepthSensor(dispatcher);
+		speedSensor = new SpeedSensor(dispatcher);
+		reader = new NMEANetworkReader(dispatcher);
+		reader.start();
+	}
+
+	@After
+	public void tearDown() {
+		reader.stop();
+	}
+
+	private void awaitSentences(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (reader.getSentenceCount() < count) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Received " + reader.getSentenceCount() + " of " + count
+						+ " sentences");
+			Thread.sleep(10);
+		}
+	}
+
+	private static int freeUdpPort() throws Exception {
+		DatagramSocket socket = new DatagramSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static void send(DatagramSocket socket, int port, String data)
+			throws Exception {
+		byte[] bytes = data.getBytes("US-ASCII");
+		socket.send(new DatagramPacket(bytes, bytes.length, InetAddress
+				.getByName("127.0.0.1"), port));
+	}
+
+	@Test
+	public void testUdp() throws Exception {
+		int port = freeUdpPort();
+		reader.addUdpSource(new MInteger(port));
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			// Sent until the source is registered by the selector thread
+			long deadline = System.currentTimeMillis() + 5000;
+			while (depthSensor.getDepthMeters() == null) {
+				if (System.currentTimeMillis() > deadline)
+					fail("No sentence received over UDP");
+				send(socket, port, DPT);
+				Thread.sleep(20);
+			}
+			// A sentence split across datagrams is put back together
+			send(socket, port, VHW.substring(0, 10));
+			send(socket, port, VHW.substring(10));
+			deadline = System.currentTimeMillis() + 5000;
+			while (speedSensor.getSpeedKnots() == null) {
+				if (System.currentTimeMillis() > deadline)
+					fail("No split sentence received over UDP");
+				Thread.sleep(10);
+			}
+		} finally {
+			socket.close();
+		}
+		assertEquals(12.6, depthSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+	}
+
+	@Test
+	public void testTcpReconnects() throws Exception {
+		ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		server.setSoTimeout(5000);
+		try {
+			reader.setReconnectDelay(new MInteger(50));
+			reader.addTcpSource(new MString("127.0.0.1"),
+					new MInteger(server.getLocalPort()));
+			Socket gateway = server.accept();
+			OutputStream out = gateway.getOutputStream();
+			out.write((DPT + VHW.substring(0, 10)).getBytes("US-ASCII"));
+			out.flush();
+			out.write(VHW.substring(10).getBytes("US-ASCII"));
+			out.flush();
+			awaitSentences(2);
+			gateway.close();
+
+			gateway = server.accept();
+			gateway.getOutputStream().write(DPT.getBytes("US-ASCII"));
+			gateway.getOutputStream().flush();
+			awaitSentences(3);
+			gateway.close();
+		} finally {
+			server.close();
+		}
+		assertNotNull(depthSensor.getDepthMeters());
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+	}
+}
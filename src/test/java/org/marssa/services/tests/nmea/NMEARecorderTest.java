@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.services.navigation.DepthSensor;
+import org.marssa.services.navigation.SpeedSensor;
+import org.marssa.services.nmea.NMEARecorder;
+import org.marssa.services.nmea.NMEAReplay;
+import org.marssa.services.nmea.NMEAStreamMerger;
+import org.marssa.services.nmea.SentenceDispatcher;
+
+public class NMEARecorderTest {
+
+	private static final String DPT = "$SDDPT,12.6,0.5*67";
+	private static final String VHW = "$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50";
+	private static final MInteger SEGMENT_SIZE = new MInteger(4096);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File log;
+	private SentenceDispatcher dispatcher;
+	private DepthSensor depthSensor;
+	private SpeedSensor speedSensor;
+
+	@Before
+	public void setUp() {
+		log = new File(folder.getRoot(), "log");
+		dispatcher = new SentenceDispatcher();
+		depthSensor = new DepthSensor(dispatcher);
+		speedSensor = new SpeedSensor(dispatcher);
+	}
+
+	@Test
+	public void testPacedReplayAcrossSessions() throws Exception {
+		NMEARecorder recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		recorder.record(System.nanoTime(), DPT);
+		Thread.sleep(100);
+		recorder.record(System.nanoTime(), VHW);
+		recorder.close();
+		int firstSession = log.list().length;
+		Thread.sleep(50);
+		recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		for (int i = 0; i < 3; i++) {
+			if (i > 0)
+				Thread.sleep(100);
+			recorder.record(System.nanoTime(), i % 2 == 0 ? DPT : VHW);
+		}
+		recorder.close();
+		// As if the second session ran in a JVM of another nanoTime origin
+		File[] segments = log.listFiles();
+		Arrays.sort(segments);
+		for (int i = firstSession; i < segments.length; i++) {
+			shiftNanos(segments[i], -TimeUnit.DAYS.toNanos(1000));
+		}
+
+		long started = System.nanoTime();
+		assertEquals(5, new NMEAReplay(log).replay(dispatcher, true));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- started);
+		// 100 ms, the gap between the sessions, then 200 ms
+		assertTrue("Replayed in " + elapsed + " ms", elapsed >= 300);
+		assertTrue("Replayed in " + elapsed + " ms", elapsed < 5000);
+	}
+
+	/**
+	 * Shifts the nanoTime of the header and records of a segment
+	 */
+	private static void shiftNanos(File segment, long shift) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			// Magic, version and wall clock
+			raf.seek(16);
+			long nanos = raf.readLong();
+			raf.seek(16);
+			raf.writeLong(nanos + shift);
+			int length;
+			while ((length = raf.readShort()) > 0) {
+				long position = raf.getFilePointer();
+				nanos = raf.readLong();
+				raf.seek(position);
+				raf.writeLong(nanos + shift);
+				raf.skipBytes(length);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testFastReplayAcrossSegments() throws Exception {
+		NMEARecorder recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		int count = 500;
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			String sentence = i % 2 == 0 ? DPT : VHW;
+			recorder.record(now + TimeUnit.SECONDS.toNanos(i), sentence);
+		}
+		recorder.close();
+		assertEquals(count, recorder.getRecordedCount());
+		assertTrue(log.list().length > 1);
+
+		long started = System.nanoTime();
+		assertEquals(count, new NMEAReplay(log).replay(dispatcher, false));
+		// Recorded over 500 seconds
+		assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(12.6, depthSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+	}
+
+	@Test
+	public void testPacedReplay() throws Exception {
+		NMEARecorder recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		long now = System.nanoTime();
+		recorder.record(now, DPT);
+		recorder.record(now + TimeUnit.MILLISECONDS.toNanos(100), VHW);
+		recorder.record(now + TimeUnit.MILLISECONDS.toNanos(200), DPT);
+		recorder.close();
+		long started = System.nanoTime();
+		assertEquals(3, new NMEAReplay(log).replay(dispatcher, true));
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS
+				.toNanos(200));
+	}
+
+	@Test
+	public void testAppendsAndRecordsMergedStream() throws Exception {
+		NMEARecorder recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		recorder.record(System.nanoTime(), DPT);
+		recorder.close();
+
+		recorder = new NMEARecorder(log, SEGMENT_SIZE);
+		NMEAStreamMerger merger = new NMEAStreamMerger(new SentenceDispatcher());
+		merger.setRecorder(recorder);
+		merger.offer(SentenceFactory.getInstance().createParser(VHW), 1);
+		merger.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (recorder.getRecordedCount() < 1) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The merged stream was not recorded");
+			Thread.sleep(10);
+		}
+		merger.stop();
+		recorder.close();
+
+		assertEquals(2, log.list().length);
+		assertEquals(2, new NMEAReplay(log).replay(dispatcher, false));
+		assertEquals(12.6, depthSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+	}
+
+	@Test(expected = OutOfRange.class)
+	public void testSegmentTooSmall() throws Exception {
+		new NMEARecorder(log, new MInteger(100));
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceId;
+import net.sf.marineapi.nmea.sentence.TalkerId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.nmea.ISentenceHandler;
+import org.marssa.services.nmea.NMEAStreamMerger;
+import org.marssa.services.nmea.SentenceDispatcher;
+
+public class NMEAStreamMergerTest {
+
+	private static final String MTW = "$SDMTW,17.9,C*0B";
+	private static final String DBT = "$SDDBT,41.5,f,12.6,M,6.9,F*0C";
+	private static final String DPT = "$SDDPT,12.6,0.5*67";
+
+	private SentenceDispatcher dispatcher;
+	private NMEAStreamMerger merger;
+	private final List<String> received = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() {
+		dispatcher = new SentenceDispatcher();
+		dispatcher.addHandler(TalkerId.SD, new ISentenceHandler() {
+			@Override
+			public void sentenceRead(Sentence sentence) {
+				received.add(sentence.getSentenceId());
+			}
+		});
+		merger = new NMEAStreamMerger(dispatcher);
+	}
+
+	@After
+	public void tearDown() {
+		merger.stop();
+	}
+
+	private static Sentence parse(String nmea) {
+		return SentenceFactory.getInstance().createParser(nmea);
+	}
+
+	private void awaitReceived(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.size() < count) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Received " + received.size() + " of " + count
+						+ " sentences");
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testSilentReaderDoesNotStallOthers() throws Exception {
+		// Nothing is ever written to the silent port
+		PipedInputStream silent = new PipedInputStream(new PipedOutputStream());
+		String nmea = MTW + "\r\n" + DBT + "\r\n" + DPT + "\r\n";
+		SentenceReader silentReader = new SentenceReader(silent);
+		SentenceReader reader = new SentenceReader(new ByteArrayInputStream(
+				nmea.getBytes("US-ASCII")));
+		merger.addReader(silentReader, "silent");
+		merger.addReader(reader, "talking");
+		merger.start();
+		silentReader.start();
+		reader.start();
+		try {
+			awaitReceived(3);
+			assertEquals(SentenceId.MTW.name(), received.get(0));
+			assertEquals(SentenceId.DBT.name(), received.get(1));
+			assertEquals(SentenceId.DPT.name(), received.get(2));
+		} finally {
+			reader.stop();
+			silentReader.stop();
+		}
+	}
+
+	@Test
+	public void testOrderedByTimeStamp() throws Exception {
+		merger.offer(parse(DPT), 30);
+		merger.offer(parse(MTW), 10);
+		merger.offer(parse(DBT), 20);
+		merger.offer(parse(MTW), 20);
+		merger.start();
+		awaitReceived(4);
+		assertEquals(SentenceId.MTW.name(), received.get(0));
+		assertEquals(SentenceId.DBT.name(), received.get(1));
+		assertEquals(SentenceId.MTW.name(), received.get(2));
+		assertEquals(SentenceId.DPT.name(), received.get(3));
+	}
+
+	@Test
+	public void testConcurrentSources() throws Exception {
+		final int sources = 4;
+		final int perSource = 200;
+		final Sentence sentence = parse(MTW);
+		merger.start();
+		Thread[] threads = new Thread[sources];
+		for (int i = 0; i < sources; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perSource; j++) {
+						while (!merger.offer(sentence,
+								System.currentTimeMillis())) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// The count is updated after a batch is dispatched
+		long deadline = System.currentTimeMillis() + 5000;
+		while (merger.getSentenceCount() < sources * perSource) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Dispatched " + merger.getSentenceCount() + " of "
+						+ sources * perSource + " sentences");
+			Thread.sleep(10);
+		}
+		assertEquals(sources * perSource, received.size());
+	}
+
+	@Test
+	public void testRestartKeepsSingleConsumer() throws Exception {
+		Sentence sentence = parse(MTW);
+		for (int i = 0; i < 5; i++) {
+			merger.start();
+			merger.stop();
+		}
+		merger.start();
+		int consumers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("NMEA merge".equals(thread.getName()))
+				consumers++;
+		}
+		assertEquals(1, consumers);
+		merger.offer(sentence, 1);
+		merger.offer(sentence, 2);
+		awaitReceived(2);
+		merger.stop();
+		merger.offer(sentence, 3);
+		Thread.sleep(50);
+		assertEquals(2, received.size());
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		merger = new NMEAStreamMerger(dispatcher, new MInteger(2));
+		Sentence sentence = parse(MTW);
+		merger.offer(sentence, 1);
+		merger.offer(sentence, 2);
+		assertFalse(merger.offer(sentence, 3));
+		assertEquals(1, merger.getDropped());
+		merger.start();
+		awaitReceived(2);
+		Thread.sleep(50);
+		assertEquals(2, received.size());
+	}
+}
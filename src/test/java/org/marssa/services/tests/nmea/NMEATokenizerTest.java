@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.services.nmea.IRawSentenceHandler;
+import org.marssa.services.nmea.NMEATokenizer;
+import org.marssa.services.nmea.RawSentence;
+
+public class NMEATokenizerTest {
+
+	private NMEATokenizer tokenizer;
+	private List<String> sentences;
+
+	@Before
+	public void setUp() {
+		tokenizer = new NMEATokenizer();
+		sentences = new ArrayList<String>();
+		tokenizer.addHandler(new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				sentences.add(sentence.toString());
+			}
+		});
+	}
+
+	private void feed(String nmea) throws Exception {
+		byte[] bytes = nmea.getBytes("US-ASCII");
+		tokenizer.feed(bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void testGGAFields() throws Exception {
+		final double[] values = new double[5];
+		final long[] time = new long[1];
+		tokenizer.addHandler("GGA", new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				assertTrue(sentence.isTalker("GP"));
+				time[0] = sentence.getTime(0);
+				values[0] = sentence.getPosition(1);
+				values[1] = sentence.getPosition(3);
+				values[2] = sentence.getInt(6, -1);
+				values[3] = sentence.getDouble(8);
+				values[4] = sentence.getDouble(12);
+			}
+		});
+		feed("$GPGGA,123519.50,4807.038,S,01131.000,W,1,08,0.9,545.4,M,46.9,M,,*63\r\n");
+		assertEquals(1, tokenizer.getSentenceCount());
+		assertEquals((12 * 3600 + 35 * 60 + 19) * 1000L + 500, time[0]);
+		assertEquals(-(48 + 7.038 / 60), values[0], 1e-9);
+		assertEquals(-(11 + 31.0 / 60), values[1], 1e-9);
+		assertEquals(8, values[2], 0);
+		assertEquals(545.4, values[3], 1e-9);
+		assertTrue(Double.isNaN(values[4]));
+	}
+
+	@Test
+	public void testRecording() throws Exception {
+		final List<Long> dates = new ArrayList<Long>();
+		tokenizer.addHandler("RMC", new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				dates.add(sentence.getDate(8));
+			}
+		});
+		InputStream in = getClass().getResourceAsStream(
+				"/org/marssa/services/tests/navigation/gps.nmea");
+		try {
+			tokenizer.read(in);
+		} finally {
+			in.close();
+		}
+		assertEquals(11, sentences.size());
+		assertEquals(0, tokenizer.getChecksumErrors());
+		// 18 March 2012
+		assertEquals(15417L, dates.get(0).longValue());
+	}
+
+	@Test
+	public void testSentenceSplitAcrossFeeds() throws Exception {
+		feed("$SDDBT,41.5,f,12");
+		feed(".6,M,6.9,F*0C\r");
+		feed("\n$SDMTW,17.9,C*0B\r\n");
+		assertEquals(2, sentences.size());
+		assertEquals("$SDDBT,41.5,f,12.6,M,6.9,F", sentences.get(0));
+	}
+
+	@Test
+	public void testChecksumAndResynchronisation() throws Exception {
+		feed("$SDMTW,17.9,C*0C\r\n");
+		feed("garbage$SDMTW,17.9,C*0B\r\n");
+		feed("$SDDPT,12.6,0$SDMTW,17.9,C*0B\r\n");
+		feed("!AIVDM,1,1,,A,13aEOK?P00PD2wVMdLDRhgvL289?,0*26\r\n");
+		feed("$SDMTW,17.9,C\r\n");
+		assertEquals(1, tokenizer.getChecksumErrors());
+		assertEquals(1, tokenizer.getDiscarded());
+		assertEquals(4, sentences.size());
+		assertEquals('!', sentences.get(2).charAt(0));
+	}
+
+	@Test
+	public void testProprietarySentence() throws Exception {
+		final List<String> garmin = new ArrayList<String>();
+		tokenizer.addHandler("GRME", new IRawSentenceHandler() {
+			@Override
+			public void sentenceRead(RawSentence sentence) {
+				assertTrue(sentence.isProprietary());
+				assertTrue(sentence.isTalker("P"));
+				garmin.add(sentence.toString());
+			}
+		});
+		feed("$PGRME,15.0,M,45.0,M,25.0,M*1C\r\n");
+		feed("$PGRMZ,246,f,3*1B\r\n");
+		assertEquals(2, sentences.size());
+		assertEquals(1, garmin.size());
+		assertEquals("$PGRME,15.0,M,45.0,M,25.0,M", garmin.get(0));
+	}
+}
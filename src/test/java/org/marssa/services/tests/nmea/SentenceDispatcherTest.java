@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.marineapi.nmea.event.SentenceEvent;
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceId;
+import net.sf.marineapi.nmea.sentence.TalkerId;
+import net.sf.marineapi.nmea.sentence.VHWSentence;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.services.navigation.DepthSensor;
+import org.marssa.services.navigation.SpeedSensor;
+import org.marssa.services.nmea.IRawSentenceHandler;
+import org.marssa.services.nmea.ISentenceHandler;
+import org.marssa.services.nmea.NMEATokenizer;
+import org.marssa.services.nmea.RawSentence;
+import org.marssa.services.nmea.SentenceDispatcher;
+
+public class SentenceDispatcherTest {
+
+	private SentenceDispatcher dispatcher;
+
+	@Before
+	public void setUp() {
+		dispatcher = new SentenceDispatcher();
+	}
+
+	private void read(String nmea) {
+		dispatcher.sentenceRead(new SentenceEvent(this, SentenceFactory
+				.getInstance().createParser(nmea)));
+	}
+
+	private void tokenize(String nmea) throws Exception {
+		NMEATokenizer tokenizer = new NMEATokenizer();
+		tokenizer.addHandler(dispatcher);
+		byte[] bytes = (nmea + "\r\n").getBytes("US-ASCII");
+		tokenizer.feed(bytes, 0, bytes.length);
+	}
+
+	private static class RawRecorder implements IRawSentenceHandler {
+		final List<String> sentences = new ArrayList<String>();
+
+		@Override
+		public void sentenceRead(RawSentence sentence) {
+			sentences.add(sentence.toString());
+		}
+	}
+
+	private static class Recorder implements ISentenceHandler {
+		final List<String> sentences = new ArrayList<String>();
+
+		@Override
+		public void sentenceRead(Sentence sentence) {
+			sentences.add(sentence.getTalkerId() + sentence.getSentenceId());
+		}
+	}
+
+	@Test
+	public void testRoutesBySentenceAndTalker() {
+		Recorder bySentence = new Recorder();
+		Recorder byTalker = new Recorder();
+		dispatcher.addHandler(SentenceId.DBT, bySentence);
+		dispatcher.addHandler(TalkerId.SD, byTalker);
+		read("$SDMTW,17.9,C*0B");
+		read("$SDDBT,41.5,f,12.6,M,6.9,F*0C");
+		read("$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50");
+		assertEquals(1, bySentence.sentences.size());
+		assertEquals("SDDBT", bySentence.sentences.get(0));
+		assertEquals(2, byTalker.sentences.size());
+		assertEquals("SDMTW", byTalker.sentences.get(0));
+	}
+
+	@Test
+	public void testHandlerRemovesItself() {
+		final Recorder recorder = new Recorder();
+		dispatcher.addHandler(TalkerId.SD, new ISentenceHandler() {
+			@Override
+			public void sentenceRead(Sentence sentence) {
+				dispatcher.removeHandler(TalkerId.SD, this);
+				dispatcher.addHandler(SentenceId.MTW, recorder);
+			}
+		});
+		read("$SDMTW,17.9,C*0B");
+		read("$SDMTW,17.9,C*0B");
+		assertEquals(1, recorder.sentences.size());
+	}
+
+	@Test
+	public void testEmptyFieldKeepsOtherHandlers() {
+		ISentenceHandler magnetic = new ISentenceHandler() {
+			@Override
+			public void sentenceRead(Sentence sentence) {
+				((VHWSentence) sentence).getMagneticHeading();
+			}
+		};
+		Recorder bySentence = new Recorder();
+		Recorder byTalker = new Recorder();
+		dispatcher.addHandler(SentenceId.VHW, magnetic);
+		dispatcher.addHandler(SentenceId.VHW, bySentence);
+		dispatcher.addHandler(TalkerId.VW, magnetic);
+		dispatcher.addHandler(TalkerId.VW, byTalker);
+		read("$VWVHW,90.0,T,,M,5.2,N,9.6,K*4B");
+		assertEquals(1, bySentence.sentences.size());
+		assertEquals(1, byTalker.sentences.size());
+	}
+
+	@Test
+	public void testSensors() throws Exception {
+		DepthSensor depthSensor = new DepthSensor(dispatcher);
+		SpeedSensor speedSensor = new SpeedSensor(dispatcher);
+		assertNull(depthSensor.getDepthMeters());
+		read("$SDMTW,17.9,C*0B");
+		read("$SDDPT,12.6,0.5*67");
+		read("$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50");
+		assertEquals(12.6, depthSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(17.9, depthSensor.getTemperatureDegrees().doubleValue(),
+				1e-9);
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+		assertEquals(90.0, speedSensor.getDegreesTrue().doubleValue(), 1e-9);
+		assertEquals(88.5, speedSensor.getDegreesMagnetic().doubleValue(),
+				1e-9);
+	}
+
+	@Test
+	public void testRawAndParsedHandlers() throws Exception {
+		RawRecorder raw = new RawRecorder();
+		Recorder bySentence = new Recorder();
+		Recorder byTalker = new Recorder();
+		dispatcher.addHandler(SentenceId.DBT, raw);
+		dispatcher.addHandler(SentenceId.MTW, bySentence);
+		dispatcher.addHandler(TalkerId.VW, byTalker);
+		// Raw sentences are only parsed for the handlers of parsed ones
+		tokenize("$SDDBT,41.5,f,12.6,M,6.9,F*0C");
+		tokenize("$SDMTW,17.9,C*0B");
+		tokenize("$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50");
+		// Parsed sentences are converted for the raw handlers
+		read("$SDDBT,41.5,f,12.6,M,6.9,F*0C");
+		assertEquals(2, raw.sentences.size());
+		assertEquals("$SDDBT,41.5,f,12.6,M,6.9,F", raw.sentences.get(0));
+		assertEquals(raw.sentences.get(0), raw.sentences.get(1));
+		assertEquals(1, bySentence.sentences.size());
+		assertEquals("SDMTW", bySentence.sentences.get(0));
+		assertEquals(1, byTalker.sentences.size());
+		assertEquals("VWVHW", byTalker.sentences.get(0));
+	}
+
+	@Test
+	public void testSensorsReadRawSentences() throws Exception {
+		DepthSensor depthSensor = new DepthSensor(dispatcher);
+		SpeedSensor speedSensor = new SpeedSensor(dispatcher);
+		tokenize("$SDDBT,41.5,f,12.6,M,6.9,F*0C");
+		tokenize("$VWVHW,90.0,T,88.5,M,5.2,N,9.6,K*50");
+		// An empty field keeps the previous value
+		tokenize("$VWVHW,90.0,T,,M,5.2,N,9.6,K*4B");
+		// A truncated sentence is dropped by the handlers
+		tokenize("$SDDPT");
+		assertEquals(12.6, depthSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(12.6, speedSensor.getDepthMeters().doubleValue(), 1e-9);
+		assertEquals(5.2, speedSensor.getSpeedKnots().doubleValue(), 1e-9);
+		assertEquals(88.5, speedSensor.getDegreesMagnetic().doubleValue(),
+				1e-9);
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.services.scheduling.HashedWheelTimer;
+import org.marssa.services.scheduling.MTimerTask;
+
+public class HashedWheelTimerTest {
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() throws Exception {
+		// A revolution takes 20 ms, so that tasks wait several rounds
+		timer = new HashedWheelTimer(new MInteger(5), new MInteger(4));
+	}
+
+	@After
+	public void tearDown() {
+		timer.cancel();
+	}
+
+	private static class CountingTask extends MTimerTask {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch latch;
+		volatile long ranAt;
+
+		CountingTask(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void run() {
+			ranAt = System.nanoTime();
+			runs.incrementAndGet();
+			latch.countDown();
+		}
+	}
+
+	@Test
+	public void testFiresAfterSeveralRounds() throws Exception {
+		CountingTask task = new CountingTask(1);
+		long scheduledAt = System.nanoTime();
+		timer.addSchedule(task, 100);
+		assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+		assertTrue(task.ranAt - scheduledAt >= TimeUnit.MILLISECONDS
+				.toNanos(100));
+		Thread.sleep(50);
+		assertEquals(1, task.runs.get());
+	}
+
+	@Test
+	public void testFixedRate() throws Exception {
+		CountingTask task = new CountingTask(10);
+		long started = System.nanoTime();
+		timer.addScheduleAtFixedRate(task, 0, 10);
+		assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS
+				.toNanos(90));
+	}
+
+	@Test
+	public void testFixedDelayFromStartOfRun() throws Exception {
+		final CountDownLatch runs = new CountDownLatch(10);
+		long started = System.nanoTime();
+		timer.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				runs.countDown();
+				try {
+					Thread.sleep(30);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0, 50);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+		// About 450 ms, against 720 ms if the delay followed the run
+		assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS
+				.toNanos(650));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		CountingTask cancelled = new CountingTask(1);
+		CountingTask kept = new CountingTask(1);
+		timer.addSchedule(cancelled, 30);
+		timer.addSchedule(kept, 30);
+		assertTrue(cancelled.cancel());
+		assertTrue(kept.latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(30);
+		assertEquals(0, cancelled.runs.get());
+	}
+
+	@Test
+	public void testManyTasks() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(10000);
+		for (int i = 0; i < 10000; i++) {
+			timer.addSchedule(new MTimerTask() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			}, i % 50);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testExceptionKeepsSchedule() throws Exception {
+		final CountDownLatch runs = new CountDownLatch(3);
+		timer.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				runs.countDown();
+				throw new IllegalStateException("Failing task");
+			}
+		}, 0, 5);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = OutOfRange.class)
+	public void testTickOutOfRange() throws Exception {
+		new HashedWheelTimer(new MInteger(0), new MInteger(4));
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.MString;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.services.scheduling.MTimerService;
+import org.marssa.services.scheduling.MTimerTask;
+import org.marssa.services.scheduling.TaskPriority;
+import org.marssa.services.scheduling.TaskStatistics;
+
+public class MTimerServiceTest {
+
+	private MTimerService service;
+
+	@Before
+	public void setUp() {
+		service = new MTimerService(new MInteger(2));
+	}
+
+	@After
+	public void tearDown() {
+		service.cancel();
+	}
+
+	private static class CountingTask extends MTimerTask {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch latch;
+
+		CountingTask(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+			latch.countDown();
+		}
+	}
+
+	private static class BlockingTask extends MTimerTask {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingTask(String taskName, TaskPriority priority) {
+			super(new MString(taskName));
+			setPriority(priority);
+		}
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class OrderedTask extends MTimerTask {
+		final List<String> order;
+
+		OrderedTask(String taskName, TaskPriority priority, long deadline,
+				List<String> order) {
+			super(new MString(taskName));
+			setPriority(priority);
+			setDeadline(deadline);
+			this.order = order;
+		}
+
+		@Override
+		public void run() {
+			order.add(getTaskName().getContents());
+		}
+	}
+
+	@Test
+	public void testOverrunDoesNotStarveOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		service.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0, 10);
+		CountingTask fast = new CountingTask(10);
+		service.addScheduleAtFixedRate(fast, 0, 10);
+		try {
+			assertTrue(fast.latch.await(2, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testExceptionKeepsSchedule() throws Exception {
+		final CountDownLatch runs = new CountDownLatch(3);
+		service.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				runs.countDown();
+				throw new IllegalStateException("Failing task");
+			}
+		}, 0, 10);
+		CountingTask other = new CountingTask(1);
+		service.addSchedule(other, 20);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+		assertTrue(other.latch.await(2, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancelTask() throws Exception {
+		CountingTask task = new CountingTask(2);
+		service.addScheduleAtFixedRate(task, 0, 10);
+		assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+		assertTrue(task.cancel());
+		assertTrue(task.isCancelled());
+		Thread.sleep(20);
+		int runs = task.runs.get();
+		Thread.sleep(50);
+		assertEquals(runs, task.runs.get());
+		assertFalse(task.cancel());
+	}
+
+	@Test
+	public void testCancelTaskByName() throws Exception {
+		CountingTask first = new CountingTask(1);
+		first.setTaskName(new MString("logging"));
+		CountingTask second = new CountingTask(1);
+		second.setTaskName(new MString("logging"));
+		CountingTask other = new CountingTask(1);
+		service.addSchedule(first, 50, 10);
+		service.addSchedule(second, 50);
+		service.addSchedule(other, 50);
+		assertEquals(2, service.getScheduledCount("logging"));
+		service.cancelTask("logging");
+		assertEquals(0, service.getScheduledCount("logging"));
+		assertTrue(first.isCancelled());
+		assertTrue(second.isCancelled());
+		assertTrue(other.latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		assertEquals(0, first.runs.get() + second.runs.get());
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		final CountDownLatch runs = new CountDownLatch(3);
+		MTimerTask slow = new MTimerTask(new MString("slow")) {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(25);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				runs.countDown();
+			}
+		};
+		service.addScheduleAtFixedRate(slow, 0, 10);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+		slow.cancel();
+		// Lets the run in progress complete and be recorded
+		Thread.sleep(50);
+		TaskStatistics statistics = service.getStatistics("slow");
+		assertTrue(statistics.getRuns() >= 3);
+		assertEquals(statistics.getRuns(), statistics.getOverruns());
+		// Every run after the first starts over a period late
+		assertTrue(statistics.getMissedPeriods() >= 2);
+		assertTrue(statistics.getMaxLag() >= 10);
+		assertTrue(statistics.getMaxDuration() >= 25000);
+		assertTrue(statistics.getDurationPercentile(0.5) >= 16384);
+		assertEquals(0, statistics.getFailures());
+		assertNull(service.getStatistics("unknown"));
+	}
+
+	@Test
+	public void testPriorityThenEarliestDeadline() throws Exception {
+		MTimerService single = new MTimerService(new MInteger(1));
+		try {
+			BlockingTask blocker = new BlockingTask("blocker",
+					TaskPriority.NORMAL);
+			single.addSchedule(blocker, 0);
+			assertTrue(blocker.started.await(2, TimeUnit.SECONDS));
+			List<String> order = Collections
+					.synchronizedList(new ArrayList<String>());
+			single.addSchedule(new OrderedTask("log", TaskPriority.LOW, 0,
+					order), 0);
+			single.addSchedule(new OrderedTask("late", TaskPriority.NORMAL,
+					500, order), 0);
+			single.addSchedule(new OrderedTask("early", TaskPriority.NORMAL,
+					100, order), 0);
+			single.addSchedule(new OrderedTask("rudder", TaskPriority.HIGH,
+					1000, order), 0);
+			// Lets every task fall due behind the blocker
+			Thread.sleep(50);
+			blocker.release.countDown();
+			for (int i = 0; i < 100 && order.size() < 4; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(4, order.size());
+			assertEquals("rudder", order.get(0));
+			assertEquals("early", order.get(1));
+			assertEquals("late", order.get(2));
+			assertEquals("log", order.get(3));
+		} finally {
+			single.cancel();
+		}
+	}
+
+	@Test
+	public void testLowPriorityDeferred() throws Exception {
+		BlockingTask logging = new BlockingTask("logging", TaskPriority.LOW);
+		service.addSchedule(logging, 0);
+		assertTrue(logging.started.await(2, TimeUnit.SECONDS));
+		CountingTask backlog = new CountingTask(1);
+		backlog.setTaskName(new MString("backlog"));
+		backlog.setPriority(TaskPriority.LOW);
+		backlog.setDeadline(5000);
+		service.addSchedule(backlog, 0);
+		CountingTask rudder = new CountingTask(5);
+		rudder.setPriority(TaskPriority.HIGH);
+		try {
+			// The reserved worker keeps serving the high priority task
+			service.addScheduleAtFixedRate(rudder, 0, 10);
+			assertTrue(rudder.latch.await(2, TimeUnit.SECONDS));
+			assertEquals(0, backlog.runs.get());
+		} finally {
+			logging.release.countDown();
+		}
+		assertTrue(backlog.latch.await(2, TimeUnit.SECONDS));
+		TaskStatistics statistics = service.getStatistics("backlog");
+		assertTrue(statistics.getDeferred() >= 1);
+		assertEquals(0, statistics.getShed());
+	}
+
+	@Test
+	public void testLateLowPriorityShed() throws Exception {
+		BlockingTask logging = new BlockingTask("logging", TaskPriority.LOW);
+		service.addSchedule(logging, 0);
+		assertTrue(logging.started.await(2, TimeUnit.SECONDS));
+		CountingTask stale = new CountingTask(1);
+		stale.setTaskName(new MString("stale"));
+		stale.setPriority(TaskPriority.LOW);
+		stale.setDeadline(20);
+		service.addSchedule(stale, 0);
+		Thread.sleep(100);
+		logging.release.countDown();
+		Thread.sleep(50);
+		assertEquals(0, stale.runs.get());
+		assertEquals(0, service.getScheduledCount("stale"));
+		TaskStatistics statistics = service.getStatistics("stale");
+		assertEquals(1, statistics.getDeferred());
+		assertEquals(1, statistics.getShed());
+	}
+
+	@Test
+	public void testDeferredShedWithoutCompletion() throws Exception {
+		BlockingTask logging = new BlockingTask("logging", TaskPriority.LOW);
+		service.addSchedule(logging, 0);
+		assertTrue(logging.started.await(2, TimeUnit.SECONDS));
+		try {
+			CountingTask stale = new CountingTask(1);
+			stale.setTaskName(new MString("stale"));
+			stale.setPriority(TaskPriority.LOW);
+			stale.setDeadline(20);
+			service.addSchedule(stale, 0, 1000);
+			TaskStatistics statistics = null;
+			for (int i = 0; i < 100; i++) {
+				Thread.sleep(10);
+				statistics = service.getStatistics("stale");
+				if (statistics.getShed() > 0)
+					break;
+			}
+			// Shed at its deadline while the blocking run is still going
+			assertEquals(1, statistics.getShed());
+			assertEquals(0, stale.runs.get());
+			assertEquals(1, service.getScheduledCount("stale"));
+		} finally {
+			logging.release.countDown();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testScheduledOnlyOnce() {
+		CountingTask task = new CountingTask(1);
+		service.addSchedule(task, 1000);
+		service.addSchedule(task, 1000);
+	}
+
+	@Test
+	public void testGetInstanceThreadSafe() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Callable<MTimerService> get = new Callable<MTimerService>() {
+				@Override
+				public MTimerService call() {
+					return MTimerService.getInstance();
+				}
+			};
+			Future<?>[] futures = new Future<?>[8];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit(get);
+			}
+			for (Future<?> future : futures) {
+				assertSame(futures[0].get(), future.get());
+			}
+		} finally {
+			executor.shutdown();
+			MTimerService.getInstance().cancel();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2012 MARSEC-XL International Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.marssa.services.tests.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marssa.footprint.datatypes.decimal.MDecimal;
+import org.marssa.footprint.datatypes.integer.MInteger;
+import org.marssa.footprint.exceptions.ConfigurationError;
+import org.marssa.footprint.exceptions.NoConnection;
+import org.marssa.footprint.exceptions.OutOfRange;
+import org.marssa.footprint.interfaces.control.IController;
+import org.marssa.services.control.Ramping;
+import org.marssa.services.control.Ramping.RampingType;
+import org.marssa.services.logging.LoggingTask;
+import org.marssa.services.scheduling.MTimerService;
+import org.marssa.services.scheduling.MTimerTask;
+import org.marssa.services.scheduling.VirtualClock;
+import org.marssa.services.scheduling.VirtualTimeScheduler;
+
+public class VirtualTimeSchedulerTest {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	private VirtualTimeScheduler scheduler;
+	private VirtualClock clock;
+
+	@Before
+	public void setUp() {
+		scheduler = new VirtualTimeScheduler();
+		clock = scheduler.getClock();
+	}
+
+	private class TimedTask extends MTimerTask {
+		final List<Long> times = new ArrayList<Long>();
+
+		@Override
+		public void run() {
+			assertEquals(scheduledExecutionTime(), clock.currentTimeMillis());
+			times.add(clock.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Controller recording the time of every output
+	 */
+	private class RecordingController implements IController {
+		final List<Long> times = Collections
+				.synchronizedList(new ArrayList<Long>());
+		final List<Double> values = Collections
+				.synchronizedList(new ArrayList<Double>());
+
+		@Override
+		public void outputValue(MDecimal value) throws ConfigurationError,
+				OutOfRange, NoConnection {
+			times.add(clock.currentTimeMillis());
+			values.add(value.doubleValue());
+		}
+
+		@Override
+		public void setPolaritySignal(Polarity polarity) throws NoConnection {
+		}
+	}
+
+	/**
+	 * Logging task recording the time of its runs
+	 */
+	private class TimedLoggingTask extends LoggingTask<String> {
+		final List<Long> times = Collections
+				.synchronizedList(new ArrayList<Long>());
+
+		TimedLoggingTask(String quantity) {
+			super(Arrays.asList(quantity));
+		}
+
+		@Override
+		public void run() {
+			times.add(clock.currentTimeMillis());
+		}
+	}
+
+	@Test
+	public void testVoyageFasterThanRealTime() throws Exception {
+		TimedTask position = new TimedTask();
+		TimedTask logging = new TimedTask();
+		scheduler.addScheduleAtFixedRate(position, 0, 1000);
+		scheduler.addSchedule(logging, 500, 60000);
+		long started = System.currentTimeMillis();
+		long runs = scheduler.runFor(7 * DAY);
+		assertTrue(System.currentTimeMillis() - started < 5000);
+		assertEquals(7 * DAY / 1000 + 1, position.times.size());
+		assertEquals(7 * DAY / 60000, logging.times.size());
+		assertEquals(position.times.size() + logging.times.size(), runs);
+		assertEquals(7 * DAY, clock.currentTimeMillis());
+		assertEquals(500 + 60000, logging.times.get(1).longValue());
+	}
+
+	@Test
+	public void testSameTimeInScheduleOrder() throws Exception {
+		final List<String> order = new ArrayList<String>();
+		for (final String name : new String[] { "a", "b", "c" }) {
+			scheduler.addSchedule(new MTimerTask() {
+				@Override
+				public void run() {
+					order.add(name);
+				}
+			}, 100);
+		}
+		assertEquals(0, scheduler.runFor(99));
+		assertEquals(3, scheduler.runFor(1));
+		assertEquals("abc", order.get(0) + order.get(1) + order.get(2));
+		assertEquals(0, scheduler.getScheduledCount());
+	}
+
+	@Test
+	public void testTaskSchedulesAndCancels() throws Exception {
+		final TimedTask later = new TimedTask();
+		final TimedTask periodic = new TimedTask();
+		scheduler.addSchedule(periodic, 0, 10);
+		scheduler.addSchedule(new MTimerTask() {
+			@Override
+			public void run() {
+				periodic.cancel();
+				scheduler.addSchedule(later, 1000);
+			}
+		}, 55);
+		scheduler.runFor(DAY);
+		assertEquals(6, periodic.times.size());
+		assertEquals(1, later.times.size());
+		assertEquals(1055, later.times.get(0).longValue());
+	}
+
+	@Test
+	public void testRampingOnVirtualClock() throws Exception {
+		RecordingController controller = new RecordingController();
+		Ramping ramping = new Ramping(new MInteger(100), new MDecimal(1),
+				controller, new MDecimal(0), RampingType.DEFAULT, clock);
+		ramping.rampTo(new MDecimal(10));
+		scheduler.runFor(60000);
+		// The initial output and the ten steps
+		assertEquals(11, controller.values.size());
+		assertEquals(10, controller.values.get(10), 1e-9);
+		for (int i = 1; i <= 10; i++) {
+			assertEquals((i - 1) * 100L, controller.times.get(i).longValue());
+		}
+	}
+
+	@Test
+	public void testTimerServiceOnVirtualClock() throws Exception {
+		MTimerService service = new MTimerService(new MInteger(2), clock);
+		try {
+			final CountDownLatch ran = new CountDownLatch(1);
+			service.addSchedule(new MTimerTask() {
+				@Override
+				public void run() {
+					ran.countDown();
+				}
+			}, DAY);
+			assertTrue(!ran.await(50, TimeUnit.MILLISECONDS));
+			clock.advance(DAY);
+			assertEquals(0, ran.getCount());
+		} finally {
+			service.cancel();
+		}
+	}
+
+	@Test
+	public void testFixedDelayFromStartOfRun() throws Exception {
+		MTimerService service = new MTimerService(new MInteger(2), clock);
+		try {
+			final List<Long> times = Collections
+					.synchronizedList(new ArrayList<Long>());
+			service.addSchedule(new MTimerTask() {
+				@Override
+				public void run() {
+					times.add(clock.currentTimeMillis());
+					try {
+						// Busy for part of the period
+						clock.sleep(300);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, 0, 1000);
+			clock.advance(10000);
+			assertEquals(11, times.size());
+			for (int i = 0; i < times.size(); i++) {
+				assertEquals(i * 1000L, times.get(i).longValue());
+			}
+		} finally {
+			service.cancel();
+		}
+	}
+
+	@Test
+	public void testPeriodicTimerServiceOnVirtualClock() throws Exception {
+		MTimerService service = new MTimerService(new MInteger(2), clock);
+		try {
+			TimedLoggingTask speed = new TimedLoggingTask("speed");
+			TimedLoggingTask depth = new TimedLoggingTask("depth");
+			service.addSchedule(speed, 0, 1000);
+			service.addScheduleAtFixedRate(depth, 500, 250);
+			long started = System.currentTimeMillis();
+			clock.advance(10 * 60000);
+			assertTrue(System.currentTimeMillis() - started < 10000);
+			assertEquals(601, speed.times.size());
+			assertEquals(2399, depth.times.size());
+			for (int i = 0; i < speed.times.size(); i++) {
+				assertEquals(i * 1000L, speed.times.get(i).longValue());
+			}
+			for (int i = 0; i < depth.times.size(); i++) {
+				assertEquals(500 + i * 250L, depth.times.get(i).longValue());
+			}
+			assertEquals(0, service.getStatistics(
+					String.valueOf(speed.getTaskName())).getMaxLag());
+		} finally {
+			service.cancel();
+		}
+	}
+}